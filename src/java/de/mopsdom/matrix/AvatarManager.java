@@ -0,0 +1,130 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.utils.PropertiesStore;
+
+/**
+ * Lädt vCard-Avatare einmalig in das Matrix Media Repository hoch. Die
+ * Zuordnung SHA-256 des Bildes → mxc:// URI wird persistent gespeichert, so
+ * dass ein Bild nur bei einer tatsächlichen Änderung erneut hochgeladen wird.
+ */
+public class AvatarManager {
+
+	private static final Logger Log = LoggerFactory.getLogger(AvatarManager.class);
+
+	private static final String HASH_PREFIX = "hash.";
+	private static final String USER_PREFIX = "user.";
+
+	private static AvatarManager instance = null;
+
+	private final PropertiesStore store;
+	private final ConcurrentHashMap<String, Object> uploadLocks = new ConcurrentHashMap<>();
+
+	public AvatarManager() {
+		instance = this;
+		store = new PropertiesStore("avatars");
+	}
+
+	public static AvatarManager getInstance() {
+		if (instance == null)
+			instance = new AvatarManager();
+
+		return instance;
+	}
+
+	/**
+	 * Liefert die mxc:// URI für das Foto einer vCard oder null, wenn die vCard
+	 * kein Foto enthält bzw. der Upload fehlschlägt. Hochgeladen wird auf den
+	 * Homeserver von api, jeder Homeserver bekommt eine eigene Kopie.
+	 */
+	public String getAvatarUrl(Element vcard, MatrixAPI api) {
+		if (vcard == null)
+			return null;
+
+		Element photoEl = vcard.element("PHOTO");
+		if (photoEl == null)
+			return null;
+
+		Element binvalEl = photoEl.element("BINVAL");
+		Element typeEl = photoEl.element("TYPE");
+		if (binvalEl == null || typeEl == null)
+			return null;
+
+		byte[] data;
+		try {
+			// BINVAL darf Zeilenumbrüche enthalten
+			data = Base64.getMimeDecoder().decode(binvalEl.getTextTrim());
+		} catch (IllegalArgumentException e) {
+			Log.warn("Invalid avatar BINVAL in vCard: " + e.getMessage());
+			return null;
+		}
+		if (data.length == 0)
+			return null;
+
+		String hash = sha256(data) + api.getProfile().getSuffix();
+		String mxc = store.get(HASH_PREFIX + hash);
+		if (mxc != null)
+			return mxc;
+
+		// Parallele Lookups desselben Bildes dürfen nur einen Upload auslösen
+		Object lock = uploadLocks.computeIfAbsent(hash, k -> new Object());
+		try {
+			synchronized (lock) {
+				mxc = store.get(HASH_PREFIX + hash);
+				if (mxc != null)
+					return mxc;
+
+				mxc = api.uploadMedia(data, typeEl.getTextTrim(), "avatar");
+				if (mxc != null) {
+					store.put(HASH_PREFIX + hash, mxc);
+					Log.info("Uploaded avatar " + hash + " as " + mxc);
+				}
+				return mxc;
+			}
+		} catch (IOException e) {
+			Log.error("Avatar upload failed: " + e.getMessage());
+			return null;
+		} finally {
+			uploadLocks.remove(hash, lock);
+		}
+	}
+
+	/**
+	 * Setzt den Avatar des Puppets, wenn sich die mxc URI seit dem letzten
+	 * Abgleich geändert hat. Eine leere URI entfernt den Avatar. false, wenn
+	 * der Homeserver die Änderung nicht angenommen hat.
+	 */
+	public boolean updatePuppetAvatar(String matrixUserId, String mxc) {
+		String current = store.get(USER_PREFIX + matrixUserId);
+		// Ohne gespeicherte URI hat der Puppet noch keinen Avatar
+		if (mxc == null || mxc.equals(current != null ? current : ""))
+			return true;
+
+		try {
+			MatrixAPI.forMxid(matrixUserId).setUserAvatarUrl(matrixUserId, mxc);
+			store.put(USER_PREFIX + matrixUserId, mxc);
+			return true;
+		} catch (IOException e) {
+			Log.warn("Could not update avatar of " + matrixUserId + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static String sha256(byte[] data) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Circuit Breaker für eine Gruppe von Homeserver-Endpunkten. Im Zustand OPEN
+ * schlagen Aufrufe sofort fehl, statt den OkHttp-Timeout abzuwarten. Nach
+ * Ablauf der Wartezeit lässt HALF_OPEN einige Probe-Aufrufe durch.
+ */
+public class CircuitBreaker {
+
+	private static final Logger Log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, HALF_OPEN, OPEN
+	}
+
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = -3511735962418205573L;
+
+		public CircuitOpenException(String group) {
+			super("Circuit breaker for homeserver endpoint group '" + group + "' is open");
+		}
+	}
+
+	private final String group;
+
+	// Bei großen Uploads/Downloads sagt die Dauer nichts über den Homeserver aus
+	private final boolean countSlowCalls;
+
+	private State state = State.CLOSED;
+	private long openedAt = 0;
+
+	// Ringpuffer der letzten Ergebnisse im Zustand CLOSED (true = Fehler)
+	private boolean[] window;
+	private int windowPos = 0;
+	private int windowCalls = 0;
+	private int windowFailures = 0;
+
+	private int halfOpenPermits = 0;
+	private int halfOpenSuccesses = 0;
+
+	private long rejectedCalls = 0;
+	private long failedCalls = 0;
+	private long slowCalls = 0;
+	private long totalCalls = 0;
+
+	public CircuitBreaker(String group) {
+		this(group, true);
+	}
+
+	public CircuitBreaker(String group, boolean countSlowCalls) {
+		this.group = group;
+		this.countSlowCalls = countSlowCalls;
+		this.window = new boolean[MatrixBridgePlugin.BREAKER_WINDOW_SIZE.getValue()];
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public synchronized State getState() {
+		// Abgelaufene OPEN-Phase wird erst beim nächsten Aufruf zu HALF_OPEN, für die Anzeige aber schon jetzt
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= MatrixBridgePlugin.BREAKER_OPEN_DURATION.getValue())
+			return State.HALF_OPEN;
+		return state;
+	}
+
+	public synchronized void acquirePermission() throws CircuitOpenException {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < MatrixBridgePlugin.BREAKER_OPEN_DURATION.getValue()) {
+				rejectedCalls++;
+				throw new CircuitOpenException(group);
+			}
+			state = State.HALF_OPEN;
+			halfOpenPermits = 0;
+			halfOpenSuccesses = 0;
+		}
+
+		if (state == State.HALF_OPEN) {
+			if (halfOpenPermits >= MatrixBridgePlugin.BREAKER_HALF_OPEN_CALLS.getValue()) {
+				rejectedCalls++;
+				throw new CircuitOpenException(group);
+			}
+			halfOpenPermits++;
+		}
+	}
+
+	public synchronized void onResult(boolean failed, long durationMs) {
+		totalCalls++;
+		boolean slow = countSlowCalls && durationMs >= MatrixBridgePlugin.BREAKER_SLOW_CALL_MS.getValue();
+		if (failed)
+			failedCalls++;
+		if (slow)
+			slowCalls++;
+		boolean failure = failed || slow;
+
+		switch (state) {
+		case HALF_OPEN:
+			if (failure) {
+				open();
+			} else if (++halfOpenSuccesses >= MatrixBridgePlugin.BREAKER_HALF_OPEN_CALLS.getValue()) {
+				close();
+			}
+			break;
+		case CLOSED:
+			record(failure);
+			if (windowCalls >= MatrixBridgePlugin.BREAKER_MIN_CALLS.getValue()
+					&& windowFailures * 100 >= windowCalls * MatrixBridgePlugin.BREAKER_FAILURE_RATE.getValue()) {
+				open();
+			}
+			break;
+		default:
+			// Späte Antworten aus der Zeit vor dem Öffnen ändern nichts mehr
+			break;
+		}
+	}
+
+	private void record(boolean failure) {
+		if (windowCalls == window.length) {
+			if (window[windowPos])
+				windowFailures--;
+		} else {
+			windowCalls++;
+		}
+		window[windowPos] = failure;
+		if (failure)
+			windowFailures++;
+		windowPos = (windowPos + 1) % window.length;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		Log.warn("Circuit breaker '" + group + "' opened");
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		window = new boolean[MatrixBridgePlugin.BREAKER_WINDOW_SIZE.getValue()];
+		windowPos = 0;
+		windowCalls = 0;
+		windowFailures = 0;
+		Log.info("Circuit breaker '" + group + "' closed");
+	}
+
+	public synchronized int getFailureRate() {
+		return windowCalls == 0 ? 0 : windowFailures * 100 / windowCalls;
+	}
+
+	public synchronized long getRejectedCalls() {
+		return rejectedCalls;
+	}
+
+	public synchronized long getFailedCalls() {
+		return failedCalls;
+	}
+
+	public synchronized long getSlowCalls() {
+		return slowCalls;
+	}
+
+	public synchronized long getTotalCalls() {
+		return totalCalls;
+	}
+}
@@ -0,0 +1,147 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Ein {@link CircuitBreaker} pro Gruppe von Homeserver-Endpunkten. Der
+ * Interceptor ordnet jeden Request anhand seines Pfads einer Gruppe zu, so
+ * dass z. B. ein hängendes Raumverzeichnis das Senden nicht blockiert. Jedes
+ * Homeserver-Profil hat eine eigene Registry; {@link #getInstance()} liefert
+ * die des Standardprofils.
+ */
+public class CircuitBreakerRegistry {
+
+	public static final String GROUP_DIRECTORY = "directory";
+	public static final String GROUP_MEMBERSHIP = "membership";
+	public static final String GROUP_SEND = "send";
+	public static final String GROUP_PROFILE = "profile";
+	public static final String GROUP_MEDIA = "media";
+	public static final String GROUP_OTHER = "other";
+
+	private static final String STATISTIC_PREFIX = "matrix_bridge_breaker_";
+
+	private static CircuitBreakerRegistry instance = null;
+
+	private final Map<String, CircuitBreaker> breakers = new LinkedHashMap<>();
+
+	public CircuitBreakerRegistry() {
+		this(new HomeserverProfile(HomeserverProfile.DEFAULT));
+	}
+
+	public CircuitBreakerRegistry(HomeserverProfile profile) {
+		if (profile.isDefault())
+			instance = this;
+		for (String group : new String[] { GROUP_DIRECTORY, GROUP_MEMBERSHIP, GROUP_SEND, GROUP_PROFILE, GROUP_MEDIA,
+				GROUP_OTHER }) {
+			// Medien-Aufrufe dauern je nach Dateigröße beliebig lange, dort zählen nur echte Fehler
+			breakers.put(group, new CircuitBreaker(profile.isDefault() ? group : group + "@" + profile.getName(),
+					!GROUP_MEDIA.equals(group)));
+		}
+	}
+
+	public static CircuitBreakerRegistry getInstance() {
+		if (instance == null)
+			instance = new CircuitBreakerRegistry();
+
+		return instance;
+	}
+
+	public Collection<CircuitBreaker> getBreakers() {
+		return Collections.unmodifiableCollection(breakers.values());
+	}
+
+	public CircuitBreaker getBreaker(String group) {
+		return breakers.get(group);
+	}
+
+	public static String getGroup(String path) {
+		if (path.contains("/directory/") || path.endsWith("/publicRooms"))
+			return GROUP_DIRECTORY;
+		if (path.contains("/join/") || path.endsWith("/invite") || path.endsWith("/leave")
+				|| path.endsWith("/joined_members") || path.endsWith("/members") || path.endsWith("/createRoom"))
+			return GROUP_MEMBERSHIP;
+		if (path.contains("/send/") || path.contains("/typing/") || path.contains("/receipt/")
+				|| path.contains("/redact/"))
+			return GROUP_SEND;
+		if (path.contains("/profile/") || path.endsWith("/account/whoami") || path.endsWith("/register"))
+			return GROUP_PROFILE;
+		if (path.contains("/media/"))
+			return GROUP_MEDIA;
+		return GROUP_OTHER;
+	}
+
+	public Interceptor createInterceptor() {
+		return chain -> {
+			CircuitBreaker breaker = breakers.get(getGroup(chain.request().url().encodedPath()));
+			breaker.acquirePermission();
+
+			long start = System.currentTimeMillis();
+			try {
+				Response response = chain.proceed(chain.request());
+				// 5xx und Rate-Limits zählen als Fehler, 4xx sind fachliche Antworten (z. B. 404 Alias unbekannt)
+				breaker.onResult(response.code() >= 500 || response.code() == 429, System.currentTimeMillis() - start);
+				return response;
+			} catch (IOException e) {
+				breaker.onResult(true, System.currentTimeMillis() - start);
+				throw e;
+			}
+		};
+	}
+
+	public void registerStatistics() {
+		for (CircuitBreaker breaker : breakers.values()) {
+			StatisticsManager.getInstance().addStatistic(getStatisticKey(breaker), new Statistic() {
+				@Override
+				public String getName() {
+					return "Matrix Bridge circuit breaker (" + breaker.getGroup() + ")";
+				}
+
+				@Override
+				public Type getStatType() {
+					return Type.amount;
+				}
+
+				@Override
+				public String getDescription() {
+					return "State of the homeserver circuit breaker: 0 = closed, 1 = half open, 2 = open";
+				}
+
+				@Override
+				public String getUnits() {
+					return "state";
+				}
+
+				@Override
+				public double sample() {
+					return breaker.getState().ordinal();
+				}
+
+				@Override
+				public boolean isPartialSample() {
+					return false;
+				}
+			});
+		}
+	}
+
+	public void unregisterStatistics() {
+		for (CircuitBreaker breaker : breakers.values()) {
+			StatisticsManager.getInstance().removeStatistic(getStatisticKey(breaker));
+		}
+	}
+
+	// Schlüssel des Standardprofils bleiben unverändert, damit vorhandene Statistiken weiterlaufen
+	private String getStatisticKey(CircuitBreaker breaker) {
+		return STATISTIC_PREFIX + breaker.getGroup().replace('@', '_');
+	}
+}
@@ -0,0 +1,80 @@
+package de.mopsdom.matrix;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.utils.IdIndex;
+import de.mopsdom.matrix.utils.Utils;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Zuordnung XMPP Stanza-ID ↔ Matrix Event-ID für gebridgte Nachrichten, als
+ * Grundlage für Korrekturen, Widerrufe, Antworten und Chat Markers.
+ * Stanza-IDs sind nur pro Absender eindeutig, daher wird die Raum-ID mit in
+ * den Schlüssel genommen.
+ */
+public class EventIdMap {
+
+	private static final Logger Log = LoggerFactory.getLogger(EventIdMap.class);
+
+	private static final String SPILL_FILE = "event_index.dat";
+
+	private static EventIdMap instance = null;
+
+	private volatile IdIndex index;
+
+	public EventIdMap() {
+		index = createMemoryIndex();
+	}
+
+	public static EventIdMap getInstance() {
+		if (instance == null)
+			instance = new EventIdMap();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		try {
+			index = new IdIndex(MatrixBridgePlugin.EVENT_INDEX_CAPACITY.getValue(),
+					new File(Utils.getDataDirectory(), SPILL_FILE), MatrixBridgePlugin.EVENT_INDEX_SPILL_SLOTS.getValue());
+		} catch (IOException e) {
+			Log.error("Auslagerungsdatei des Event-Index nicht verfügbar, nur im Speicher: " + e.getMessage());
+			index = createMemoryIndex();
+		}
+	}
+
+	public synchronized void stop() {
+		index.flush();
+		index = createMemoryIndex();
+	}
+
+	private static IdIndex createMemoryIndex() {
+		try {
+			return new IdIndex(MatrixBridgePlugin.EVENT_INDEX_CAPACITY.getValue(), null, 0);
+		} catch (IOException e) {
+			// Ohne Auslagerungsdatei gibt es keine I/O
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void put(String roomId, String stanzaId, String eventId) {
+		index.put(roomId + "|" + stanzaId, eventId);
+	}
+
+	public String getEventId(String roomId, String stanzaId) {
+		String eventId = index.getRight(roomId + "|" + stanzaId);
+		// Aus Matrix gebridgte Nachrichten tragen die Event-ID als Stanza-ID
+		if (eventId == null && stanzaId.startsWith("$"))
+			return stanzaId;
+		return eventId;
+	}
+
+	public String getStanzaId(String eventId) {
+		String key = index.getLeft(eventId);
+		return key != null ? key.substring(key.indexOf('|') + 1) : null;
+	}
+}
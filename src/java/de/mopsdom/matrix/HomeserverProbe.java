@@ -0,0 +1,250 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleSupplier;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.utils.LatencyHistogram;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Misst die Verbindung zum Homeserver aktiv über die Appservice-Ping-API.
+ * Pro Probe entstehen drei Werte: die Gesamtdauer, der Hinweg (Bridge →
+ * Homeserver, bis dessen Ping in handlePing ankommt) und der vom Homeserver
+ * gemeldete Rückweg (Homeserver → Bridge → Homeserver). Aus den letzten
+ * Proben wird ein Zustand abgeleitet, den Hintergrundarbeit abfragen kann.
+ */
+public class HomeserverProbe {
+
+	private static final Logger Log = LoggerFactory.getLogger(HomeserverProbe.class);
+
+	public enum Health {
+		UNKNOWN, HEALTHY, DEGRADED, UNREACHABLE
+	}
+
+	private static final String TXN_PREFIX = "probe-";
+
+	private static final String STATISTIC_PREFIX = "matrix_bridge_homeserver_";
+
+	// Ab so vielen Fehlschlägen in Folge gilt der Homeserver als nicht erreichbar
+	private static final int UNREACHABLE_AFTER = 3;
+
+	// Anzahl der Proben, deren Median den Zustand bestimmt
+	private static final int RECENT = 5;
+
+	private static final Duration SUMMARY_INTERVAL = Duration.ofHours(1);
+
+	private static HomeserverProbe instance = null;
+
+	// Transaction-ID → Sendezeitpunkt (nanoTime) der laufenden Probe
+	private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LatencyHistogram outbound = new LatencyHistogram();
+	private final LatencyHistogram inbound = new LatencyHistogram();
+
+	private final long[] recent = new long[RECENT];
+	private int recentCount = 0;
+	private int consecutiveFailures = 0;
+	private volatile Health health = Health.UNKNOWN;
+	private long lastSummary = System.currentTimeMillis();
+
+	private TimerTask probeTask = null;
+
+	// Eine Probe zur Zeit; Ticks während einer langsamen Antwort verfallen statt TaskEngine-Threads zu blockieren
+	private final AtomicBoolean probing = new AtomicBoolean(false);
+
+	public static HomeserverProbe getInstance() {
+		if (instance == null)
+			instance = new HomeserverProbe();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (probeTask != null)
+			return;
+
+		probeTask = new TimerTask() {
+			@Override
+			public void run() {
+				probe();
+			}
+		};
+		long interval = MatrixBridgePlugin.PROBE_INTERVAL_SECONDS.getValue();
+		TaskEngine.getInstance().schedule(probeTask, Duration.ofSeconds(10), Duration.ofSeconds(interval));
+		registerStatistics();
+	}
+
+	public synchronized void stop() {
+		if (probeTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(probeTask);
+			probeTask = null;
+		}
+		unregisterStatistics();
+		inFlight.clear();
+		health = Health.UNKNOWN;
+	}
+
+	public Health getHealth() {
+		return health;
+	}
+
+	/**
+	 * true, solange der Homeserver langsam oder nicht erreichbar ist;
+	 * verschiebbare Arbeit sollte dann warten.
+	 */
+	public boolean isImpaired() {
+		Health h = health;
+		return h == Health.DEGRADED || h == Health.UNREACHABLE;
+	}
+
+	/**
+	 * Aufruf aus handlePing. Liefert true, wenn der Ping zu einer eigenen
+	 * Probe gehört.
+	 */
+	public boolean onPingReceived(String txnId) {
+		if (!txnId.startsWith(TXN_PREFIX))
+			return false;
+
+		Long sent = inFlight.get(txnId);
+		if (sent != null)
+			outbound.record((System.nanoTime() - sent) / 1_000_000);
+		return true;
+	}
+
+	private void probe() {
+		if (!probing.compareAndSet(false, true))
+			return;
+		try {
+			probeOnce();
+		} finally {
+			probing.set(false);
+		}
+	}
+
+	private void probeOnce() {
+		String appserviceId = MatrixBridgePlugin.APPSERVICE_ID.getValue();
+		if (appserviceId == null || appserviceId.isEmpty())
+			return;
+
+		String txnId = TXN_PREFIX + UUID.randomUUID();
+		long start = System.nanoTime();
+		inFlight.put(txnId, start);
+		try {
+			long reported = MatrixAPI.getInstance().pingAppservice(appserviceId, txnId);
+			long total = (System.nanoTime() - start) / 1_000_000;
+			roundTrip.record(total);
+			if (reported >= 0)
+				inbound.record(reported);
+			onResult(total);
+		} catch (IOException e) {
+			Log.debug("Homeserver ping failed: " + e.getMessage());
+			onResult(-1);
+		} finally {
+			inFlight.remove(txnId);
+		}
+
+		if (System.currentTimeMillis() - lastSummary >= SUMMARY_INTERVAL.toMillis()) {
+			Log.info("Homeserver latency (last hour): round trip " + roundTrip + ", bridge→homeserver " + outbound
+					+ ", homeserver→bridge " + inbound);
+			roundTrip.reset();
+			outbound.reset();
+			inbound.reset();
+			lastSummary = System.currentTimeMillis();
+		}
+	}
+
+	// totalMs < 0 steht für eine fehlgeschlagene Probe
+	private void onResult(long totalMs) {
+		Health next;
+		if (totalMs < 0) {
+			consecutiveFailures++;
+			next = consecutiveFailures >= UNREACHABLE_AFTER ? Health.UNREACHABLE : Health.DEGRADED;
+		} else {
+			consecutiveFailures = 0;
+			recent[recentCount++ % RECENT] = totalMs;
+			long[] window = Arrays.copyOf(recent, Math.min(recentCount, RECENT));
+			Arrays.sort(window);
+			long median = window[window.length / 2];
+			next = median > MatrixBridgePlugin.PROBE_DEGRADED_MS.getValue() ? Health.DEGRADED : Health.HEALTHY;
+		}
+
+		Health previous = health;
+		if (next == previous)
+			return;
+		health = next;
+		if (next == Health.HEALTHY)
+			Log.info("Homeserver health changed from " + previous + " to " + next);
+		else
+			Log.warn("Homeserver health changed from " + previous + " to " + next
+					+ (totalMs < 0 ? " after " + consecutiveFailures + " failed pings" : " (round trip " + totalMs + " ms)"));
+	}
+
+	private void registerStatistics() {
+		addStatistic("health", "Matrix Bridge homeserver health",
+				"Health of the homeserver from active pings: 0 = unknown, 1 = healthy, 2 = degraded, 3 = unreachable",
+				"state", () -> health.ordinal());
+		addStatistic("rtt_p95", "Matrix Bridge homeserver ping round trip (p95)",
+				"95th percentile of the appservice ping round trip in the current hour", "ms",
+				() -> Math.max(0, roundTrip.getPercentile(0.95)));
+		addStatistic("outbound_p95", "Matrix Bridge bridge→homeserver latency (p95)",
+				"95th percentile of the time until the homeserver's ping reaches the bridge", "ms",
+				() -> Math.max(0, outbound.getPercentile(0.95)));
+		addStatistic("inbound_p95", "Matrix Bridge homeserver→bridge latency (p95)",
+				"95th percentile of the ping duration reported by the homeserver", "ms",
+				() -> Math.max(0, inbound.getPercentile(0.95)));
+	}
+
+	private void unregisterStatistics() {
+		for (String key : new String[] { "health", "rtt_p95", "outbound_p95", "inbound_p95" })
+			StatisticsManager.getInstance().removeStatistic(STATISTIC_PREFIX + key);
+	}
+
+	private static void addStatistic(String key, String name, String description, String units,
+			DoubleSupplier value) {
+		StatisticsManager.getInstance().addStatistic(STATISTIC_PREFIX + key, new Statistic() {
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public Type getStatType() {
+				return Type.amount;
+			}
+
+			@Override
+			public String getDescription() {
+				return description;
+			}
+
+			@Override
+			public String getUnits() {
+				return units;
+			}
+
+			@Override
+			public double sample() {
+				return value.getAsDouble();
+			}
+
+			@Override
+			public boolean isPartialSample() {
+				return false;
+			}
+		});
+	}
+}
@@ -0,0 +1,95 @@
+package de.mopsdom.matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.jivesoftware.util.JiveGlobals;
+
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Verbindungsdaten eines Homeservers. Das Profil "default" liest die
+ * bisherigen Einstellungen (homeserver_url, as_token, hs_token); weitere
+ * Profile aus HOMESERVER_PROFILES werden über
+ * plugin.matrix_bridge.homeservers.&lt;name&gt;.url, .as_token, .hs_token,
+ * .domains und .max_concurrent_requests konfiguriert. Alle Werte werden bei
+ * jedem Zugriff gelesen und sind damit wie die übrigen Einstellungen dynamisch.
+ */
+public class HomeserverProfile {
+
+	public static final String DEFAULT = "default";
+
+	public static final String PREFIX = "plugin.matrix_bridge.homeservers.";
+
+	private final String name;
+
+	public HomeserverProfile(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isDefault() {
+		return DEFAULT.equals(name);
+	}
+
+	public String getUrl() {
+		if (isDefault())
+			return MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue();
+		return JiveGlobals.getProperty(PREFIX + name + ".url");
+	}
+
+	public String getAsToken() {
+		if (isDefault())
+			return MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue();
+		return JiveGlobals.getProperty(PREFIX + name + ".as_token");
+	}
+
+	public String getHsToken() {
+		if (isDefault())
+			return MatrixBridgePlugin.MATRIX_HS_TOKEN.getValue();
+		return JiveGlobals.getProperty(PREFIX + name + ".hs_token");
+	}
+
+	// Wird nur beim Anlegen des Clients gelesen
+	public int getMaxConcurrentRequests() {
+		int fallback = MatrixBridgePlugin.HOMESERVER_MAX_CONCURRENT_REQUESTS.getValue();
+		return isDefault() ? fallback
+				: Math.max(1, JiveGlobals.getIntProperty(PREFIX + name + ".max_concurrent_requests", fallback));
+	}
+
+	/**
+	 * XMPP-Domains und Matrix-Servernamen, die zu diesem Homeserver geroutet
+	 * werden. Das Standardprofil nimmt alle übrigen auf.
+	 */
+	public List<String> getDomains() {
+		List<String> domains = new ArrayList<>();
+		if (isDefault())
+			return domains;
+
+		String value = JiveGlobals.getProperty(PREFIX + name + ".domains");
+		if (value == null)
+			return domains;
+		for (String domain : value.split(",")) {
+			if (!domain.isBlank())
+				domains.add(domain.trim().toLowerCase(Locale.ROOT));
+		}
+		return domains;
+	}
+
+	/**
+	 * Anhang für Namen von Caches, Speichern und Statistiken; beim
+	 * Standardprofil leer, damit bestehende Namen erhalten bleiben.
+	 */
+	public String getSuffix() {
+		return isDefault() ? "" : "_" + name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
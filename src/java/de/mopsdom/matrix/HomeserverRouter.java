@@ -0,0 +1,141 @@
+package de.mopsdom.matrix;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Routingtabelle XMPP-Domain bzw. Matrix-Servername → Homeserver-Profil.
+ * Jede Domain aus plugin.matrix_bridge.homeservers.&lt;name&gt;.domains führt
+ * zur {@link MatrixAPI} dieses Profils, Subdomains (z. B. die Component oder
+ * ein MUC-Dienst) zu der ihrer Elterndomain; alles Übrige geht an das
+ * Standardprofil.
+ */
+public class HomeserverRouter {
+
+	private static final Logger Log = LoggerFactory.getLogger(HomeserverRouter.class);
+
+	private static HomeserverRouter instance = null;
+
+	// Profilname → API, ohne das Standardprofil
+	private final Map<String, MatrixAPI> apis = new LinkedHashMap<>();
+
+	// Domain → API; wird bei jeder Änderung komplett ersetzt, Lesezugriffe brauchen keine Sperre
+	private volatile Map<String, MatrixAPI> routes = Map.of();
+
+	public static HomeserverRouter getInstance() {
+		if (instance == null)
+			instance = new HomeserverRouter();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		reload();
+	}
+
+	public synchronized void stop() {
+		routes = Map.of();
+		for (MatrixAPI api : apis.values()) {
+			api.getBreakers().unregisterStatistics();
+			api.close();
+		}
+		apis.clear();
+	}
+
+	/**
+	 * Liest HOMESERVER_PROFILES und die Domains der Profile neu. Profile, die
+	 * bestehen bleiben, behalten Client und Caches.
+	 */
+	public synchronized void reload() {
+		List<String> names = new ArrayList<>();
+		String value = MatrixBridgePlugin.HOMESERVER_PROFILES.getValue();
+		if (value != null) {
+			for (String name : value.split(",")) {
+				name = name.trim();
+				if (!name.isEmpty() && !HomeserverProfile.DEFAULT.equals(name) && !names.contains(name))
+					names.add(name);
+			}
+		}
+
+		for (String name : new ArrayList<>(apis.keySet())) {
+			if (!names.contains(name)) {
+				MatrixAPI api = apis.remove(name);
+				api.getBreakers().unregisterStatistics();
+				api.close();
+				Log.info("Removed homeserver profile " + name);
+			}
+		}
+
+		Map<String, MatrixAPI> next = new HashMap<>();
+		for (String name : names) {
+			MatrixAPI api = apis.get(name);
+			if (api == null) {
+				api = new MatrixAPI(new HomeserverProfile(name));
+				api.getBreakers().registerStatistics();
+				apis.put(name, api);
+				Log.info("Added homeserver profile " + name + " (" + api.getProfile().getUrl() + ")");
+			}
+			for (String domain : api.getProfile().getDomains()) {
+				MatrixAPI previous = next.putIfAbsent(domain, api);
+				if (previous != null && previous != api)
+					Log.warn("Domain " + domain + " is mapped to homeserver profiles " + previous.getProfile() + " and "
+							+ name + ", using " + previous.getProfile());
+			}
+		}
+		routes = next;
+	}
+
+	/**
+	 * API für eine XMPP-Domain oder einen Matrix-Servernamen; ohne passenden
+	 * Eintrag die des Standardprofils.
+	 */
+	public MatrixAPI route(String domain) {
+		Map<String, MatrixAPI> current = routes;
+		if (domain != null && !current.isEmpty()) {
+			String candidate = domain.toLowerCase(Locale.ROOT);
+			// Servernamen können einen Port tragen (example.org:8448)
+			int port = candidate.lastIndexOf(':');
+			if (port > 0 && candidate.indexOf(']') < port)
+				candidate = candidate.substring(0, port);
+
+			while (true) {
+				MatrixAPI api = current.get(candidate);
+				if (api != null)
+					return api;
+				int dot = candidate.indexOf('.');
+				if (dot < 0)
+					break;
+				candidate = candidate.substring(dot + 1);
+			}
+		}
+		return MatrixAPI.getInstance();
+	}
+
+	/**
+	 * API, deren hs_token der Homeserver bei einem eingehenden Aufruf
+	 * mitschickt, oder null bei unbekanntem Token.
+	 */
+	public MatrixAPI forHsToken(String token) {
+		if (token == null || token.isEmpty())
+			return null;
+		if (token.equals(MatrixBridgePlugin.MATRIX_HS_TOKEN.getValue()))
+			return MatrixAPI.getInstance();
+
+		synchronized (this) {
+			for (MatrixAPI api : apis.values()) {
+				if (token.equals(api.getProfile().getHsToken()))
+					return api;
+			}
+		}
+		return null;
+	}
+}
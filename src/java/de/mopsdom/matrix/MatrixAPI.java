@@ -2,10 +2,13 @@ package de.mopsdom.matrix;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.UUID;
 
+import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.json.JSONArray;
@@ -13,11 +16,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 
 import de.mopsdom.matrix.utils.HttpUtils;
+import de.mopsdom.matrix.utils.PropertiesStore;
 import de.mopsdom.matrix.utils.Utils;
 import de.mopsdom.xmpp.MatrixBridgePlugin;
+import de.mopsdom.xmpp.PuppetProvisioner;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -31,24 +37,65 @@ public class MatrixAPI {
 
 	private Cache<String, Boolean> whoamiCache;
 	private Cache<String, String> roomCache;
+	private Cache<String, String> roomAliasCache;
 	private Cache<String, Boolean> joinedRoomCache;
 	private Cache<String, String> publishedMucCache;
 
+	// Kanonische DM-Aliase, deren Altbestand bereits übernommen wurde
+	private final PropertiesStore dmMigrations;
+
+	private final HomeserverProfile profile;
+
+	private final CircuitBreakerRegistry breakers;
+
 	private OkHttpClient client;
 
+	// Gleicher Verbindungspool, aber ohne Limiter und Circuit Breaker: die Probe misst den Homeserver selbst
+	private OkHttpClient probeClient;
+
 	private static MatrixAPI instance = null;
 
 	public MatrixAPI() {
-		instance = this;
-		client = MatrixBridgePlugin.HTTP_IGNORE_SSL.getValue() ? HttpUtils.createUnsafeClient()
+		this(new HomeserverProfile(HomeserverProfile.DEFAULT));
+	}
+
+	/**
+	 * API für einen Homeserver. Jedes Profil hat einen eigenen Client
+	 * (Verbindungspool, Dispatcher), eigene Limits, Circuit Breaker und
+	 * Caches, damit Last auf einem Homeserver die anderen nicht ausbremst.
+	 */
+	public MatrixAPI(HomeserverProfile profile) {
+		this.profile = profile;
+		if (profile.isDefault()) {
+			instance = this;
+			breakers = CircuitBreakerRegistry.getInstance();
+		} else {
+			breakers = new CircuitBreakerRegistry(profile);
+		}
+
+		probeClient = MatrixBridgePlugin.HTTP_IGNORE_SSL.getValue() ? HttpUtils.createUnsafeClient()
 				: HttpUtils.createSafeClient();
+		client = probeClient.newBuilder()
+				.addInterceptor(Tracer.createInterceptor())
+				// Der Limiter liegt vor dem Breaker, damit Wartezeit auf einen lokalen Slot nicht als langsamer Aufruf zählt
+				.addInterceptor(HttpUtils.createConcurrencyLimiter(profile.getMaxConcurrentRequests()))
+				.addInterceptor(breakers.createInterceptor())
+				.build();
 
-		whoamiCache = CacheFactory.createCache("MatrixApiWhoami");
-		roomCache = CacheFactory.createCache("MatrixApiRoom");
-		joinedRoomCache = CacheFactory.createCache("MatrixApiJoinedRooms");
-		publishedMucCache = CacheFactory.createCache("MatrixApiPublishedRooms");
+		String suffix = profile.getSuffix();
+		whoamiCache = CacheFactory.createCache("MatrixApiWhoami" + suffix);
+		roomCache = CacheFactory.createCache("MatrixApiRoom" + suffix);
+		roomAliasCache = CacheFactory.createCache("MatrixApiRoomAlias" + suffix);
+		joinedRoomCache = CacheFactory.createCache("MatrixApiJoinedRooms" + suffix);
+		publishedMucCache = CacheFactory.createCache("MatrixApiPublishedRooms" + suffix);
+		dmMigrations = new PropertiesStore("dm_rooms" + suffix);
 	}
 
+	/**
+	 * API des Standardprofils. Für Aufrufe im Namen eines Benutzers oder Raums
+	 * stattdessen {@link #forJid(JID)}, {@link #forMxid(String)} bzw.
+	 * {@link #forDomain(String)} verwenden.
+	 */
 	public static MatrixAPI getInstance() {
 		if (instance == null)
 			instance = new MatrixAPI();
@@ -56,29 +103,62 @@ public class MatrixAPI {
 		return instance;
 	}
 
+	public static MatrixAPI forDomain(String domain) {
+		return HomeserverRouter.getInstance().route(domain);
+	}
+
+	public static MatrixAPI forJid(JID jid) {
+		return forDomain(jid != null ? jid.getDomain() : null);
+	}
+
+	// @user:server, #alias:server und !room:server → server
+	public static MatrixAPI forMxid(String matrixId) {
+		int colon = matrixId != null ? matrixId.indexOf(':') : -1;
+		return forDomain(colon >= 0 ? matrixId.substring(colon + 1) : null);
+	}
+
+	public HomeserverProfile getProfile() {
+		return profile;
+	}
+
+	public CircuitBreakerRegistry getBreakers() {
+		return breakers;
+	}
+
+	// Gibt Verbindungen und Threads eines entfernten Profils frei
+	public void close() {
+		client.dispatcher().executorService().shutdown();
+		client.connectionPool().evictAll();
+		dmMigrations.close();
+	}
+
 	private Request.Builder authRequest(String path) {
-		return new Request.Builder().url(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + path)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue());
+		return new Request.Builder().url(profile.getUrl() + path)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken());
 	}
 
 	public boolean canActAsUser(String mxid) {
+		// Vorab registrierte Puppets brauchen keine whoami-Prüfung
+		if (PuppetProvisioner.getInstance().isRegistered(mxid))
+			return true;
+
 		if (whoamiCache.containsKey(mxid)) {
 			return whoamiCache.get(mxid);
 		}
 
 		try {
-			if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+			if (profile.getUrl()==null||profile.getUrl().isEmpty())
 			{
-				Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+				Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 				return false;
 			}
 			
 			HttpUrl url = HttpUrl
-					.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/account/whoami")
+					.parse(profile.getUrl() + "/_matrix/client/v3/account/whoami")
 					.newBuilder().addQueryParameter("user_id", mxid).build();
 
 			Request request = new Request.Builder().url(url)
-					.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue()).get()
+					.addHeader("Authorization", "Bearer " + profile.getAsToken()).get()
 					.build();
 
 			try (Response response = client.newCall(request).execute()) {
@@ -102,24 +182,128 @@ public class MatrixAPI {
 		}
 	}
 
-	public void sendMessageToUser(Message message) {
-
-		String xmppSender = message.getFrom().getNode(); // z.B. user1
-		String xmppRecipient = message.getTo().getNode(); // z.B. user2
+	// false, wenn die Nachricht nicht zugestellt werden konnte (der Absender bekommt dann einen Fehler)
+	public boolean sendMessageToUser(Message message) {
 
 		String matrixSender = Utils.convertXmppUserJIDToMatrixID(message.getFrom(), "@xmpp_"); // z.B.
 																								// @user1:matrix.local
-		String matrixRecipient = Utils.convertXmppUserJIDToMatrixID(message.getTo(), "@xmpp_"); // z.B.
-																								// @user2:matrix.local
+		String roomId = prepareDirectRoom(message.getFrom(), message.getTo());
+		if (roomId==null)
+		{
+			Log.error("roomId = null, abort sending message");
+			return false;
+		}
 
-		// Räume werden anhand der Teilnehmer eindeutig benannt
-		String roomAliasLocalpart = xmppSender + "_bridge_" + xmppRecipient;
-		String roomAlias = "#" + roomAliasLocalpart + ":" + message.getTo().getDomain();
+		// 5. Nachricht vorbereiten (Dateien werden ins Media Repository gestreamt)
+		JSONObject msg = MediaBridge.getInstance().createMediaContent(this, message);
+		if (msg == null) {
+			String body = message.getBody();
+			if (body == null || body.trim().isEmpty()) {
+				Log.warn("Message has no body");
+				return true;
+			}
+
+			msg = new JSONObject();
+			msg.put("msgtype", "m.text");
+			msg.put("body", body);
+		}
+		MessageRelations.applyRelations(message, roomId, msg);
+		RichText.applyFormatting(message, msg);
+
+		String txnId = message.getID() != null ? message.getID() : UUID.randomUUID().toString();
+
+		// 6. Übergroße Nachrichten teilen bzw. als Datei hochladen
+		List<JSONObject> events;
+		try {
+			events = OversizeMessages.prepare(this, msg);
+		} catch (IOException e) {
+			Log.error("Error preparing oversize message: " + e.getMessage());
+			return false;
+		}
+
+		for (int i = 0; i < events.size(); i++) {
+			String eventId;
+			try {
+				// Eigene Transaktions-ID je Teil, damit Wiederholungen idempotent bleiben
+				eventId = sendRoomEvent(roomId, matrixSender, i == 0 ? txnId : txnId + "." + i, events.get(i));
+			} catch (IOException e) {
+				Log.error("Error sending message to Matrix: " + e.getMessage());
+				return false;
+			}
+
+			// Event-ID merken, damit Chat Markers und Receipts zugeordnet werden können
+			if (i == 0 && message.getID() != null && eventId != null)
+				EventIdMap.getInstance().put(roomId, message.getID(), eventId);
+			Tracer.expectEcho(eventId);
+		}
+		TypingBridge.getInstance().onMessageSent(roomId, matrixSender);
+		return true;
+	}
+
+	// m.room.message senden; der Inhalt wird direkt in den Request serialisiert. Liefert die Event-ID oder null.
+	private String sendRoomEvent(String roomId, String matrixSender, String txnId, JSONObject content) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			throw new IOException("Homeserver URL not set");
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/" + roomId
+						+ "/send/m.room.message/" + txnId)
+				.newBuilder().addQueryParameter("user_id", matrixSender) // masquerade
+				.build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.post(HttpUtils.jsonBody(content)).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				String errorBody = response.body() != null ? response.body().string() : "null";
+				throw new IOException("Matrix send message failed: " + errorBody);
+			}
+
+			if (response.body() == null)
+				return null;
+			try {
+				return new JSONObject(response.body().string()).optString("event_id", null);
+			} catch (JSONException e) {
+				Log.debug("Send response without event_id: " + e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Schritte 1–4 einer Direktnachricht: DM-Raum auflösen bzw. anlegen,
+	 * Absender joinen und Empfänger einladen. Liefert die Raum-ID oder null.
+	 * Danach liegt alles im Cache, weitere Nachrichten kosten nur das /send.
+	 */
+	public String prepareDirectRoom(JID from, JID to) {
+		return prepareDirectRoom(from, to, true);
+	}
+
+	/**
+	 * Wie prepareDirectRoom(from, to); ohne invite wird der Raum nur angelegt
+	 * und der Absender gejoint. Die Einladung folgt dann mit der ersten
+	 * echten Nachricht, damit Matrix-Nutzer keine Einladungen zu leeren
+	 * Räumen bekommen.
+	 */
+	public String prepareDirectRoom(JID from, JID to, boolean invite) {
+		String matrixSender = Utils.convertXmppUserJIDToMatrixID(from, "@xmpp_");
+		String matrixRecipient = Utils.convertXmppUserJIDToMatrixID(to, "@xmpp_");
+
+		String roomAlias = getDirectRoomAlias(from, to);
+		if (roomAlias == null) {
+			Log.warn("No direct room for " + from + " → " + to);
+			return null;
+		}
 		String roomId = null;
 
 		try {
 			// 1. Prüfen ob Alias existiert → Raum-ID holen
-			roomId = resolveRoomAlias(roomAlias);
+			roomId = resolveDirectRoom(from, to);
 			if (roomId==null)
 			{
 				try {
@@ -127,7 +311,7 @@ public class MatrixAPI {
 					roomId = createRoom(roomAlias, matrixRecipient, true);
 				} catch (IOException ce) {
 					Log.error("Failed to create room: " + ce.getMessage());
-					return;
+					return null;
 				}
 			}
 
@@ -139,70 +323,142 @@ public class MatrixAPI {
 				roomId = createRoom(roomAlias, matrixRecipient, true);
 			} catch (IOException ce) {
 				Log.error("Failed to create room: " + ce.getMessage());
-				return;
+				return null;
 			}
 		} catch (IOException e) {
-			return;
+			return null;
 		}
 
 		if (roomId==null)
-		{
-			Log.error("roomId = null, abort sending message");
-		}
+			return null;
+		dmMigrations.put(roomAlias, roomId);
+
 		// 3. Sender joinen lassen (virtueller User = masquerade via user_id)
 		try {
+			// Normalerweise schon beim Start bzw. beim Anlegen des Benutzers erledigt
+			PuppetProvisioner.getInstance().ensureRegistered(matrixSender);
 			joinRoomIfNecessary(roomId, matrixSender);
 		} catch (IOException je) {
 			Log.warn("Sender could not join room: " + je.getMessage());
-			return;
+			return null;
 		}
 
-		// 4. Zielnutzer einladen (falls noch nicht im Raum)
-		try {
-			if (!isUserInRoom(roomId, matrixRecipient, matrixSender)) {
-				inviteUserToRoom(roomId, matrixRecipient, matrixSender);
+		// 4. Zielnutzer einladen (falls noch nicht im Raum); Mitglied oder eingeladen wird gecacht
+		String recipientKey = roomId + "|" + matrixRecipient;
+		if (invite && joinedRoomCache.get(recipientKey) == null) {
+			try {
+				if (!isUserInRoom(roomId, matrixRecipient, matrixSender)) {
+					inviteUserToRoom(roomId, matrixRecipient, matrixSender);
+				}
+				joinedRoomCache.put(recipientKey, true);
+			} catch (IOException ie) {
+				Log.warn("Failed to invite recipient: " + ie.getMessage());
 			}
-		} catch (IOException ie) {
-			Log.warn("Failed to invite recipient: " + ie.getMessage());
 		}
+		return roomId;
+	}
 
-		// 5. Nachricht vorbereiten
-		String body = message.getBody();
-		if (body == null || body.trim().isEmpty()) {
-			Log.warn("Message has no body");
-			return;
+	// true, wenn der DM-Raum schon aufgelöst bzw. angelegt und in dm_rooms vermerkt ist
+	public boolean isDirectRoomKnown(JID from, JID to) {
+		String roomAlias = getDirectRoomAlias(from, to);
+		String roomId = roomAlias != null ? dmMigrations.get(roomAlias) : null;
+		return roomId != null && !roomId.isEmpty();
+	}
+
+	// Räume werden anhand der sortierten Teilnehmer benannt → eine Unterhaltung, ein Raum, egal wer zuerst schreibt.
+	// null, wenn eine Seite keinen Benutzer hat (Server, Component, Domain der Bridge)
+	public static String getDirectRoomAlias(JID from, JID to) {
+		String a = from != null ? from.getNode() : null;
+		String b = to != null ? to.getNode() : null;
+		if (a == null || b == null)
+			return null;
+		return a.compareTo(b) <= 0 ? "#" + a + "_bridge_" + b + ":" + to.getDomain()
+				: "#" + b + "_bridge_" + a + ":" + to.getDomain();
+	}
+
+	/**
+	 * Umkehrung von getDirectRoomAlias(): [Absender an der Component, lokaler
+	 * XMPP-Empfänger] für ein Event von senderId. Ist der Absender keiner der
+	 * beiden Teilnehmer, gilt der zweite als Absender.
+	 */
+	public static JID[] getDirectRoomParticipants(String roomAlias, String senderId) {
+		if (roomAlias == null || !roomAlias.startsWith("#") || !roomAlias.contains(":"))
+			return null;
+
+		String localpart = roomAlias.substring(1, roomAlias.indexOf(':'));
+		String domain = roomAlias.substring(roomAlias.indexOf(':') + 1);
+		int separator = localpart.indexOf("_bridge_");
+		if (separator <= 0)
+			return null;
+
+		String first = localpart.substring(0, separator);
+		String second = localpart.substring(separator + "_bridge_".length());
+		String xmppDomain = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+		if (first.equals(getSenderNode(senderId)))
+			return new JID[] { new JID(first, domain, null), new JID(second, xmppDomain, null) };
+		return new JID[] { new JID(second, domain, null), new JID(first, xmppDomain, null) };
+	}
+
+	// @xmpp_alice:example.org → alice
+	private static String getSenderNode(String senderId) {
+		if (senderId == null || !senderId.startsWith("@"))
+			return null;
+		String localpart = senderId.substring(1, senderId.contains(":") ? senderId.indexOf(':') : senderId.length());
+		return localpart.startsWith("xmpp_") ? localpart.substring("xmpp_".length()) : localpart;
+	}
+
+	/**
+	 * Löst den kanonischen DM-Raum auf. Beim ersten Zugriff pro Unterhaltung
+	 * werden Räume aus der Zeit vor der Sortierung übernommen: existiert nur
+	 * der Raum der Gegenrichtung, bekommt er den kanonischen Alias; existieren
+	 * beide, wird der überzählige per m.room.tombstone auf den kanonischen
+	 * Raum umgeleitet.
+	 */
+	public String resolveDirectRoom(JID from, JID to) throws IOException {
+		String roomAlias = getDirectRoomAlias(from, to);
+		String roomId = resolveRoomAliasOrNull(roomAlias);
+		if (dmMigrations.get(roomAlias) != null)
+			return roomId;
+
+		String legacyAlias = "#" + to.getNode() + "_bridge_" + from.getNode() + ":" + to.getDomain();
+		if (legacyAlias.equals(roomAlias))
+			legacyAlias = "#" + from.getNode() + "_bridge_" + to.getNode() + ":" + to.getDomain();
+
+		String legacyRoomId = legacyAlias.equals(roomAlias) ? null : resolveRoomAliasOrNull(legacyAlias);
+		if (legacyRoomId != null && roomId == null) {
+			createRoomAlias(roomAlias, legacyRoomId);
+			cacheRoom(roomAlias, legacyRoomId);
+			roomId = legacyRoomId;
+			Log.info("Migrated direct room " + legacyAlias + " to " + roomAlias);
+		} else if (legacyRoomId != null && !legacyRoomId.equals(roomId)) {
+			sendTombstone(legacyRoomId, roomId);
+			Log.info("Merged direct room " + legacyAlias + " into " + roomAlias);
 		}
 
-		JSONObject msg = new JSONObject();
-		msg.put("msgtype", "m.text");
-		msg.put("body", body);
+		dmMigrations.put(roomAlias, roomId != null ? roomId : "");
+		return roomId;
+	}
 
-		String txnId = message.getID() != null ? message.getID() : UUID.randomUUID().toString();
-		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
-		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
-			return;
+	private String resolveRoomAliasOrNull(String roomAlias) throws IOException {
+		try {
+			return resolveRoomAlias(roomAlias);
+		} catch (FileNotFoundException e) {
+			return null;
 		}
+	}
 
-		HttpUrl url = HttpUrl
-				.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/rooms/" + roomId
-						+ "/send/m.room.message/" + txnId)
-				.newBuilder().addQueryParameter("user_id", matrixSender) // masquerade
-				.build();
+	private void cacheRoom(String roomAlias, String roomId) {
+		roomCache.put(roomAlias, roomId);
+		roomAliasCache.put(roomId, roomAlias);
+	}
 
-		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue())
-				.post(RequestBody.create(msg.toString(), MediaType.parse("application/json"))).build();
+	// Nur aus dem Cache, ohne Homeserver-Anfrage (für unwichtigen Verkehr wie Typing/Receipts)
+	public String getCachedRoomId(String roomAlias) {
+		return roomAlias != null ? roomCache.get(roomAlias) : null;
+	}
 
-		try (Response response = client.newCall(request).execute()) {
-			if (!response.isSuccessful()) {
-				String errorBody = response.body() != null ? response.body().string() : "null";
-				Log.error("Matrix send message failed: " + errorBody);
-			}
-		} catch (IOException e) {
-			Log.error("Error sending message to Matrix: " + e.getMessage());
-		}
+	public String getCachedRoomAlias(String roomId) {
+		return roomAliasCache.get(roomId);
 	}
 
 	private String getLocalAliasPart(String roomAlias) {
@@ -214,18 +470,18 @@ public class MatrixAPI {
 			return roomCache.get(roomAlias);
 		}
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return null;
 		}
 
-		HttpUrl url = HttpUrl.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()
+		HttpUrl url = HttpUrl.parse(profile.getUrl()
 				+ "/_matrix/client/v3/directory/room/" + URLEncoder.encode(roomAlias, StandardCharsets.UTF_8))
 				.newBuilder().build();
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue()).get().build();
+				.addHeader("Authorization", "Bearer " + profile.getAsToken()).get().build();
 
 		try (Response response = client.newCall(request).execute()) {
 			if (!response.isSuccessful()) {
@@ -240,7 +496,7 @@ public class MatrixAPI {
 			}
 			JSONObject obj = new JSONObject(response.body().string());
 			String roomid = obj.getString("room_id");
-			roomCache.put(roomAlias, roomid);
+			cacheRoom(roomAlias, roomid);
 			return roomid;
 		}
 	}
@@ -254,20 +510,20 @@ public class MatrixAPI {
 		payload.put("is_direct", is_direkt);
 		payload.put("preset", "trusted_private_chat");
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return null;
 		}
 
 		HttpUrl url = HttpUrl
-				.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/createRoom")
+				.parse(profile.getUrl() + "/_matrix/client/v3/createRoom")
 				.newBuilder()
 				// .addQueryParameter("user_id", invitee) // creator acts as invitee
 				.build();
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
 				.post(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
 
 		try (Response response = client.newCall(request).execute()) {
@@ -276,7 +532,7 @@ public class MatrixAPI {
 			}
 			JSONObject obj = new JSONObject(response.body().string());
 			String roomid = obj.getString("room_id");
-			roomCache.put(roomAlias, roomid);
+			cacheRoom(roomAlias, roomid);
 			return roomid;
 		}
 	}
@@ -289,19 +545,19 @@ public class MatrixAPI {
 			return;
 		}
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return;
 		}
 
 		HttpUrl url = HttpUrl
-				.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/join/"
+				.parse(profile.getUrl() + "/_matrix/client/v3/join/"
 						+ URLEncoder.encode(roomId, StandardCharsets.UTF_8))
 				.newBuilder().addQueryParameter("user_id", matrixUserId).build();
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
 				.post(RequestBody.create("", MediaType.parse("application/json"))).build();
 
 		try (Response response = client.newCall(request).execute()) {
@@ -323,19 +579,19 @@ public class MatrixAPI {
 		JSONObject payload = new JSONObject();
 		payload.put("user_id", userId);
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return;
 		}
 
 		HttpUrl url = HttpUrl
-				.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/rooms/"
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
 						+ URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/invite")
 				.newBuilder().addQueryParameter("user_id", fromUserId).build();
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
 				.post(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
 
 		try (Response response = client.newCall(request).execute()) {
@@ -346,19 +602,19 @@ public class MatrixAPI {
 	}
 
 	private boolean isUserInRoom(String roomId, String userId, String actingUser) throws IOException {
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return false;
 		}
 		
 		HttpUrl url = HttpUrl
-				.parse(MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/rooms/"
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
 						+ URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/joined_members")
 				.newBuilder().addQueryParameter("user_id", actingUser).build();
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue()).get().build();
+				.addHeader("Authorization", "Bearer " + profile.getAsToken()).get().build();
 
 		try (Response response = client.newCall(request).execute()) {
 			if (!response.isSuccessful()) {
@@ -387,17 +643,17 @@ public class MatrixAPI {
 		}
 		payload.put("topic", topic != null ? topic : "not available");
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return;
 		}
 
-		String url = MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/directory/list/room/"
+		String url = profile.getUrl() + "/_matrix/client/v3/directory/list/room/"
 				+ encodeRoomId(roomId);
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
 				.post(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
 
 		try {
@@ -414,17 +670,17 @@ public class MatrixAPI {
 	// Raum entfernen
 	public void removeRoom(String roomId) {
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return;
 		}
 		
-		String url = MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue() + "/_matrix/client/v3/directory/list/room/"
+		String url = profile.getUrl() + "/_matrix/client/v3/directory/list/room/"
 				+ encodeRoomId(roomId);
 
 		Request request = new Request.Builder().url(url)
-				.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue()).delete().build();
+				.addHeader("Authorization", "Bearer " + profile.getAsToken()).delete().build();
 
 		try {
 			Response response = client.newCall(request).execute();
@@ -439,20 +695,20 @@ public class MatrixAPI {
 	
 	public JSONArray getPublicRooms() throws IOException, JSONException {
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return null;
 		}
 		
-	    String url = MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()  + "/_matrix/client/v3/publicRooms?limit=50";
+	    String url = profile.getUrl()  + "/_matrix/client/v3/publicRooms?limit=50";
 
 	    Request.Builder builder = new Request.Builder()
 	        .url(url)
 	        .get();
 
-	    if (MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue() != null) {
-	        builder.addHeader("Authorization", "Bearer " + MatrixBridgePlugin.MATRIX_AS_TOKEN.getValue());
+	    if (profile.getAsToken() != null) {
+	        builder.addHeader("Authorization", "Bearer " + profile.getAsToken());
 	    }
 
 	    Request request = builder.build();
@@ -473,9 +729,9 @@ public class MatrixAPI {
 	
 	public JSONObject getUserProfile(String userId) throws IOException, FileNotFoundException {
 		
-		if (MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue()==null||MatrixBridgePlugin.MATRIX_HOMESERVER_URL.getValue().isEmpty())
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
 		{
-			Log.error("MatrixBridgePlugin.MATRIX_HOMESERVER_URL nicht gesetzt!");
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
 			return null;
 		}
 
@@ -495,6 +751,321 @@ public class MatrixAPI {
 		return new JSONObject(response.body().string());
 	}
 
+	public String uploadMedia(byte[] data, String mimeType, String fileName) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return null;
+		}
+
+		HttpUrl.Builder urlBuilder = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/media/v3/upload").newBuilder();
+		if (fileName != null)
+			urlBuilder.addQueryParameter("filename", fileName);
+
+		Request request = new Request.Builder().url(urlBuilder.build())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.post(RequestBody.create(data, MediaType.parse(mimeType))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Media upload failed: " + response.code());
+			}
+			JSONObject obj = new JSONObject(response.body().string());
+			return obj.getString("content_uri");
+		}
+	}
+
+	public String uploadMedia(InputStream in, long contentLength, String mimeType, String fileName) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return null;
+		}
+
+		HttpUrl.Builder urlBuilder = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/media/v3/upload").newBuilder();
+		if (fileName != null)
+			urlBuilder.addQueryParameter("filename", fileName);
+
+		Request request = new Request.Builder().url(urlBuilder.build())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.post(HttpUtils.streamingBody(in, contentLength, MediaType.parse(mimeType))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Media upload failed: " + response.code());
+			}
+			JSONObject obj = new JSONObject(response.body().string());
+			return obj.getString("content_uri");
+		}
+	}
+
+	// Liefert die offene Response – der Aufrufer muss sie schließen
+	public Response downloadMedia(String serverName, String mediaId) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			throw new IOException("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+		}
+
+		String path = URLEncoder.encode(serverName, StandardCharsets.UTF_8) + "/"
+				+ URLEncoder.encode(mediaId, StandardCharsets.UTF_8);
+
+		// Authenticated Media (Matrix 1.11), ältere Homeserver kennen nur den v3 Endpunkt
+		Response response = client.newCall(authRequest("/_matrix/client/v1/media/download/" + path).get().build()).execute();
+		if (response.code() == 404 || response.code() == 405) {
+			response.close();
+			response = client.newCall(authRequest("/_matrix/media/v3/download/" + path).get().build()).execute();
+		}
+
+		if (!response.isSuccessful()) {
+			int code = response.code();
+			response.close();
+			if (code == 404)
+				throw new FileNotFoundException("Media not found: mxc://" + serverName + "/" + mediaId);
+			throw new IOException("Media download failed: " + code);
+		}
+		return response;
+	}
+
+	public void setTyping(String roomId, String userId, boolean typing, long timeout) throws IOException {
+		JSONObject payload = new JSONObject();
+		payload.put("typing", typing);
+		if (typing)
+			payload.put("timeout", timeout);
+
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
+						+ encodeRoomId(roomId) + "/typing/" + URLEncoder.encode(userId, StandardCharsets.UTF_8))
+				.newBuilder().addQueryParameter("user_id", userId).build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.put(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Typing notification failed: " + response.code());
+			}
+		}
+	}
+
+	/**
+	 * Registriert einen Puppet im Namespace des Appservice; ein bereits
+	 * existierender Benutzer (M_USER_IN_USE) gilt ebenfalls als registriert.
+	 */
+	public void registerPuppet(String localpart) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			throw new IOException("Homeserver URL not set");
+		}
+
+		JSONObject payload = new JSONObject();
+		payload.put("type", "m.login.application_service");
+		payload.put("username", localpart);
+		payload.put("inhibit_login", true);
+
+		Request request = authRequest("/_matrix/client/v3/register")
+				.post(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (response.isSuccessful())
+				return;
+
+			String body = response.body() != null ? response.body().string() : "";
+			if (response.code() == 400 && body.contains("M_USER_IN_USE"))
+				return;
+			throw new IOException("Registration of " + localpart + " failed: " + response.code() + " " + body);
+		}
+	}
+
+	public void createRoomAlias(String roomAlias, String roomId) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		Request request = authRequest("/_matrix/client/v3/directory/room/" + URLEncoder.encode(roomAlias, StandardCharsets.UTF_8))
+				.put(RequestBody.create(new JSONObject().put("room_id", roomId).toString(), MediaType.parse("application/json")))
+				.build();
+
+		try (Response response = client.newCall(request).execute()) {
+			// 409: Alias existiert bereits (z. B. von einem anderen Cluster-Knoten angelegt)
+			if (!response.isSuccessful() && response.code() != 409) {
+				throw new IOException("Alias creation failed: " + response.code());
+			}
+		}
+	}
+
+	// Räume werden vom Appservice-Bot angelegt, der daher auch den Tombstone setzen darf
+	public void sendTombstone(String roomId, String replacementRoomId) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		JSONObject payload = new JSONObject();
+		payload.put("body", "This conversation continues in another room.");
+		payload.put("replacement_room", replacementRoomId);
+
+		Request request = authRequest("/_matrix/client/v3/rooms/" + encodeRoomId(roomId) + "/state/m.room.tombstone/")
+				.put(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Tombstone failed: " + response.code());
+			}
+		}
+	}
+
+	public void sendReadReceipt(String roomId, String userId, String eventId) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
+						+ encodeRoomId(roomId) + "/receipt/m.read/" + URLEncoder.encode(eventId, StandardCharsets.UTF_8))
+				.newBuilder().addQueryParameter("user_id", userId).build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.post(RequestBody.create("{}", MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Read receipt failed: " + response.code());
+			}
+		}
+	}
+
+	public void redactEvent(String roomId, String userId, String eventId) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
+						+ encodeRoomId(roomId) + "/redact/" + URLEncoder.encode(eventId, StandardCharsets.UTF_8) + "/"
+						+ UUID.randomUUID())
+				.newBuilder().addQueryParameter("user_id", userId).build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.put(RequestBody.create("{}", MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Redaction failed: " + response.code());
+			}
+		}
+	}
+
+	public void setUserDisplayName(String userId, String displayName) throws IOException {
+		JSONObject payload = new JSONObject();
+		payload.put("displayname", displayName);
+
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			throw new IOException("Homeserver URL not set");
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/profile/"
+						+ URLEncoder.encode(userId, StandardCharsets.UTF_8) + "/displayname")
+				.newBuilder().addQueryParameter("user_id", userId).build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.put(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Setting displayname for " + userId + " failed: " + response.code());
+			}
+		}
+	}
+
+	/**
+	 * Lässt den Homeserver die Bridge anpingen (MSC2659). Liefert die vom
+	 * Homeserver gemessene Dauer seines Aufrufs von /_matrix/app/v1/ping.
+	 * Läuft an Limiter und Circuit Breaker vorbei: eine volle Warteschlange
+	 * oder ein offener Breaker darf die Messung weder verfälschen noch
+	 * verhindern.
+	 */
+	public long pingAppservice(String appserviceId, String txnId) throws IOException {
+		JSONObject payload = new JSONObject();
+		payload.put("transaction_id", txnId);
+
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			throw new IOException("Homeserver URL not set");
+		}
+
+		HttpUrl url = HttpUrl.parse(profile.getUrl()
+				+ "/_matrix/client/v1/appservice/" + URLEncoder.encode(appserviceId, StandardCharsets.UTF_8) + "/ping");
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.post(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = probeClient.newCall(request).execute()) {
+			String body = response.body() != null ? response.body().string() : "";
+			if (!response.isSuccessful()) {
+				// M_URL_NOT_SET, M_CONNECTION_FAILED, M_CONNECTION_TIMEOUT, M_BAD_STATUS ...
+				String errcode = null;
+				try {
+					errcode = new JSONObject(body).optString("errcode", null);
+				} catch (Exception e) {
+					// kein JSON
+				}
+				throw new IOException("Appservice ping failed: " + response.code() + (errcode != null ? " " + errcode : ""));
+			}
+			return new JSONObject(body).optLong("duration_ms", -1);
+		}
+	}
+
+	public void setUserAvatarUrl(String userId, String avatarUrl) throws IOException {
+		JSONObject payload = new JSONObject();
+		payload.put("avatar_url", avatarUrl);
+
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return;
+		}
+
+		HttpUrl url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/profile/"
+						+ URLEncoder.encode(userId, StandardCharsets.UTF_8) + "/avatar_url")
+				.newBuilder().addQueryParameter("user_id", userId).build();
+
+		Request request = new Request.Builder().url(url)
+				.addHeader("Authorization", "Bearer " + profile.getAsToken())
+				.put(RequestBody.create(payload.toString(), MediaType.parse("application/json"))).build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Setting avatar for " + userId + " failed: " + response.code());
+			}
+		}
+	}
+
 	public void leaveRoom(String room_id, String matrixUser) {
 
 	}
@@ -541,6 +1112,32 @@ public class MatrixAPI {
 		}
 	}
 
+	// Eine Seite der Raum-Historie rückwärts ab "from" (null = neuestes Event), nur m.room.message
+	public JSONObject getRoomMessages(String roomId, String userId, String from, int limit) throws IOException {
+		if (profile.getUrl()==null||profile.getUrl().isEmpty())
+		{
+			Log.error("Homeserver-URL für Profil " + profile + " nicht gesetzt!");
+			return null;
+		}
+
+		HttpUrl.Builder url = HttpUrl
+				.parse(profile.getUrl() + "/_matrix/client/v3/rooms/"
+						+ encodeRoomId(roomId) + "/messages")
+				.newBuilder().addQueryParameter("user_id", userId).addQueryParameter("dir", "b")
+				.addQueryParameter("limit", String.valueOf(limit))
+				.addQueryParameter("filter", "{\"types\":[\"m.room.message\"],\"lazy_load_members\":true}");
+		if (from != null)
+			url.addQueryParameter("from", from);
+
+		Request request = new Request.Builder().url(url.build())
+				.addHeader("Authorization", "Bearer " + profile.getAsToken()).get().build();
 
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Room messages fetch failed: " + response.code());
+			}
+			return new JSONObject(response.body().string());
+		}
+	}
 
 }
@@ -0,0 +1,190 @@
+package de.mopsdom.matrix;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.utils.HttpUtils;
+import de.mopsdom.matrix.utils.Utils;
+
+/**
+ * Liefert Matrix Medien (mxc://server/mediaId) unter
+ * /matrix/media/{server}/{mediaId}?sig=... an XMPP-Clients aus. Die Dateien
+ * kommen aus dem {@link MediaCache}, unterstützt werden Range- und
+ * Conditional-Requests. Ausgeliefert werden nur URLs mit gültiger Signatur
+ * ({@link Utils#getMediaProxyUrl(String)}), und da die Inhalte von beliebigen
+ * Matrix-Benutzern stammen, nie als aktiver Inhalt auf dem Openfire-Origin:
+ * nosniff, eine Sandbox-CSP und attachment für alles außer Bild, Audio und
+ * Video aus einer festen Liste.
+ */
+public class MatrixMediaProxyServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 2939182736358105125L;
+	private static final Logger Log = LoggerFactory.getLogger(MatrixMediaProxyServlet.class);
+
+	private static final Pattern PATH_PATTERN = Pattern.compile("/([A-Za-z0-9.:\\-\\[\\]]+)/([A-Za-z0-9_\\-]+)(?:/[^/]*)?");
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+	// Typen, die der Browser direkt anzeigen darf; SVG fehlt bewusst, es kann Skripte enthalten
+	private static final Set<String> INLINE_TYPES = Set.of("image/png", "image/jpeg", "image/gif", "image/webp",
+			"image/avif", "image/bmp", "audio/mpeg", "audio/mp4", "audio/aac", "audio/ogg", "audio/opus", "audio/wav",
+			"audio/webm", "audio/flac", "video/mp4", "video/webm", "video/ogg", "video/quicktime");
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String pathInfo = req.getPathInfo();
+		Matcher matcher = pathInfo != null ? PATH_PATTERN.matcher(pathInfo) : null;
+		if (matcher == null || !matcher.matches()) {
+			JSONObject err = new JSONObject()
+					.put("errcode", "M_BAD_REQUEST")
+					.put("error", "Invalid media path");
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_BAD_REQUEST, err);
+			return;
+		}
+
+		if (!Utils.verifyMediaSignature(matcher.group(1) + "/" + matcher.group(2), req.getParameter("sig"))) {
+			JSONObject err = new JSONObject()
+					.put("errcode", "M_FORBIDDEN")
+					.put("error", "Invalid media signature");
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_FORBIDDEN, err);
+			return;
+		}
+
+		MediaCache.CachedMedia media;
+		try {
+			media = MediaCache.getInstance().get(matcher.group(1), matcher.group(2));
+		} catch (FileNotFoundException e) {
+			JSONObject err = new JSONObject()
+					.put("errcode", "M_NOT_FOUND")
+					.put("error", "Media not found");
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
+			return;
+		} catch (MediaCache.TooLargeException e) {
+			JSONObject err = new JSONObject()
+					.put("errcode", "M_TOO_LARGE")
+					.put("error", e.getMessage());
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_BAD_GATEWAY, err);
+			return;
+		} catch (IOException e) {
+			Log.error("Fetching media " + pathInfo + " failed: " + e.getMessage());
+			JSONObject err = new JSONObject()
+					.put("errcode", "M_UNKNOWN")
+					.put("error", "Could not fetch media from homeserver");
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_BAD_GATEWAY, err);
+			return;
+		}
+
+		// Matrix Medien sind unveränderlich → der Cache-Key taugt als starkes ETag
+		String etag = "\"" + media.getKey() + "\"";
+		resp.setHeader("ETag", etag);
+		resp.setDateHeader("Last-Modified", media.getLastModified());
+		resp.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		resp.setHeader("Accept-Ranges", "bytes");
+		resp.setHeader("X-Content-Type-Options", "nosniff");
+		resp.setHeader("Content-Security-Policy", "sandbox; default-src 'none'");
+
+		if (isNotModified(req, etag, media.getLastModified())) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		long length = media.getLength();
+		long start = 0;
+		long end = length - 1;
+
+		String range = req.getHeader("Range");
+		String ifRange = req.getHeader("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			Matcher rangeMatcher = RANGE_PATTERN.matcher(range.trim());
+			// Mehrfach-Ranges werden nicht unterstützt, dann wird die ganze Datei geliefert
+			if (rangeMatcher.matches() && !(rangeMatcher.group(1).isEmpty() && rangeMatcher.group(2).isEmpty())) {
+				if (rangeMatcher.group(1).isEmpty()) {
+					// bytes=-n → die letzten n Bytes
+					start = Math.max(0, length - Long.parseLong(rangeMatcher.group(2)));
+				} else {
+					start = Long.parseLong(rangeMatcher.group(1));
+					if (!rangeMatcher.group(2).isEmpty())
+						end = Math.min(end, Long.parseLong(rangeMatcher.group(2)));
+				}
+
+				if (start >= length || start > end) {
+					resp.setHeader("Content-Range", "bytes */" + length);
+					resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+
+				resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+
+		long count = length == 0 ? 0 : end - start + 1;
+		resp.setContentType(media.getContentType());
+		resp.setContentLengthLong(count);
+		String disposition = isInline(media.getContentType()) ? "inline" : "attachment";
+		if (media.getFileName() != null)
+			disposition += "; filename=\"" + media.getFileName().replaceAll("[\\x00-\\x1f\\x7f\"\\\\]", "") + "\"";
+		resp.setHeader("Content-Disposition", disposition);
+
+		if ("HEAD".equals(req.getMethod()) || count == 0)
+			return;
+
+		try (FileChannel channel = FileChannel.open(media.getFile(), StandardOpenOption.READ)) {
+			WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+			long position = start;
+			long remaining = count;
+			while (remaining > 0) {
+				long transferred = channel.transferTo(position, remaining, out);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+
+	private static boolean isInline(String contentType) {
+		if (contentType == null)
+			return false;
+		int params = contentType.indexOf(';');
+		String type = (params >= 0 ? contentType.substring(0, params) : contentType).trim().toLowerCase(Locale.ROOT);
+		return INLINE_TYPES.contains(type);
+	}
+
+	private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				String value = candidate.trim();
+				if (value.startsWith("W/"))
+					value = value.substring(2);
+				if (value.equals(etag) || value.equals("*"))
+					return true;
+			}
+			return false;
+		}
+
+		try {
+			long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+			// HTTP-Daten haben nur Sekundenauflösung
+			return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+}
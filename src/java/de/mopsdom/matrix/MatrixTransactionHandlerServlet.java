@@ -13,7 +13,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.mopsdom.matrix.utils.HttpUtils;
-import de.mopsdom.xmpp.MatrixBridgePlugin;
 import de.mopsdom.xmpp.XmppAPI;
 
 public class MatrixTransactionHandlerServlet extends HttpServlet {
@@ -35,7 +34,9 @@ public class MatrixTransactionHandlerServlet extends HttpServlet {
 				? req.getHeader("Authorization").replace("Bearer", "").trim()
 				: null;
 
-		if (authorization == null || !authorization.equals(MatrixBridgePlugin.MATRIX_HS_TOKEN.getValue())) {
+		// Das hs_token bestimmt, von welchem Homeserver der Aufruf kommt
+		MatrixAPI api = HomeserverRouter.getInstance().forHsToken(authorization);
+		if (api == null) {
 			JSONObject m_forbidden = new JSONObject();
 			m_forbidden.put("errcode", "M_FORBIDDEN");
 			m_forbidden.put("error", "Application service is not allowed to perform this action");
@@ -64,7 +65,12 @@ public class MatrixTransactionHandlerServlet extends HttpServlet {
 			    }
 
 			    if (txnId != null) {
-			        xmppApi.handleTransactions(req, resp, txnId);
+			        Tracer.Trace trace = Tracer.begin("matrix", txnId, null);
+			        try {
+			        	xmppApi.handleTransactions(req, resp, txnId, api);
+			        } finally {
+			        	Tracer.end(trace);
+			        }
 			    } else {
 			    	JSONObject m_forbidden = new JSONObject();
 					m_forbidden.put("errcode", "M_BAD_REQUEST");
@@ -0,0 +1,292 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.http.HttpBindManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.HttpUtils;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Bridged Dateien, die XMPP-Clients per XEP-0363 hochgeladen und per OOB
+ * (XEP-0066) geteilt haben. Die Datei wird aus dem HTTP-Upload-Speicher
+ * geladen und mit festem Puffer direkt in das Matrix Media Repository
+ * gestreamt. Geladen werden nur URLs des konfigurierten Upload-Dienstes
+ * (MEDIA_UPLOAD_URLS bzw. die Einstellungen des httpfileupload-Plugins) und
+ * nur von öffentlichen Adressen; alle anderen Anhänge gehen als Link raus,
+ * damit kein Benutzer die Bridge auf interne Dienste ansetzen kann.
+ */
+public class MediaBridge {
+
+	private static final Logger Log = LoggerFactory.getLogger(MediaBridge.class);
+
+	public static final String OOB_NAMESPACE = "jabber:x:oob";
+
+	// Wie lange eine Nachricht auf einen freien Upload-Slot wartet, bevor nur der Link gesendet wird
+	private static final long UPLOAD_SLOT_TIMEOUT_MS = 500;
+
+	// Weiterleitungen werden selbst verfolgt, damit jedes Ziel geprüft wird
+	private static final int MAX_REDIRECTS = 3;
+
+	private static MediaBridge instance = null;
+
+	private final OkHttpClient client;
+	private final Semaphore uploadSlots;
+
+	public MediaBridge() {
+		instance = this;
+		OkHttpClient base = MatrixBridgePlugin.HTTP_IGNORE_SSL.getValue() ? HttpUtils.createUnsafeClient()
+				: HttpUtils.createSafeClient();
+		client = base.newBuilder().followRedirects(false).followSslRedirects(false)
+				// Prüft die tatsächlich verbundene Adresse, auch bei IP-Literalen und DNS-Rebinding
+				.addNetworkInterceptor(chain -> {
+					InetAddress address = chain.connection().socket().getInetAddress();
+					if (!MatrixBridgePlugin.MEDIA_ALLOW_PRIVATE_ADDRESSES.getValue() && !isPublicAddress(address))
+						throw new IOException("Refusing non-public address " + address.getHostAddress());
+					return chain.proceed(chain.request());
+				}).build();
+		uploadSlots = new Semaphore(MatrixBridgePlugin.MEDIA_MAX_CONCURRENT_UPLOADS.getValue());
+	}
+
+	public static MediaBridge getInstance() {
+		if (instance == null)
+			instance = new MediaBridge();
+
+		return instance;
+	}
+
+	public static String getAttachmentUrl(Message message) {
+		Element oob = message.getChildElement("x", OOB_NAMESPACE);
+		if (oob == null)
+			return null;
+
+		String url = oob.elementTextTrim("url");
+		return url == null || url.isEmpty() ? null : url;
+	}
+
+	/**
+	 * Liefert den m.image / m.file Content für eine Nachricht mit Anhang oder
+	 * null, wenn keine Datei vorhanden ist oder der Upload nicht möglich war.
+	 * Der Aufrufer sendet dann den normalen Text (inkl. Link).
+	 */
+	public JSONObject createMediaContent(MatrixAPI api, Message message) {
+		String attachmentUrl = getAttachmentUrl(message);
+		if (attachmentUrl == null)
+			return null;
+
+		HttpUrl url = HttpUrl.parse(attachmentUrl);
+		if (url == null) {
+			Log.warn("Invalid attachment URL: " + attachmentUrl);
+			return null;
+		}
+		if (!isUploadUrl(url)) {
+			Log.debug("Attachment is not on the upload service, sending as link: " + attachmentUrl);
+			return null;
+		}
+
+		// Große Dateien dürfen den Textverkehr nicht blockieren → ohne freien Slot nur den Link senden
+		try {
+			if (!uploadSlots.tryAcquire(UPLOAD_SLOT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.info("No free upload slot, sending attachment as link: " + attachmentUrl);
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		try {
+			return transfer(api, url);
+		} catch (IOException e) {
+			Log.error("Failed to bridge attachment " + attachmentUrl + ": " + e.getMessage());
+			return null;
+		} finally {
+			uploadSlots.release();
+		}
+	}
+
+	private JSONObject transfer(MatrixAPI api, HttpUrl url) throws IOException {
+		for (int redirects = 0;; redirects++) {
+			Request request = new Request.Builder().url(url).get().build();
+			try (Response response = client.newCall(request).execute()) {
+				if (!response.isRedirect())
+					return upload(api, url, response);
+
+				HttpUrl target = url.resolve(response.header("Location", ""));
+				if (target == null || !isUploadUrl(target))
+					throw new IOException("Redirect outside the upload service refused: " + target);
+				if (redirects >= MAX_REDIRECTS)
+					throw new IOException("Too many redirects");
+				url = target;
+			}
+		}
+	}
+
+	private JSONObject upload(MatrixAPI api, HttpUrl url, Response response) throws IOException {
+		if (!response.isSuccessful()) {
+			throw new IOException("Download failed: " + response.code());
+		}
+
+		ResponseBody body = response.body();
+		long size = body.contentLength();
+		long maxSize = MatrixBridgePlugin.MEDIA_MAX_FILE_SIZE.getValue();
+		if (size > maxSize) {
+			throw new IOException("File too large: " + size + " > " + maxSize);
+		}
+
+		String fileName = getFileName(url);
+		String mimeType = getMimeType(body.contentType(), fileName);
+
+		String mxc;
+		try (InputStream in = body.byteStream()) {
+			// Unbekannte Länge: wir zählen mit und brechen beim Limit ab
+			InputStream source = size >= 0 ? in : new LimitedInputStream(in, maxSize);
+			mxc = api.uploadMedia(source, size, mimeType, fileName);
+		}
+		if (mxc == null)
+			return null;
+
+		JSONObject info = new JSONObject();
+		info.put("mimetype", mimeType);
+		if (size >= 0)
+			info.put("size", size);
+
+		JSONObject content = new JSONObject();
+		content.put("msgtype", mimeType.startsWith("image/") ? "m.image" : "m.file");
+		content.put("body", fileName);
+		content.put("url", mxc);
+		content.put("info", info);
+		return content;
+	}
+
+	/**
+	 * true, wenn url unterhalb einer Basis-URL des Upload-Dienstes liegt
+	 * (gleiches Schema, gleicher Host und Port, Pfad-Präfix).
+	 */
+	static boolean isUploadUrl(HttpUrl url) {
+		for (HttpUrl base : getUploadBases()) {
+			String path = base.encodedPath().endsWith("/") ? base.encodedPath() : base.encodedPath() + "/";
+			if (url.scheme().equals(base.scheme()) && url.host().equalsIgnoreCase(base.host())
+					&& url.port() == base.port() && url.encodedPath().startsWith(path))
+				return true;
+		}
+		return false;
+	}
+
+	private static List<HttpUrl> getUploadBases() {
+		List<HttpUrl> bases = new ArrayList<>();
+		String configured = MatrixBridgePlugin.MEDIA_UPLOAD_URLS.getValue();
+		if (configured != null && !configured.isBlank()) {
+			for (String value : configured.split(",")) {
+				HttpUrl base = HttpUrl.parse(value.trim());
+				if (base != null)
+					bases.add(base);
+				else if (!value.isBlank())
+					Log.warn("Invalid upload URL: " + value.trim());
+			}
+			return bases;
+		}
+
+		// Ohne eigene Einstellung gilt, was das httpfileupload-Plugin in seinen Slots ankündigt
+		String protocol = JiveGlobals.getProperty("plugin.httpfileupload.announcedWebProtocol", "https");
+		String host = JiveGlobals.getProperty("plugin.httpfileupload.announcedWebHost",
+				XMPPServer.getInstance().getServerInfo().getHostname());
+		int port = JiveGlobals.getIntProperty("plugin.httpfileupload.announcedWebPort",
+				HttpBindManager.HTTP_BIND_SECURE_PORT.getValue());
+		String contextRoot = JiveGlobals.getProperty("plugin.httpfileupload.announcedWebContextRoot", "/httpfileupload");
+		HttpUrl base = HttpUrl.parse(protocol + "://" + host + ":" + port
+				+ (contextRoot.startsWith("/") ? contextRoot : "/" + contextRoot));
+		if (base != null)
+			bases.add(base);
+		return bases;
+	}
+
+	// Loopback, private, link-lokale (u. a. Cloud-Metadaten), CGNAT-, Multicast- und reservierte Adressen
+	static boolean isPublicAddress(InetAddress address) {
+		if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+				|| address.isSiteLocalAddress() || address.isMulticastAddress())
+			return false;
+
+		byte[] bytes = address.getAddress();
+		if (address instanceof Inet4Address) {
+			int first = bytes[0] & 0xff;
+			int second = bytes[1] & 0xff;
+			return first != 0 && first < 240 && !(first == 100 && (second & 0xc0) == 64)
+					&& !(first == 192 && second == 0 && bytes[2] == 0) && !(first == 198 && (second & 0xfe) == 18);
+		}
+		// fc00::/7 (Unique Local)
+		return (bytes[0] & 0xfe) != 0xfc;
+	}
+
+	private static String getFileName(HttpUrl url) {
+		List<String> segments = url.pathSegments();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			if (!segments.get(i).isEmpty())
+				return segments.get(i);
+		}
+		return "file";
+	}
+
+	private static String getMimeType(MediaType contentType, String fileName) {
+		if (contentType != null)
+			return contentType.type() + "/" + contentType.subtype();
+
+		String guessed = URLConnection.guessContentTypeFromName(fileName);
+		return guessed != null ? guessed : "application/octet-stream";
+	}
+
+	private static class LimitedInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		LimitedInputStream(InputStream in, long limit) {
+			this.in = in;
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1 && --remaining < 0)
+				throw new IOException("File exceeds maximum size");
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				remaining -= read;
+				if (remaining < 0)
+					throw new IOException("File exceeds maximum size");
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.utils.HttpUtils;
+import de.mopsdom.matrix.utils.Utils;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * LRU-Plattencache für Medien vom Matrix Homeserver. Jede mxc:// URI wird
+ * höchstens einmal heruntergeladen, egal wie viele XMPP-Clients sie abrufen.
+ * Die Gesamtgröße ist durch plugin.matrix_bridge.media.cache_max_size begrenzt,
+ * einzelne Dateien durch plugin.matrix_bridge.media.max_file_size.
+ */
+public class MediaCache {
+
+	private static final Logger Log = LoggerFactory.getLogger(MediaCache.class);
+
+	private static final Pattern FILENAME_PATTERN = Pattern.compile("filename\\*?=(?:UTF-8'')?\"?([^\";]+)\"?");
+
+	private static MediaCache instance = null;
+
+	private final Path directory;
+
+	// Zugriffsreihenfolge → der älteste Eintrag ist der am längsten nicht genutzte
+	private final LinkedHashMap<String, CachedMedia> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalSize = 0;
+
+	private final ConcurrentHashMap<String, Object> fetchLocks = new ConcurrentHashMap<>();
+
+	// Datei überschreitet MEDIA_MAX_FILE_SIZE
+	public static class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	public static class CachedMedia {
+		private final String key;
+		private final Path file;
+		private final String contentType;
+		private final String fileName;
+		private final long length;
+		private final long lastModified;
+
+		CachedMedia(String key, Path file, String contentType, String fileName, long length, long lastModified) {
+			this.key = key;
+			this.file = file;
+			this.contentType = contentType;
+			this.fileName = fileName;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+
+	public MediaCache() {
+		instance = this;
+		directory = Utils.getDataDirectory().toPath().resolve("media");
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException e) {
+			Log.error("Could not create media cache directory: " + e.getMessage());
+		}
+		loadIndex();
+	}
+
+	public static MediaCache getInstance() {
+		if (instance == null)
+			instance = new MediaCache();
+
+		return instance;
+	}
+
+	private void loadIndex() {
+		List<CachedMedia> found = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.meta")) {
+			for (Path meta : stream) {
+				String key = meta.getFileName().toString().replace(".meta", "");
+				CachedMedia media = readMeta(key);
+				if (media != null)
+					found.add(media);
+			}
+		} catch (IOException e) {
+			Log.error("Could not read media cache directory: " + e.getMessage());
+		}
+
+		// Zuletzt geschriebene Dateien gelten beim Start als zuletzt genutzt
+		found.sort(Comparator.comparingLong(CachedMedia::getLastModified));
+		synchronized (entries) {
+			for (CachedMedia media : found) {
+				entries.put(media.getKey(), media);
+				totalSize += media.getLength();
+			}
+			evict();
+		}
+		Log.info("Media cache loaded: " + found.size() + " files, " + totalSize + " bytes");
+	}
+
+	private CachedMedia readMeta(String key) {
+		Path file = directory.resolve(key);
+		Path meta = directory.resolve(key + ".meta");
+		if (!Files.exists(file)) {
+			deleteQuietly(meta);
+			return null;
+		}
+
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(meta)) {
+			props.load(in);
+			return new CachedMedia(key, file, props.getProperty("contentType", "application/octet-stream"),
+					props.getProperty("fileName"), Files.size(file), Files.getLastModifiedTime(file).toMillis());
+		} catch (IOException e) {
+			Log.warn("Dropping broken media cache entry " + key + ": " + e.getMessage());
+			deleteQuietly(file);
+			deleteQuietly(meta);
+			return null;
+		}
+	}
+
+	public CachedMedia get(String serverName, String mediaId) throws IOException {
+		String key = key(serverName, mediaId);
+
+		CachedMedia media = lookup(key);
+		if (media != null)
+			return media;
+
+		// Gleichzeitige Anfragen für dieselbe Datei lösen nur einen Download aus
+		Object lock = fetchLocks.computeIfAbsent(key, k -> new Object());
+		try {
+			synchronized (lock) {
+				media = lookup(key);
+				if (media != null)
+					return media;
+
+				media = fetch(key, serverName, mediaId);
+				synchronized (entries) {
+					entries.put(key, media);
+					totalSize += media.getLength();
+					evict();
+				}
+				return media;
+			}
+		} finally {
+			fetchLocks.remove(key, lock);
+		}
+	}
+
+	private CachedMedia lookup(String key) {
+		synchronized (entries) {
+			CachedMedia media = entries.get(key);
+			if (media != null && Files.exists(media.getFile()))
+				return media;
+			if (media != null) {
+				entries.remove(key);
+				totalSize -= media.getLength();
+			}
+			return null;
+		}
+	}
+
+	private CachedMedia fetch(String key, String serverName, String mediaId) throws IOException {
+		Path file = directory.resolve(key);
+		Path tmp = directory.resolve(key + ".part");
+
+		String contentType;
+		String fileName;
+		try (Response response = MatrixAPI.forDomain(serverName).downloadMedia(serverName, mediaId)) {
+			ResponseBody body = response.body();
+			long maxSize = MatrixBridgePlugin.MEDIA_MAX_FILE_SIZE.getValue();
+			if (body.contentLength() > maxSize)
+				throw new TooLargeException("Media exceeds " + maxSize + " bytes");
+
+			MediaType mediaType = body.contentType();
+			contentType = mediaType != null ? mediaType.toString() : "application/octet-stream";
+			fileName = getFileName(response.header("Content-Disposition"));
+
+			try (InputStream in = body.byteStream(); OutputStream out = Files.newOutputStream(tmp)) {
+				byte[] buffer = new byte[HttpUtils.STREAM_BUFFER_SIZE];
+				long total = 0;
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					// Ohne oder mit falscher Content-Length wird mitgezählt und abgebrochen
+					total += read;
+					if (total > maxSize)
+						throw new TooLargeException("Media exceeds " + maxSize + " bytes");
+					out.write(buffer, 0, read);
+				}
+			}
+		} catch (IOException e) {
+			deleteQuietly(tmp);
+			throw e;
+		}
+
+		Properties props = new Properties();
+		props.setProperty("contentType", contentType);
+		if (fileName != null)
+			props.setProperty("fileName", fileName);
+		try (OutputStream out = Files.newOutputStream(directory.resolve(key + ".meta"))) {
+			props.store(out, "mxc://" + serverName + "/" + mediaId);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		Log.debug("Cached mxc://" + serverName + "/" + mediaId + " as " + key);
+		return new CachedMedia(key, file, contentType, fileName, Files.size(file),
+				Files.getLastModifiedTime(file).toMillis());
+	}
+
+	// Muss mit gehaltenem entries-Lock aufgerufen werden
+	private void evict() {
+		long maxSize = MatrixBridgePlugin.MEDIA_CACHE_MAX_SIZE.getValue();
+		Iterator<Map.Entry<String, CachedMedia>> it = entries.entrySet().iterator();
+		// Der zuletzt eingefügte Eintrag bleibt immer erhalten, auch wenn er allein das Limit sprengt
+		while (totalSize > maxSize && entries.size() > 1 && it.hasNext()) {
+			CachedMedia media = it.next().getValue();
+			it.remove();
+			totalSize -= media.getLength();
+			// Laufende Auslieferungen behalten ihren offenen FileChannel, das Löschen ist daher unkritisch
+			deleteQuietly(media.getFile());
+			deleteQuietly(directory.resolve(media.getKey() + ".meta"));
+		}
+	}
+
+	private static String getFileName(String contentDisposition) {
+		if (contentDisposition == null)
+			return null;
+		Matcher matcher = FILENAME_PATTERN.matcher(contentDisposition);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	private static String key(String serverName, String mediaId) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256")
+					.digest((serverName + "/" + mediaId).getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			Log.warn("Could not delete " + path + ": " + e.getMessage());
+		}
+	}
+}
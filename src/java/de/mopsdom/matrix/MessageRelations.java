@@ -0,0 +1,78 @@
+package de.mopsdom.matrix;
+
+import org.dom4j.Element;
+import org.json.JSONObject;
+import org.xmpp.packet.Message;
+
+/**
+ * Übersetzt XEP-0308 Korrekturen, XEP-0461 Antworten und XEP-0424 Widerrufe
+ * in Matrix-Relationen. Die referenzierten Event-IDs kommen aus der
+ * {@link EventIdMap}, ohne Anfrage beim Homeserver.
+ */
+public class MessageRelations {
+
+	public static final String CORRECTION_NAMESPACE = "urn:xmpp:message-correct:0";
+	public static final String REPLY_NAMESPACE = "urn:xmpp:reply:0";
+	public static final String RETRACT_NAMESPACE = "urn:xmpp:message-retract:1";
+	public static final String FALLBACK_NAMESPACE = "urn:xmpp:fallback:0";
+
+	/**
+	 * ID der widerrufenen Nachricht oder null.
+	 */
+	public static String getRetractedId(Message message) {
+		Element retract = message.getChildElement("retract", RETRACT_NAMESPACE);
+		return retract != null ? retract.attributeValue("id") : null;
+	}
+
+	/**
+	 * Ergänzt den Event-Inhalt um m.replace bzw. m.in_reply_to, sofern die
+	 * referenzierte Nachricht bekannt ist.
+	 */
+	public static void applyRelations(Message message, String roomId, JSONObject content) {
+		Element replace = message.getChildElement("replace", CORRECTION_NAMESPACE);
+		if (replace != null && replace.attributeValue("id") != null) {
+			String eventId = EventIdMap.getInstance().getEventId(roomId, replace.attributeValue("id"));
+			if (eventId != null) {
+				JSONObject newContent = new JSONObject(content.toString());
+				content.put("body", "* " + content.optString("body"));
+				content.put("m.new_content", newContent);
+				content.put("m.relates_to", new JSONObject().put("rel_type", "m.replace").put("event_id", eventId));
+				// Eine Korrektur ist keine Antwort mehr
+				return;
+			}
+		}
+
+		Element reply = message.getChildElement("reply", REPLY_NAMESPACE);
+		if (reply != null && reply.attributeValue("id") != null) {
+			String eventId = EventIdMap.getInstance().getEventId(roomId, reply.attributeValue("id"));
+			if (eventId != null) {
+				content.put("body", stripReplyFallback(message, content.optString("body")));
+				content.put("m.relates_to",
+						new JSONObject().put("m.in_reply_to", new JSONObject().put("event_id", eventId)));
+			}
+		}
+	}
+
+	// XEP-0428: das Zitat im Body ist für Matrix-Clients überflüssig, sie zeigen die Antwort selbst an
+	private static String stripReplyFallback(Message message, String body) {
+		for (Element fallback : message.getElement().elements("fallback")) {
+			if (!FALLBACK_NAMESPACE.equals(fallback.getNamespaceURI())
+					|| !REPLY_NAMESPACE.equals(fallback.attributeValue("for")))
+				continue;
+
+			Element range = fallback.element("body");
+			if (range == null)
+				continue;
+			try {
+				// Grenzen zählen Unicode-Codepoints, nicht UTF-16-Einheiten
+				int start = body.offsetByCodePoints(0, Integer.parseInt(range.attributeValue("start", "0")));
+				int end = body.offsetByCodePoints(0, Integer.parseInt(range.attributeValue("end", "0")));
+				if (start < end)
+					return body.substring(0, start) + body.substring(end);
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				return body;
+			}
+		}
+		return body;
+	}
+}
@@ -0,0 +1,233 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Nachrichten über dem Event-Limit des Homeservers (64 KiB pro Event) werden
+ * je nach MESSAGES_OVERSIZE_MODE in mehrere Events geteilt oder als
+ * Textdatei hochgeladen. Geteilt wird bevorzugt an Zeilenenden außerhalb von
+ * ```Blöcken```, nie innerhalb eines UTF-16-Surrogatpaars.
+ */
+public class OversizeMessages {
+
+	private static final Logger Log = LoggerFactory.getLogger(OversizeMessages.class);
+
+	public static final String MODE_SPLIT = "split";
+	public static final String MODE_FILE = "file";
+
+	// Platz für den Event-Umschlag (sender, room_id, Hashes, Signaturen) und die übrigen Felder
+	private static final int CONTENT_OVERHEAD = 2048;
+
+	private static final String FENCE = "```";
+
+	/**
+	 * Liefert die zu sendenden Event-Inhalte in Reihenfolge; bei normal großen
+	 * Nachrichten nur den übergebenen Inhalt.
+	 */
+	public static List<JSONObject> prepare(MatrixAPI api, JSONObject content) throws IOException {
+		int limit = MatrixBridgePlugin.MESSAGES_MAX_EVENT_BYTES.getValue() - CONTENT_OVERHEAD;
+		if (estimateSize(content) <= limit)
+			return List.of(content);
+
+		JSONObject newContent = content.optJSONObject("m.new_content");
+		JSONObject source = newContent != null ? newContent : content;
+		String msgtype = source.optString("msgtype");
+		if (!"m.text".equals(msgtype) && !"m.notice".equals(msgtype) && !"m.emote".equals(msgtype))
+			return List.of(content);
+
+		String body = source.optString("body");
+		if (MODE_FILE.equals(MatrixBridgePlugin.MESSAGES_OVERSIZE_MODE.getValue()))
+			return List.of(toAttachment(api, content, body));
+
+		// Korrekturen tragen den Text doppelt; HTML ist mit Tags und <br> meist bis doppelt so lang wie der Text
+		int partLimit = newContent != null ? limit / 2 : limit;
+		boolean formatted = source.has("formatted_body");
+		int budget = formatted ? partLimit / 3 : partLimit;
+
+		List<String> parts = split(body, budget);
+		List<JSONObject> events = new ArrayList<>(parts.size());
+		for (int i = 0; i < parts.size(); i++) {
+			JSONObject part = new JSONObject();
+			part.put("msgtype", msgtype);
+			part.put("body", parts.get(i));
+			if (formatted) {
+				String html = RichText.stylingToHtml(parts.get(i));
+				// Passt das HTML ausnahmsweise nicht, geht dieser Teil unformatiert
+				if (html != null && jsonLength(parts.get(i)) + jsonLength(html) <= partLimit) {
+					part.put("format", RichText.MATRIX_HTML_FORMAT);
+					part.put("formatted_body", html);
+				}
+			}
+
+			// Relationen gelten nur für den ersten Teil, der Rest folgt als neue Nachrichten
+			JSONObject relation = i == 0 ? content.optJSONObject("m.relates_to") : null;
+			if (relation != null && newContent != null) {
+				JSONObject edit = new JSONObject();
+				edit.put("msgtype", msgtype);
+				edit.put("body", "* " + part.getString("body"));
+				if (part.has("formatted_body")) {
+					edit.put("format", RichText.MATRIX_HTML_FORMAT);
+					edit.put("formatted_body", "* " + part.getString("formatted_body"));
+				}
+				edit.put("m.new_content", part);
+				edit.put("m.relates_to", relation);
+				part = edit;
+			} else if (relation != null) {
+				part.put("m.relates_to", relation);
+			}
+			events.add(part);
+		}
+		Log.info("Split oversize message (" + body.length() + " chars) into " + events.size() + " events");
+		return events;
+	}
+
+	private static JSONObject toAttachment(MatrixAPI api, JSONObject content, String body) throws IOException {
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		String mxc = api.uploadMedia(data, "text/plain; charset=utf-8", "message.txt");
+		if (mxc == null)
+			throw new IOException("Upload of oversize message failed");
+
+		JSONObject info = new JSONObject();
+		info.put("mimetype", "text/plain");
+		info.put("size", data.length);
+
+		JSONObject file = new JSONObject();
+		file.put("msgtype", "m.file");
+		file.put("body", "message.txt");
+		file.put("filename", "message.txt");
+		file.put("url", mxc);
+		file.put("info", info);
+
+		// Antworten bleiben Antworten; eine Korrektur kann den Typ nicht wechseln und wird zur neuen Nachricht
+		JSONObject relation = content.optJSONObject("m.relates_to");
+		if (relation != null && relation.has("m.in_reply_to"))
+			file.put("m.relates_to", relation);
+		Log.info("Uploaded oversize message (" + data.length + " bytes) as " + mxc);
+		return file;
+	}
+
+	// Obergrenze der serialisierten Größe der Textfelder
+	private static int estimateSize(JSONObject content) {
+		int size = jsonLength(content.optString("body")) + jsonLength(content.optString("formatted_body"));
+		JSONObject newContent = content.optJSONObject("m.new_content");
+		if (newContent != null)
+			size += jsonLength(newContent.optString("body")) + jsonLength(newContent.optString("formatted_body"));
+		return size;
+	}
+
+	private static int jsonLength(String text) {
+		int length = 0;
+		for (int i = 0, n = text.length(); i < n; i++)
+			length += jsonLength(text.charAt(i));
+		return length;
+	}
+
+	// UTF-8 Bytes eines Zeichens nach JSON-Escaping wie in JSONObject.quote()
+	private static int jsonLength(char c) {
+		if (c == '"' || c == '\\' || c == '/')
+			return 2;
+		if (c < 0x20)
+			return c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r' ? 2 : 6;
+		if (c < 0x80)
+			return 1;
+		if (c < 0xa0 || (c >= 0x2000 && c < 0x2100))
+			return 6;
+		if (c < 0x800 || Character.isSurrogate(c))
+			return 2;
+		return 3;
+	}
+
+	/**
+	 * Teilt den Text in Stücke von höchstens budget Bytes (serialisiert). Wird
+	 * innerhalb eines ```Blocks``` geteilt, wird er am Ende des Teils
+	 * geschlossen und im nächsten wieder geöffnet.
+	 */
+	static List<String> split(String body, int budget) {
+		List<String> parts = new ArrayList<>();
+		// Reserve für die Zaun-Zeilen beim Teilen innerhalb eines Blocks
+		int limit = budget - 2 * (FENCE.length() + 1);
+		int length = body.length();
+		int start = 0;
+		boolean inPre = false;
+
+		while (start < length) {
+			int bytes = 0;
+			int i = start;
+			boolean pre = inPre;
+			boolean lineStart = start == 0 || body.charAt(start - 1) == '\n';
+			int safeCut = -1;
+			int lineCut = -1;
+			boolean preAtLine = false;
+			int spaceCut = -1;
+			boolean preAtSpace = false;
+
+			while (i < length) {
+				if (lineStart && body.startsWith(FENCE, i))
+					pre = !pre;
+				lineStart = false;
+
+				char c = body.charAt(i);
+				int width = jsonLength(c);
+				if (bytes + width > limit)
+					break;
+				bytes += width;
+				i++;
+
+				if (c == '\n') {
+					lineStart = true;
+					lineCut = i;
+					preAtLine = pre;
+					if (!pre)
+						safeCut = i;
+				} else if (Character.isWhitespace(c)) {
+					spaceCut = i;
+					preAtSpace = pre;
+				}
+			}
+
+			int end;
+			boolean preAtEnd;
+			if (i >= length) {
+				end = length;
+				preAtEnd = false;
+			} else if (safeCut > start) {
+				end = safeCut;
+				preAtEnd = false;
+			} else if (lineCut > start) {
+				end = lineCut;
+				preAtEnd = preAtLine;
+			} else if (spaceCut > start) {
+				end = spaceCut;
+				preAtEnd = preAtSpace;
+			} else {
+				// Kein Trenner im Fenster: an einer Zeichengrenze teilen
+				end = i > start + 1 && Character.isLowSurrogate(body.charAt(i)) ? i - 1 : Math.max(i, start + 1);
+				preAtEnd = pre;
+			}
+
+			StringBuilder part = new StringBuilder(end - start + 2 * (FENCE.length() + 1));
+			if (inPre)
+				part.append(FENCE).append('\n');
+			int partEnd = end > start && body.charAt(end - 1) == '\n' ? end - 1 : end;
+			part.append(body, start, partEnd);
+			if (preAtEnd)
+				part.append('\n').append(FENCE);
+
+			String text = part.toString();
+			if (!text.isBlank())
+				parts.add(text);
+			inPre = preAtEnd;
+			start = end;
+		}
+		return parts;
+	}
+}
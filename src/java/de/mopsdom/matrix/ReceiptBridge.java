@@ -0,0 +1,124 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.Element;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.Utils;
+import de.mopsdom.xmpp.BridgeExecutor;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Bridged XEP-0333 Chat Markers als m.read Receipts. Innerhalb eines
+ * Flush-Fensters wird pro Benutzer und Raum nur der neueste Marker gesendet –
+ * ein Client, der 500 Nachrichten nachliest, erzeugt so einen /receipt Aufruf.
+ */
+public class ReceiptBridge {
+
+	private static final Logger Log = LoggerFactory.getLogger(ReceiptBridge.class);
+
+	public static final String RECEIPTS_NAMESPACE = "urn:xmpp:receipts";
+	public static final String CHAT_MARKERS_NAMESPACE = "urn:xmpp:chat-markers:0";
+
+	private static ReceiptBridge instance = null;
+
+	// roomId|userId → neueste Event-ID seit dem letzten Flush
+	private final Map<String, String> pending = new ConcurrentHashMap<>();
+
+	private TimerTask flushTask = null;
+
+	public static ReceiptBridge getInstance() {
+		if (instance == null)
+			instance = new ReceiptBridge();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (flushTask != null)
+			return;
+
+		flushTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		long interval = MatrixBridgePlugin.RECEIPTS_FLUSH_MS.getValue();
+		TaskEngine.getInstance().schedule(flushTask, Duration.ofMillis(interval), Duration.ofMillis(interval));
+	}
+
+	public synchronized void stop() {
+		if (flushTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(flushTask);
+			flushTask = null;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Liefert die Stanza-ID aus einem displayed/acknowledged Marker oder null.
+	 */
+	public static String getDisplayedMarkerId(Message message) {
+		for (Element child : message.getElement().elements()) {
+			if (CHAT_MARKERS_NAMESPACE.equals(child.getNamespaceURI())
+					&& ("displayed".equals(child.getName()) || "acknowledged".equals(child.getName())))
+				return child.attributeValue("id");
+		}
+		return null;
+	}
+
+	public static boolean isReceiptRequested(Message message) {
+		return message.getChildElement("request", RECEIPTS_NAMESPACE) != null;
+	}
+
+	public void onDisplayed(Message message, String stanzaId) {
+		String roomId = MatrixAPI.forJid(message.getFrom())
+				.getCachedRoomId(MatrixAPI.getDirectRoomAlias(message.getFrom(), message.getTo()));
+		if (roomId == null)
+			return;
+
+		String eventId = EventIdMap.getInstance().getEventId(roomId, stanzaId);
+		if (eventId == null) {
+			Log.debug("No Matrix event known for marker " + stanzaId);
+			return;
+		}
+
+		// Ältere Marker im selben Fenster werden einfach überschrieben
+		pending.put(roomId + "|" + Utils.convertXmppUserJIDToMatrixID(message.getFrom(), "@xmpp_"), eventId);
+	}
+
+	private void flush() {
+		if (pending.isEmpty())
+			return;
+
+		List<String[]> receipts = new ArrayList<>();
+		for (String key : new ArrayList<>(pending.keySet())) {
+			String eventId = pending.remove(key);
+			if (eventId != null) {
+				int separator = key.indexOf('|');
+				receipts.add(new String[] { key.substring(0, separator), key.substring(separator + 1), eventId });
+			}
+		}
+
+		for (String[] receipt : receipts) {
+			BridgeExecutor.getInstance().execute(() -> {
+				try {
+					MatrixAPI.forMxid(receipt[1]).sendReadReceipt(receipt[0], receipt[1], receipt[2]);
+				} catch (IOException e) {
+					Log.debug("Read receipt for " + receipt[1] + " failed: " + e.getMessage());
+				}
+			});
+		}
+	}
+}
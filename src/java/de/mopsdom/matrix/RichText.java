@@ -0,0 +1,723 @@
+package de.mopsdom.matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.json.JSONObject;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.Utils;
+
+/**
+ * Formatierung zwischen XMPP und Matrix: XEP-0071 (XHTML-IM) und XEP-0393
+ * (Message Styling) → org.matrix.custom.html und zurück.
+ *
+ * Alle Richtungen arbeiten in einem Durchlauf direkt auf der Ausgabe
+ * (StringBuilder bzw. Ziel-Element) ohne Zwischenbaum. Nur Elemente und
+ * Attribute aus der jeweiligen Allow-List werden übernommen, alles andere
+ * fällt auf seinen Textinhalt zurück.
+ */
+public class RichText {
+
+	public static final String XHTML_IM_NAMESPACE = "http://jabber.org/protocol/xhtml-im";
+	public static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+	public static final String MATRIX_HTML_FORMAT = "org.matrix.custom.html";
+
+	private static final char[] STYLING_DIRECTIVES = { '*', '_', '~', '`' };
+	private static final String[] STYLING_OPEN = { "<strong>", "<em>", "<del>", "<code>" };
+	private static final String[] STYLING_CLOSE = { "</strong>", "</em>", "</del>", "</code>" };
+
+	/**
+	 * Setzt format/formatted_body aus XHTML-IM bzw. XEP-0393 Styling, sofern
+	 * die Nachricht überhaupt formatiert ist. Bei Korrekturen (m.new_content)
+	 * werden beide Inhalte formatiert.
+	 */
+	public static void applyFormatting(Message message, JSONObject content) {
+		JSONObject target = content.optJSONObject("m.new_content");
+		JSONObject source = target != null ? target : content;
+		String msgtype = source.optString("msgtype");
+		if (!"m.text".equals(msgtype) && !"m.emote".equals(msgtype) && !"m.notice".equals(msgtype))
+			return;
+
+		String html = null;
+		Element xhtml = getXhtmlBody(message);
+		if (xhtml != null)
+			html = xhtmlToHtml(xhtml);
+		if (html == null)
+			html = stylingToHtml(source.optString("body"));
+		if (html == null)
+			return;
+
+		source.put("format", MATRIX_HTML_FORMAT);
+		source.put("formatted_body", html);
+		if (target != null) {
+			content.put("format", MATRIX_HTML_FORMAT);
+			content.put("formatted_body", "* " + html);
+		}
+	}
+
+	/**
+	 * Hängt formatted_body als XHTML-IM an die Nachricht an und liefert das
+	 * body-Element oder null, wenn nach dem Bereinigen nichts übrig bleibt.
+	 */
+	public static Element addXhtml(Message message, String html) {
+		Element xhtml = message.addChildElement("html", XHTML_IM_NAMESPACE);
+		Element body = xhtml.addElement("body", XHTML_NAMESPACE);
+		htmlToXhtml(html, body);
+		if (!body.hasContent()) {
+			message.getElement().remove(xhtml);
+			return null;
+		}
+		return body;
+	}
+
+	private static Element getXhtmlBody(Message message) {
+		Element html = message.getChildElement("html", XHTML_IM_NAMESPACE);
+		if (html == null)
+			return null;
+		for (Element body : html.elements("body")) {
+			// Ohne xml:lang bzw. die erste Sprache
+			if (body.attributeValue("lang") == null || html.elements("body").size() == 1)
+				return body;
+		}
+		return html.element("body");
+	}
+
+	/**
+	 * Matrix HTML zu einem XHTML-IM body oder null, wenn nichts formatiert ist.
+	 */
+	public static String xhtmlToHtml(Element body) {
+		StringBuilder out = new StringBuilder(256);
+		boolean formatted = writeXhtmlChildren(body, out);
+		return formatted ? out.toString() : null;
+	}
+
+	// true, wenn mindestens ein Formatierungselement geschrieben wurde
+	private static boolean writeXhtmlChildren(Element parent, StringBuilder out) {
+		boolean formatted = false;
+		for (int i = 0, n = parent.nodeCount(); i < n; i++) {
+			Node node = parent.node(i);
+			if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)
+				escape(node.getText(), out);
+			else if (node.getNodeType() == Node.ELEMENT_NODE)
+				formatted |= writeXhtmlElement((Element) node, out);
+		}
+		return formatted;
+	}
+
+	private static boolean writeXhtmlElement(Element element, StringBuilder out) {
+		String name = element.getName();
+		switch (name) {
+		case "br":
+			out.append("<br>");
+			return false;
+		case "strong":
+		case "b":
+			return wrap("strong", element, out);
+		case "em":
+		case "i":
+		case "cite":
+			return wrap("em", element, out);
+		case "code":
+		case "blockquote":
+		case "p":
+		case "ul":
+		case "ol":
+		case "li":
+			return wrap(name, element, out);
+		case "a": {
+			String href = element.attributeValue("href");
+			if (!isSafeLink(href))
+				return writeXhtmlChildren(element, out);
+			out.append("<a href=\"");
+			escape(href, out);
+			out.append("\">");
+			writeXhtmlChildren(element, out);
+			out.append("</a>");
+			return true;
+		}
+		case "img": {
+			// Matrix erlaubt nur mxc:// Bilder → als Link übernehmen
+			String src = element.attributeValue("src");
+			if (!isSafeLink(src))
+				return false;
+			String alt = element.attributeValue("alt");
+			out.append("<a href=\"");
+			escape(src, out);
+			out.append("\">");
+			escape(alt != null && !alt.isEmpty() ? alt : src, out);
+			out.append("</a>");
+			return true;
+		}
+		case "span":
+			return writeStyledSpan(element, out);
+		default:
+			return writeXhtmlChildren(element, out);
+		}
+	}
+
+	private static boolean wrap(String tag, Element element, StringBuilder out) {
+		out.append('<').append(tag).append('>');
+		writeXhtmlChildren(element, out);
+		out.append("</").append(tag).append('>');
+		return true;
+	}
+
+	// Nur die CSS-Eigenschaften, die sich auf Matrix-Elemente abbilden lassen
+	private static boolean writeStyledSpan(Element span, StringBuilder out) {
+		String style = span.attributeValue("style");
+		if (style == null)
+			return writeXhtmlChildren(span, out);
+
+		String lower = style.toLowerCase();
+		List<String> tags = new ArrayList<>(2);
+		if (lower.contains("font-weight") && (lower.contains("bold") || lower.contains("700")))
+			tags.add("strong");
+		if (lower.contains("italic"))
+			tags.add("em");
+		if (lower.contains("underline"))
+			tags.add("u");
+		if (lower.contains("line-through"))
+			tags.add("del");
+
+		for (String tag : tags)
+			out.append('<').append(tag).append('>');
+		boolean formatted = writeXhtmlChildren(span, out);
+		for (int i = tags.size() - 1; i >= 0; i--)
+			out.append("</").append(tags.get(i)).append('>');
+		return formatted || !tags.isEmpty();
+	}
+
+	/**
+	 * Übersetzt *fett*, _kursiv_, ~durchgestrichen~, `code`, ```Blöcke``` und
+	 * > Zitate. Liefert null, wenn der Text keine Styling-Direktiven enthält.
+	 */
+	public static String stylingToHtml(String body) {
+		if (body == null || body.isEmpty() || !mayContainStyling(body))
+			return null;
+
+		int length = body.length();
+		StringBuilder out = new StringBuilder(length + 32);
+		// Nächste gültige schließende Direktive je Position, einmal pro Zeile berechnet
+		int[] closers = new int[STYLING_DIRECTIVES.length * (length + 1)];
+		boolean formatted = false;
+		int quoteDepth = 0;
+		boolean pre = false;
+		// <br> nur zwischen Textzeilen, nicht an Blockgrenzen
+		boolean lineBreak = false;
+
+		int lineStart = 0;
+		while (lineStart <= length) {
+			int lineEnd = body.indexOf('\n', lineStart);
+			if (lineEnd < 0)
+				lineEnd = length;
+
+			if (pre) {
+				if (lineEnd - lineStart == 3 && isFence(body, lineStart, lineEnd)) {
+					out.append("</code></pre>");
+					pre = false;
+					lineBreak = false;
+				} else {
+					if (lineBreak)
+						out.append('\n');
+					escape(body, lineStart, lineEnd, out);
+					lineBreak = true;
+				}
+				lineStart = lineEnd + 1;
+				continue;
+			}
+
+			// Zitattiefe: führende '>' (je mit optionalem Leerzeichen)
+			int contentStart = lineStart;
+			int depth = 0;
+			while (contentStart < lineEnd && body.charAt(contentStart) == '>') {
+				depth++;
+				contentStart++;
+				if (contentStart < lineEnd && body.charAt(contentStart) == ' ')
+					contentStart++;
+			}
+
+			if (depth != quoteDepth) {
+				formatted = true;
+				lineBreak = false;
+				for (; quoteDepth > depth; quoteDepth--)
+					out.append("</blockquote>");
+				for (; quoteDepth < depth; quoteDepth++)
+					out.append("<blockquote>");
+			}
+
+			if (isFence(body, contentStart, lineEnd)) {
+				out.append("<pre><code>");
+				pre = true;
+				lineBreak = false;
+				formatted = true;
+			} else {
+				if (lineBreak)
+					out.append("<br>");
+				computeClosers(body, contentStart, lineEnd, closers, length + 1);
+				formatted |= writeSpans(body, contentStart, lineEnd, closers, length + 1, out);
+				lineBreak = true;
+			}
+
+			lineStart = lineEnd + 1;
+		}
+
+		// Nicht geschlossene Blöcke enden mit der Nachricht
+		if (pre)
+			out.append("</code></pre>");
+		for (; quoteDepth > 0; quoteDepth--)
+			out.append("</blockquote>");
+
+		return formatted ? out.toString() : null;
+	}
+
+	private static boolean mayContainStyling(String body) {
+		for (int i = 0, n = body.length(); i < n; i++) {
+			char c = body.charAt(i);
+			if (c == '*' || c == '_' || c == '~' || c == '`' || c == '>')
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isFence(String body, int start, int end) {
+		return end - start >= 3 && body.startsWith("```", start);
+	}
+
+	private static int directiveIndex(char c) {
+		switch (c) {
+		case '*':
+			return 0;
+		case '_':
+			return 1;
+		case '~':
+			return 2;
+		case '`':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	/*
+	 * Von rechts nach links: closers[k * stride + p] = kleinste Position ≥ p mit
+	 * gültiger schließender Direktive k (nicht nach Leerraum), sonst -1.
+	 */
+	private static void computeClosers(String body, int start, int end, int[] closers, int stride) {
+		for (int k = 0; k < STYLING_DIRECTIVES.length; k++)
+			closers[k * stride + end] = -1;
+		for (int p = end - 1; p >= start; p--) {
+			int d = directiveIndex(body.charAt(p));
+			boolean valid = d >= 0 && p > start && !Character.isWhitespace(body.charAt(p - 1));
+			for (int k = 0; k < STYLING_DIRECTIVES.length; k++)
+				closers[k * stride + p] = valid && k == d ? p : closers[k * stride + p + 1];
+		}
+	}
+
+	private static boolean writeSpans(String body, int start, int end, int[] closers, int stride, StringBuilder out) {
+		boolean formatted = false;
+		int textStart = start;
+		int p = start;
+		while (p < end) {
+			int d = directiveIndex(body.charAt(p));
+			if (d >= 0 && isOpener(body, start, p, end)) {
+				int close = closers[d * stride + p + 2];
+				if (close >= 0 && close < end) {
+					escape(body, textStart, p, out);
+					out.append(STYLING_OPEN[d]);
+					if (d == 3)
+						escape(body, p + 1, close, out);
+					else
+						writeSpans(body, p + 1, close, closers, stride, out);
+					out.append(STYLING_CLOSE[d]);
+					formatted = true;
+					p = close + 1;
+					textStart = p;
+					continue;
+				}
+			}
+			p++;
+		}
+		escape(body, textStart, end, out);
+		return formatted;
+	}
+
+	// Öffnend: am Zeilen-/Spannenanfang, nach Leerraum oder einer anderen Direktive, nicht vor Leerraum
+	private static boolean isOpener(String body, int start, int p, int end) {
+		if (p + 2 > end || Character.isWhitespace(body.charAt(p + 1)))
+			return false;
+		if (p == start)
+			return true;
+		char before = body.charAt(p - 1);
+		return Character.isWhitespace(before) || (directiveIndex(before) >= 0 && before != body.charAt(p));
+	}
+
+	/**
+	 * Tokenisiert formatted_body in einem Durchlauf und schreibt die erlaubten
+	 * Elemente direkt unter target. Unbekannte Elemente werden durch ihren
+	 * Textinhalt ersetzt, mx-reply, script und style komplett verworfen.
+	 */
+	public static void htmlToXhtml(String html, Element target) {
+		// Stapel offener HTML-Elemente und des jeweils vorherigen Ziel-Elements
+		List<String> openNames = new ArrayList<>();
+		List<Element> parents = new ArrayList<>();
+		Element current = target;
+		int skipDepth = 0;
+		int preDepth = 0;
+		StringBuilder text = new StringBuilder();
+
+		int length = html.length();
+		int i = 0;
+		while (i < length) {
+			char c = html.charAt(i);
+			if (c != '<') {
+				int next = html.indexOf('<', i);
+				if (next < 0)
+					next = length;
+				if (skipDepth == 0)
+					decodeEntities(html, i, next, text);
+				i = next;
+				continue;
+			}
+
+			// Kommentare und Doctype
+			if (html.startsWith("<!--", i)) {
+				int endComment = html.indexOf("-->", i + 4);
+				i = endComment < 0 ? length : endComment + 3;
+				continue;
+			}
+			if (i + 1 < length && (html.charAt(i + 1) == '!' || html.charAt(i + 1) == '?')) {
+				int endDecl = html.indexOf('>', i);
+				i = endDecl < 0 ? length : endDecl + 1;
+				continue;
+			}
+
+			boolean closing = i + 1 < length && html.charAt(i + 1) == '/';
+			int nameStart = closing ? i + 2 : i + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < length && isNameChar(html.charAt(nameEnd)))
+				nameEnd++;
+			if (nameEnd == nameStart) {
+				// Kein Tag, sondern ein einzelnes '<'
+				if (skipDepth == 0)
+					text.append('<');
+				i++;
+				continue;
+			}
+			String name = html.substring(nameStart, nameEnd).toLowerCase();
+			int tagEnd = findTagEnd(html, nameEnd);
+			boolean selfClosing = tagEnd > 0 && html.charAt(tagEnd - 1) == '/';
+
+			if (closing) {
+				// Innerhalb verworfener Elemente zählen nur deren eigene Endtags
+				int open = skipDepth == 0 || isSkipped(name) ? openNames.lastIndexOf(name) : -1;
+				if (open >= 0) {
+					if (skipDepth == 0)
+						current = flushText(text, current, preDepth > 0);
+					// Falsch verschachtelte Elemente mit schließen
+					for (int k = openNames.size() - 1; k >= open; k--) {
+						String closed = openNames.remove(k);
+						current = parents.remove(k);
+						if (isSkipped(closed))
+							skipDepth--;
+						if ("pre".equals(closed))
+							preDepth--;
+					}
+				}
+				i = tagEnd + 1;
+				continue;
+			}
+
+			if (skipDepth > 0) {
+				if (isSkipped(name) && !selfClosing) {
+					openNames.add(name);
+					parents.add(current);
+					skipDepth++;
+				}
+				i = tagEnd + 1;
+				continue;
+			}
+
+			current = flushText(text, current, preDepth > 0);
+			if (isSkipped(name)) {
+				if (!selfClosing) {
+					openNames.add(name);
+					parents.add(current);
+					skipDepth++;
+				}
+			} else if (isVoid(name)) {
+				writeVoid(name, html, nameEnd, tagEnd, current);
+			} else if (!selfClosing) {
+				// <li> und <p> schließen ein offenes Geschwister gleichen Namens implizit
+				if (("li".equals(name) || "p".equals(name)) && !openNames.isEmpty()
+						&& name.equals(openNames.get(openNames.size() - 1))) {
+					openNames.remove(openNames.size() - 1);
+					current = parents.remove(parents.size() - 1);
+				}
+				openNames.add(name);
+				parents.add(current);
+				if ("pre".equals(name))
+					preDepth++;
+				current = openXhtml(name, html, nameEnd, tagEnd, current);
+			}
+			i = tagEnd + 1;
+		}
+		flushText(text, current, preDepth > 0);
+	}
+
+	private static boolean isSkipped(String name) {
+		return "mx-reply".equals(name) || "script".equals(name) || "style".equals(name);
+	}
+
+	private static boolean isVoid(String name) {
+		return "br".equals(name) || "hr".equals(name) || "img".equals(name);
+	}
+
+	private static boolean isNameChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-';
+	}
+
+	// Ende des Tags unter Beachtung von Anführungszeichen in Attributen
+	private static int findTagEnd(String html, int from) {
+		char quote = 0;
+		for (int i = from; i < html.length(); i++) {
+			char c = html.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return i;
+			}
+		}
+		return html.length() - 1;
+	}
+
+	// Wert eines Attributs innerhalb von [from, to) oder null
+	private static String attribute(String html, int from, int to, String name) {
+		int i = from;
+		while (i < to) {
+			while (i < to && (Character.isWhitespace(html.charAt(i)) || html.charAt(i) == '/'))
+				i++;
+			int nameStart = i;
+			while (i < to && html.charAt(i) != '=' && html.charAt(i) != '>' && !Character.isWhitespace(html.charAt(i)))
+				i++;
+			int nameEnd = i;
+			while (i < to && Character.isWhitespace(html.charAt(i)))
+				i++;
+			if (i >= to || html.charAt(i) != '=') {
+				if (nameEnd == nameStart)
+					i++;
+				continue;
+			}
+			i++;
+			while (i < to && Character.isWhitespace(html.charAt(i)))
+				i++;
+
+			int valueStart;
+			int valueEnd;
+			if (i < to && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+				char quote = html.charAt(i);
+				valueStart = i + 1;
+				valueEnd = html.indexOf(quote, valueStart);
+				if (valueEnd < 0 || valueEnd > to)
+					valueEnd = to;
+				i = valueEnd + 1;
+			} else {
+				valueStart = i;
+				while (i < to && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '>')
+					i++;
+				valueEnd = i;
+			}
+
+			if (nameEnd - nameStart == name.length() && html.regionMatches(true, nameStart, name, 0, name.length())) {
+				StringBuilder value = new StringBuilder(valueEnd - valueStart);
+				decodeEntities(html, valueStart, valueEnd, value);
+				return value.toString();
+			}
+		}
+		return null;
+	}
+
+	private static Element openXhtml(String name, String html, int attrStart, int attrEnd, Element parent) {
+		switch (name) {
+		case "b":
+		case "strong":
+			return parent.addElement("strong");
+		case "i":
+		case "em":
+			return parent.addElement("em");
+		case "u":
+			return parent.addElement("span").addAttribute("style", "text-decoration: underline");
+		case "s":
+		case "del":
+		case "strike":
+			return parent.addElement("span").addAttribute("style", "text-decoration: line-through");
+		case "code":
+		case "blockquote":
+		case "p":
+		case "ul":
+		case "ol":
+		case "li":
+			return parent.addElement(name);
+		case "pre":
+		case "div":
+			return parent.addElement("p");
+		case "h1":
+		case "h2":
+		case "h3":
+		case "h4":
+		case "h5":
+		case "h6":
+			return parent.addElement("p").addElement("strong");
+		case "a": {
+			String href = attribute(html, attrStart, attrEnd, "href");
+			return isSafeLink(href) ? parent.addElement("a").addAttribute("href", href) : parent;
+		}
+		default:
+			// Element verwerfen, Inhalt behalten
+			return parent;
+		}
+	}
+
+	private static void writeVoid(String name, String html, int attrStart, int attrEnd, Element parent) {
+		if ("img".equals(name)) {
+			String src = Utils.getMediaProxyUrl(attribute(html, attrStart, attrEnd, "src"));
+			if (src != null) {
+				Element img = parent.addElement("img").addAttribute("src", src);
+				String alt = attribute(html, attrStart, attrEnd, "alt");
+				if (alt != null)
+					img.addAttribute("alt", alt);
+			}
+		} else {
+			parent.addElement("br");
+		}
+	}
+
+	// Gesammelten Text anhängen; in <pre> werden Zeilenumbrüche zu <br/>
+	private static Element flushText(StringBuilder text, Element current, boolean pre) {
+		if (text.length() == 0)
+			return current;
+
+		if (!pre) {
+			current.addText(text.toString());
+		} else {
+			int start = 0;
+			for (int nl = text.indexOf("\n"); nl >= 0; nl = text.indexOf("\n", start)) {
+				if (nl > start)
+					current.addText(text.substring(start, nl));
+				current.addElement("br");
+				start = nl + 1;
+			}
+			if (start < text.length())
+				current.addText(text.substring(start));
+		}
+		text.setLength(0);
+		return current;
+	}
+
+	private static boolean isSafeLink(String href) {
+		if (href == null)
+			return false;
+		String lower = href.trim().toLowerCase();
+		return lower.startsWith("https://") || lower.startsWith("http://") || lower.startsWith("mailto:")
+				|| lower.startsWith("xmpp:") || lower.startsWith("matrix:");
+	}
+
+	private static void escape(String text, StringBuilder out) {
+		escape(text, 0, text.length(), out);
+	}
+
+	private static void escape(String text, int start, int end, StringBuilder out) {
+		int plain = start;
+		for (int i = start; i < end; i++) {
+			String replacement;
+			switch (text.charAt(i)) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			default:
+				continue;
+			}
+			out.append(text, plain, i).append(replacement);
+			plain = i + 1;
+		}
+		out.append(text, plain, end);
+	}
+
+	private static void decodeEntities(String html, int start, int end, StringBuilder out) {
+		int i = start;
+		while (i < end) {
+			int amp = html.indexOf('&', i);
+			if (amp < 0 || amp >= end) {
+				out.append(html, i, end);
+				return;
+			}
+			out.append(html, i, amp);
+			int semi = html.indexOf(';', amp);
+			if (semi < 0 || semi >= end || semi - amp > 10) {
+				out.append('&');
+				i = amp + 1;
+				continue;
+			}
+
+			int decoded = decodeEntity(html, amp + 1, semi);
+			if (decoded < 0) {
+				out.append(html, amp, semi + 1);
+			} else {
+				out.appendCodePoint(decoded);
+			}
+			i = semi + 1;
+		}
+	}
+
+	private static int decodeEntity(String html, int start, int end) {
+		if (start < end && html.charAt(start) == '#') {
+			try {
+				int codePoint = start + 1 < end && (html.charAt(start + 1) == 'x' || html.charAt(start + 1) == 'X')
+						? Integer.parseInt(html, start + 2, end, 16)
+						: Integer.parseInt(html, start + 1, end, 10);
+				// Alles außerhalb von XML Char würde dom4j beim Serialisieren als ungültiges XML durchreichen
+				return isXmlChar(codePoint) ? codePoint : 0xFFFD;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		switch (html.substring(start, end)) {
+		case "amp":
+			return '&';
+		case "lt":
+			return '<';
+		case "gt":
+			return '>';
+		case "quot":
+			return '"';
+		case "apos":
+			return '\'';
+		case "nbsp":
+			return ' ';
+		default:
+			return -1;
+		}
+	}
+
+	// Char ::= #x9 | #xA | #xD | [#x20-#xD7FF] | [#xE000-#xFFFD] | [#x10000-#x10FFFF]
+	private static boolean isXmlChar(int codePoint) {
+		return codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD
+				|| (codePoint >= 0x20 && codePoint <= 0xD7FF)
+				|| (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+				|| (codePoint >= 0x10000 && codePoint <= 0x10FFFF);
+	}
+}
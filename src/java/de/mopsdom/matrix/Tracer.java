@@ -0,0 +1,234 @@
+package de.mopsdom.matrix;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Stichprobenartiges Tracing einzelner Stanzas und Transaktionen. Am Eingang
+ * (processPacket bzw. handleTransactions) wird mit TRACE_SAMPLE_RATE ein
+ * Trace begonnen; er hängt am Thread, wird von {@link #wrap(Runnable)} über
+ * Warteschlangen getragen und vom Interceptor an jeden Homeserver-Aufruf
+ * gehängt (Header X-Correlation-ID). Am Ende wird eine Zeile pro Trace auf
+ * dem Logger de.mopsdom.matrix.Tracer.spans ausgegeben:
+ *
+ * <pre>
+ * 5f0c2a9e1b3d4c70 xmpp ref=abc123 total=142ms queue@0+3 POST:send@3+131=200 done@138
+ * </pre>
+ *
+ * Ohne Trace kostet jede Stufe nur einen ThreadLocal-Zugriff.
+ */
+public class Tracer {
+
+	private static final Logger Log = LoggerFactory.getLogger(Tracer.class);
+	private static final Logger Spans = LoggerFactory.getLogger(Tracer.class.getName() + ".spans");
+
+	public static final String HEADER = "X-Correlation-ID";
+
+	// Event-IDs gesendeter Trace-Nachrichten, deren Echo vom Homeserver noch aussteht
+	private static final int MAX_PENDING_ECHOES = 1024;
+
+	private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+	private static final Map<String, Trace> pendingEchoes = new LinkedHashMap<>(64, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Trace> eldest) {
+			return size() > MAX_PENDING_ECHOES;
+		}
+	};
+
+	// Zuletzt gelesene TRACE_FORCE-Liste, nur bei Änderung neu geparst
+	private static volatile String forcedSource = null;
+	private static volatile Set<String> forced = Set.of();
+
+	public static class Trace {
+		private final String id;
+		private final String origin;
+		private final String ref;
+		private final long start = System.nanoTime();
+		private final StringBuilder spans = new StringBuilder();
+
+		private Trace(String origin, String ref) {
+			this.id = String.format("%016x", ThreadLocalRandom.current().nextLong());
+			this.origin = origin;
+			this.ref = ref;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		private long offset(long nanos) {
+			return (nanos - start) / 1_000_000;
+		}
+
+		synchronized void mark(String stage) {
+			spans.append(' ').append(stage).append('@').append(offset(System.nanoTime()));
+		}
+
+		synchronized void span(String stage, long startNanos, String result) {
+			spans.append(' ').append(stage).append('@').append(offset(startNanos)).append('+')
+					.append((System.nanoTime() - startNanos) / 1_000_000);
+			if (result != null)
+				spans.append('=').append(result);
+		}
+
+		synchronized String format() {
+			return id + " " + origin + " ref=" + ref + " total=" + offset(System.nanoTime()) + "ms" + spans;
+		}
+	}
+
+	/**
+	 * Beginnt am Eingang einen Trace, wenn die Stichprobe oder die
+	 * TRACE_FORCE-Liste (principal = Bare-JID des Absenders) es verlangt; sonst null.
+	 */
+	public static Trace begin(String origin, String ref, String principal) {
+		double rate = MatrixBridgePlugin.TRACE_SAMPLE_RATE.getValue();
+		boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+		if (!sampled && (principal == null || !isForced(principal))) {
+			current.remove();
+			return null;
+		}
+
+		Trace trace = new Trace(origin, ref);
+		current.set(trace);
+		return trace;
+	}
+
+	public static Trace current() {
+		return current.get();
+	}
+
+	public static void detach() {
+		current.remove();
+	}
+
+	public static void mark(String stage) {
+		Trace trace = current.get();
+		if (trace != null)
+			trace.mark(stage);
+	}
+
+	/**
+	 * Gibt den Trace aus und löst ihn vom Thread. null wird ignoriert.
+	 */
+	public static void end(Trace trace) {
+		if (trace == null)
+			return;
+		trace.mark("done");
+		if (current.get() == trace)
+			current.remove();
+		Spans.info(trace.format());
+	}
+
+	/**
+	 * Trägt den aktuellen Trace in eine Warteschlange; die Wartezeit wird als
+	 * Span "queue" erfasst. Ohne Trace wird der Task unverändert geliefert.
+	 */
+	public static Runnable wrap(Runnable task) {
+		Trace trace = current.get();
+		if (trace == null)
+			return task;
+
+		long queued = System.nanoTime();
+		return () -> {
+			Trace previous = current.get();
+			current.set(trace);
+			trace.span("queue", queued, null);
+			try {
+				task.run();
+			} finally {
+				if (previous != null)
+					current.set(previous);
+				else
+					current.remove();
+			}
+		};
+	}
+
+	/**
+	 * Merkt sich die Event-ID einer im Trace gesendeten Nachricht, damit ihr
+	 * Echo in einer späteren Transaktion zugeordnet werden kann.
+	 */
+	public static void expectEcho(String eventId) {
+		Trace trace = current.get();
+		if (trace == null || eventId == null)
+			return;
+		synchronized (pendingEchoes) {
+			pendingEchoes.put(eventId, trace);
+		}
+	}
+
+	/**
+	 * Aufruf für jedes Event einer eingehenden Transaktion. Gehört es zu einem
+	 * Trace, wird die Zeit bis zum Echo als eigene Zeile ausgegeben.
+	 */
+	public static void onEvent(String eventId) {
+		if (eventId == null || eventId.isEmpty())
+			return;
+		Trace trace;
+		synchronized (pendingEchoes) {
+			if (pendingEchoes.isEmpty())
+				return;
+			trace = pendingEchoes.remove(eventId);
+		}
+		if (trace == null)
+			return;
+
+		Trace inbound = current.get();
+		Spans.info(trace.id + " echo event=" + eventId + " after=" + trace.offset(System.nanoTime()) + "ms"
+				+ (inbound != null ? " in=" + inbound.id : ""));
+	}
+
+	/**
+	 * Interceptor für den OkHttp-Client: hängt die Correlation-ID an und
+	 * erfasst Methode, Endpunktgruppe, Dauer und Status jedes Aufrufs. Muss
+	 * als erster Interceptor registriert werden, damit Wartezeiten im
+	 * Concurrency Limiter mitgemessen werden.
+	 */
+	public static Interceptor createInterceptor() {
+		return chain -> {
+			Trace trace = current.get();
+			if (trace == null)
+				return chain.proceed(chain.request());
+
+			Request request = chain.request().newBuilder().header(HEADER, trace.id).build();
+			String stage = request.method() + ":" + CircuitBreakerRegistry.getGroup(request.url().encodedPath());
+			long start = System.nanoTime();
+			try {
+				Response response = chain.proceed(request);
+				trace.span(stage, start, String.valueOf(response.code()));
+				return response;
+			} catch (Exception e) {
+				trace.span(stage, start, e.getClass().getSimpleName());
+				throw e;
+			}
+		};
+	}
+
+	private static boolean isForced(String principal) {
+		String source = MatrixBridgePlugin.TRACE_FORCE.getValue();
+		if (source == null || source.isBlank())
+			return false;
+
+		if (!source.equals(forcedSource)) {
+			Set<String> parsed = Set.copyOf(Arrays.asList(source.trim().split("\\s*,\\s*")));
+			forced = parsed;
+			forcedSource = source;
+			Log.info("Tracing forced for " + parsed);
+		}
+		return forced.contains(principal);
+	}
+}
@@ -0,0 +1,198 @@
+package de.mopsdom.matrix;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.Element;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.Utils;
+import de.mopsdom.xmpp.BridgeExecutor;
+import de.mopsdom.xmpp.MatrixBridgePlugin;
+
+/**
+ * Bridged XEP-0085 Chat States als m.typing. Zustandswechsel im Tastentakt
+ * werden pro Benutzer und Raum auf höchstens einen Aufruf pro Intervall
+ * zusammengefasst; solange ein Benutzer tippt, wird der serverseitige Timeout
+ * rechtzeitig erneuert.
+ */
+public class TypingBridge {
+
+	private static final Logger Log = LoggerFactory.getLogger(TypingBridge.class);
+
+	public static final String CHATSTATES_NAMESPACE = "http://jabber.org/protocol/chatstates";
+
+	// Schutz gegen hängende "composing"-Zustände von Clients, die nie "paused" senden
+	private static final long MAX_TYPING_MS = 120_000;
+
+	private static TypingBridge instance = null;
+
+	private final Map<String, TypingState> states = new ConcurrentHashMap<>();
+
+	private TimerTask flushTask = null;
+
+	private static class TypingState {
+		final String roomId;
+		final String userId;
+		boolean desired = false;
+		boolean sent = false;
+		boolean inFlight = false;
+		long lastSentAt = 0;
+		long typingSince = 0;
+
+		TypingState(String roomId, String userId) {
+			this.roomId = roomId;
+			this.userId = userId;
+		}
+	}
+
+	public static TypingBridge getInstance() {
+		if (instance == null)
+			instance = new TypingBridge();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (flushTask != null)
+			return;
+
+		flushTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		long interval = MatrixBridgePlugin.TYPING_INTERVAL_MS.getValue();
+		TaskEngine.getInstance().schedule(flushTask, Duration.ofMillis(interval), Duration.ofMillis(interval));
+	}
+
+	public synchronized void stop() {
+		if (flushTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(flushTask);
+			flushTask = null;
+		}
+		states.clear();
+	}
+
+	/**
+	 * true = tippt, false = tippt nicht mehr, null = kein Chat State enthalten.
+	 */
+	public static Boolean getTypingState(Message message) {
+		for (Element child : message.getElement().elements()) {
+			if (!CHATSTATES_NAMESPACE.equals(child.getNamespaceURI()))
+				continue;
+			return "composing".equals(child.getName());
+		}
+		return null;
+	}
+
+	public void onChatState(Message message, boolean typing) {
+		String roomId = MatrixAPI.forJid(message.getFrom())
+				.getCachedRoomId(MatrixAPI.getDirectRoomAlias(message.getFrom(), message.getTo()));
+		if (roomId == null) {
+			// Für Tippbenachrichtigungen wird kein Raum angelegt
+			return;
+		}
+		update(roomId, Utils.convertXmppUserJIDToMatrixID(message.getFrom(), "@xmpp_"), typing);
+	}
+
+	// Eine echte Nachricht beendet das Tippen
+	public void onMessageSent(String roomId, String userId) {
+		if (states.containsKey(roomId + "|" + userId))
+			update(roomId, userId, false);
+	}
+
+	private void update(String roomId, String userId, boolean typing) {
+		TypingState state = states.computeIfAbsent(roomId + "|" + userId, k -> new TypingState(roomId, userId));
+		boolean sendNow;
+		synchronized (state) {
+			if (typing && !state.desired)
+				state.typingSince = System.currentTimeMillis();
+			state.desired = typing;
+			sendNow = isDue(state, System.currentTimeMillis());
+			if (sendNow)
+				state.inFlight = true;
+		}
+		if (sendNow)
+			send(state);
+	}
+
+	private boolean isDue(TypingState state, long now) {
+		if (state.inFlight)
+			return false;
+
+		long interval = MatrixBridgePlugin.TYPING_INTERVAL_MS.getValue();
+		if (state.desired != state.sent)
+			return now - state.lastSentAt >= interval;
+
+		// Erneuern, bevor der Homeserver den Tipp-Zustand von selbst verwirft
+		long refreshAfter = MatrixBridgePlugin.TYPING_TIMEOUT_MS.getValue() - interval;
+		return state.desired && now - state.lastSentAt >= refreshAfter && now - state.typingSince < MAX_TYPING_MS;
+	}
+
+	private void send(TypingState state) {
+		boolean typing;
+		synchronized (state) {
+			typing = state.desired;
+		}
+
+		try {
+			MatrixAPI.forMxid(state.userId).setTyping(state.roomId, state.userId, typing,
+					MatrixBridgePlugin.TYPING_TIMEOUT_MS.getValue());
+			synchronized (state) {
+				state.sent = typing;
+				state.lastSentAt = System.currentTimeMillis();
+			}
+		} catch (IOException e) {
+			Log.debug("Typing notification for " + state.userId + " failed: " + e.getMessage());
+			synchronized (state) {
+				// Nicht sofort wiederholen, der nächste Flush versucht es erneut
+				state.lastSentAt = System.currentTimeMillis();
+			}
+		} finally {
+			synchronized (state) {
+				state.inFlight = false;
+			}
+		}
+	}
+
+	private void flush() {
+		long now = System.currentTimeMillis();
+		List<TypingState> due = new ArrayList<>();
+
+		Iterator<TypingState> it = states.values().iterator();
+		while (it.hasNext()) {
+			TypingState state = it.next();
+			synchronized (state) {
+				if (!state.desired && !state.sent && !state.inFlight) {
+					it.remove();
+				} else if (state.desired && now - state.typingSince >= MAX_TYPING_MS) {
+					state.desired = false;
+				}
+				if (isDue(state, now)) {
+					state.inFlight = true;
+					due.add(state);
+				}
+			}
+		}
+
+		for (TypingState state : due) {
+			if (!BridgeExecutor.getInstance().execute(() -> send(state))) {
+				// Abgelehnt: der nächste Flush versucht es erneut, sonst bliebe der Zustand für immer belegt
+				synchronized (state) {
+					state.inFlight = false;
+				}
+			}
+		}
+	}
+}
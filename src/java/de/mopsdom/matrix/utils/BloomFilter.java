@@ -0,0 +1,71 @@
+package de.mopsdom.matrix.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Einfacher, threadsicherer Bloom-Filter für Strings. mightContain() liefert
+ * niemals false für einen hinzugefügten Wert; true muss exakt bestätigt werden.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final int bitCount;
+	private final int hashCount;
+
+	public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+		int n = Math.max(1, expectedInsertions);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+		this.bits = new AtomicLongArray((bitCount + 63) / 64);
+	}
+
+	public void add(String value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			int index = Math.floorMod(h1 + i * h2, bitCount);
+			long mask = 1L << index;
+			int word = index >>> 6;
+			long current;
+			do {
+				current = bits.get(word);
+				if ((current & mask) != 0)
+					break;
+			} while (!bits.compareAndSet(word, current, current | mask));
+		}
+	}
+
+	public boolean mightContain(String value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			int index = Math.floorMod(h1 + i * h2, bitCount);
+			if ((bits.get(index >>> 6) & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public int getBitCount() {
+		return bitCount;
+	}
+
+	// FNV-1a über UTF-8 mit Murmur3-Finalizer, damit beide 32-Bit-Hälften gut verteilt sind
+	static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
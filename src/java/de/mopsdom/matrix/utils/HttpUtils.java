@@ -1,6 +1,15 @@
 package de.mopsdom.matrix.utils;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -13,7 +22,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.mopsdom.matrix.MatrixTransactionHandlerServlet;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
 
 public class HttpUtils {
 	
@@ -53,6 +67,78 @@ public class HttpUtils {
         }
     }
 	
+	// Begrenzt die gleichzeitigen Requests pro Homeserver (Host + Port), unabhängig von der Anzahl der Threads
+	public static Interceptor createConcurrencyLimiter(int maxConcurrentRequests) {
+		ConcurrentHashMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+		return chain -> {
+			HttpUrl url = chain.request().url();
+			Semaphore semaphore = permits.computeIfAbsent(url.host() + ":" + url.port(),
+					k -> new Semaphore(maxConcurrentRequests));
+			try {
+				semaphore.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a homeserver request slot");
+			}
+			try {
+				return chain.proceed(chain.request());
+			} finally {
+				semaphore.release();
+			}
+		};
+	}
+
+	public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private static final MediaType JSON = MediaType.parse("application/json");
+
+	// Request-Body, der direkt aus einem Stream schreibt – die Daten liegen nie komplett im Heap
+	public static RequestBody streamingBody(InputStream in, long contentLength, MediaType mediaType) {
+		return new RequestBody() {
+			@Override
+			public MediaType contentType() {
+				return mediaType;
+			}
+
+			@Override
+			public long contentLength() {
+				return contentLength;
+			}
+
+			@Override
+			public boolean isOneShot() {
+				return true;
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					sink.write(buffer, 0, read);
+				}
+			}
+		};
+	}
+
+	// JSON direkt in den Request serialisieren, ohne den ganzen Text vorher als String/byte[] aufzubauen
+	public static RequestBody jsonBody(JSONObject json) {
+		return new RequestBody() {
+			@Override
+			public MediaType contentType() {
+				return JSON;
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				// Nicht schließen: der Sink gehört OkHttp
+				Writer writer = new BufferedWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+				json.write(writer);
+				writer.flush();
+			}
+		};
+	}
+
 	public static void sendResult(HttpServletResponse resp, int code, JSONObject body)
 	{
 		try {
@@ -0,0 +1,293 @@
+package de.mopsdom.matrix.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bidirektionaler Index zwischen zwei ID-Räumen (links ↔ rechts) mit fester
+ * Obergrenze im Speicher.
+ *
+ * Beide Richtungen sind Open-Addressing-Tabellen (lineares Sondieren) über
+ * 64-Bit-Hashes in primitiven Arrays; die Einträge selbst liegen in einem
+ * Ring, der nach dem CLOCK-Verfahren gealtert wird. Verdrängte Einträge
+ * werden in eine gemappte Datei mit festen Slots ausgelagert und bei Bedarf
+ * von dort zurückgeholt.
+ */
+public class IdIndex {
+
+	private static final long EMPTY = 0;
+
+	// rightHashes-Wert eines Eintrags, dessen rechte ID inzwischen zu einem anderen Eintrag gehört
+	private static final long DETACHED = EMPTY;
+
+	// Auf der Platte: [long Hash][short Länge links][short Länge rechts][Bytes]
+	private static final int SLOT_SIZE = 256;
+	private static final int SLOT_HEADER = 8 + 2 + 2;
+	private static final int SPILL_PROBES = 8;
+
+	private final int capacity;
+
+	// Hash → Eintrag+1 (0 = frei), Tabellengröße ist eine Zweierpotenz ≥ 2 × capacity
+	private final long[] leftKeys;
+	private final int[] leftSlots;
+	private final long[] rightKeys;
+	private final int[] rightSlots;
+	private final int mask;
+
+	private final String[] lefts;
+	private final String[] rights;
+	private final long[] leftHashes;
+	private final long[] rightHashes;
+	private final boolean[] referenced;
+	private int size = 0;
+	private int hand = 0;
+
+	private final MappedByteBuffer spill;
+	private final int spillSlots;
+
+	/**
+	 * @param spillFile Auslagerungsdatei oder null, um verdrängte Einträge zu verwerfen
+	 */
+	public IdIndex(int capacity, File spillFile, int spillSlots) throws IOException {
+		this.capacity = capacity;
+		int tableSize = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+		mask = tableSize - 1;
+		leftKeys = new long[tableSize];
+		leftSlots = new int[tableSize];
+		rightKeys = new long[tableSize];
+		rightSlots = new int[tableSize];
+
+		lefts = new String[capacity];
+		rights = new String[capacity];
+		leftHashes = new long[capacity];
+		rightHashes = new long[capacity];
+		referenced = new boolean[capacity];
+
+		if (spillFile != null && spillSlots > 0) {
+			this.spillSlots = spillSlots;
+			try (RandomAccessFile raf = new RandomAccessFile(spillFile, "rw"); FileChannel channel = raf.getChannel()) {
+				spill = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) spillSlots * SLOT_SIZE);
+			}
+		} else {
+			this.spillSlots = 0;
+			spill = null;
+		}
+	}
+
+	public synchronized void put(String left, String right) {
+		long leftHash = keyHash(left);
+		long rightHash = keyHash(right);
+
+		int existing = find(leftKeys, leftSlots, leftHash);
+		if (existing >= 0 && left.equals(lefts[existing])) {
+			// Neue Zuordnung für dieselbe linke ID
+			removeKey(rightKeys, rightSlots, rightHashes[existing]);
+			detachRight(rightHash, existing);
+			rights[existing] = right;
+			rightHashes[existing] = rightHash;
+			insertKey(rightKeys, rightSlots, rightHash, existing);
+			referenced[existing] = true;
+			return;
+		}
+
+		int slot = size < capacity ? size++ : evict();
+		detachRight(rightHash, slot);
+		lefts[slot] = left;
+		rights[slot] = right;
+		leftHashes[slot] = leftHash;
+		rightHashes[slot] = rightHash;
+		referenced[slot] = false;
+		insertKey(leftKeys, leftSlots, leftHash, slot);
+		insertKey(rightKeys, rightSlots, rightHash, slot);
+	}
+
+	public synchronized String getRight(String left) {
+		long hash = keyHash(left);
+		int slot = find(leftKeys, leftSlots, hash);
+		if (slot >= 0 && left.equals(lefts[slot])) {
+			referenced[slot] = true;
+			return rights[slot];
+		}
+
+		String[] spilled = readSpill(hash, left, true);
+		if (spilled == null)
+			return null;
+		put(spilled[0], spilled[1]);
+		return spilled[1];
+	}
+
+	public synchronized String getLeft(String right) {
+		long hash = keyHash(right);
+		int slot = find(rightKeys, rightSlots, hash);
+		if (slot >= 0 && right.equals(rights[slot])) {
+			referenced[slot] = true;
+			return lefts[slot];
+		}
+
+		String[] spilled = readSpill(hash, right, false);
+		if (spilled == null)
+			return null;
+		put(spilled[0], spilled[1]);
+		return spilled[0];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Beim Beenden alles auslagern, damit die Zuordnungen einen Neustart überleben
+	public synchronized void flush() {
+		if (spill == null)
+			return;
+
+		for (int i = 0; i < size; i++)
+			writeSpill(lefts[i], rights[i], rightHashes[i] != DETACHED);
+		spill.force();
+	}
+
+	/**
+	 * Gehört die rechte ID schon zu einem anderen Eintrag, verliert dieser
+	 * seine rechte Zuordnung; sonst würde seine spätere Verdrängung den
+	 * Tabelleneintrag des neuen Besitzers löschen.
+	 */
+	private void detachRight(long rightHash, int slot) {
+		int previous = find(rightKeys, rightSlots, rightHash);
+		if (previous >= 0 && previous != slot)
+			rightHashes[previous] = DETACHED;
+	}
+
+	// CLOCK: kürzlich genutzte Einträge bekommen eine zweite Chance
+	private int evict() {
+		while (referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) % capacity;
+		}
+
+		int victim = hand;
+		hand = (hand + 1) % capacity;
+
+		writeSpill(lefts[victim], rights[victim], rightHashes[victim] != DETACHED);
+		removeKey(leftKeys, leftSlots, leftHashes[victim]);
+		removeKey(rightKeys, rightSlots, rightHashes[victim]);
+		return victim;
+	}
+
+	private int find(long[] keys, int[] slots, long hash) {
+		int i = (int) hash & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == hash)
+				return slots[i] - 1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insertKey(long[] keys, int[] slots, long hash, int slot) {
+		int i = (int) hash & mask;
+		while (keys[i] != EMPTY && keys[i] != hash)
+			i = (i + 1) & mask;
+		keys[i] = hash;
+		slots[i] = slot + 1;
+	}
+
+	// Löschen mit Rückwärtsverschiebung, damit keine Grabsteine die Sondierketten verlängern
+	private void removeKey(long[] keys, int[] slots, long hash) {
+		if (hash == DETACHED)
+			return;
+
+		int i = (int) hash & mask;
+		while (keys[i] != hash) {
+			if (keys[i] == EMPTY)
+				return;
+			i = (i + 1) & mask;
+		}
+
+		int gap = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == EMPTY)
+				break;
+			int home = (int) keys[j] & mask;
+			// Eintrag j darf nur in die Lücke, wenn sein Startplatz nicht zwischen Lücke und j liegt
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				slots[gap] = slots[j];
+				gap = j;
+			}
+		}
+		keys[gap] = EMPTY;
+		slots[gap] = 0;
+	}
+
+	// withRight = false: nur links → rechts, die rechte ID gehört inzwischen einem anderen Eintrag
+	private void writeSpill(String left, String right, boolean withRight) {
+		if (spill == null)
+			return;
+
+		byte[] l = left.getBytes(StandardCharsets.UTF_8);
+		byte[] r = right.getBytes(StandardCharsets.UTF_8);
+		// Zu lange IDs werden nicht ausgelagert
+		if (SLOT_HEADER + l.length + r.length > SLOT_SIZE)
+			return;
+
+		writeSlot(keyHash(left), l, r);
+		if (withRight)
+			writeSlot(keyHash(right), l, r);
+	}
+
+	// Gleicher Hash oder freier Slot in der Sondierkette, sonst wird der Startslot überschrieben
+	private void writeSlot(long hash, byte[] l, byte[] r) {
+		int start = (int) Long.remainderUnsigned(hash, spillSlots);
+		int target = start;
+		for (int p = 0; p < SPILL_PROBES; p++) {
+			int candidate = (start + p) % spillSlots;
+			long stored = spill.getLong(candidate * SLOT_SIZE);
+			if (stored == EMPTY || stored == hash) {
+				target = candidate;
+				break;
+			}
+		}
+
+		int offset = target * SLOT_SIZE;
+		spill.putShort(offset + 8, (short) l.length);
+		spill.putShort(offset + 10, (short) r.length);
+		spill.put(offset + SLOT_HEADER, l);
+		spill.put(offset + SLOT_HEADER + l.length, r);
+		spill.putLong(offset, hash);
+	}
+
+	private String[] readSpill(long hash, String key, boolean isLeft) {
+		if (spill == null)
+			return null;
+
+		int start = (int) Long.remainderUnsigned(hash, spillSlots);
+		for (int p = 0; p < SPILL_PROBES; p++) {
+			int offset = ((start + p) % spillSlots) * SLOT_SIZE;
+			long stored = spill.getLong(offset);
+			if (stored == EMPTY)
+				return null;
+			if (stored != hash)
+				continue;
+
+			byte[] l = new byte[spill.getShort(offset + 8)];
+			byte[] r = new byte[spill.getShort(offset + 10)];
+			spill.get(offset + SLOT_HEADER, l);
+			spill.get(offset + SLOT_HEADER + l.length, r);
+			String[] pair = new String[] { new String(l, StandardCharsets.UTF_8), new String(r, StandardCharsets.UTF_8) };
+			if (key.equals(isLeft ? pair[0] : pair[1]))
+				return pair;
+		}
+		return null;
+	}
+
+	// 0 markiert freie Plätze und wird daher nie als Hash vergeben
+	private static long keyHash(String value) {
+		long hash = BloomFilter.hash(value);
+		return hash == EMPTY ? 1 : hash;
+	}
+}
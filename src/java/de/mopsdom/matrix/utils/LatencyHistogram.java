@@ -0,0 +1,89 @@
+package de.mopsdom.matrix.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramm für Latenzen in Millisekunden mit Zweierpotenz-Buckets
+ * (0, 1, 2-3, 4-7, ... ms). Perzentile werden als Obergrenze des Buckets
+ * geliefert, also auf höchstens Faktor 2 genau; dafür kostet das Erfassen
+ * nur ein Inkrement und der Speicher ist fest.
+ */
+public class LatencyHistogram {
+
+	// Letzter Bucket sammelt alles ab 2^(BUCKETS-2) ms (~65 s)
+	private static final int BUCKETS = 18;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis) {
+		if (millis < 0)
+			millis = 0;
+		counts.incrementAndGet(bucket(millis));
+		total.incrementAndGet();
+		sum.addAndGet(millis);
+		max.accumulateAndGet(millis, Math::max);
+	}
+
+	private static int bucket(long millis) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket == 0 ? 0 : (1L << bucket) - 1;
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = total.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * Obergrenze des Buckets, in dem das Perzentil q (0..1) liegt; -1 ohne
+	 * Messwerte.
+	 */
+	public long getPercentile(double q) {
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return -1;
+
+		long rank = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return i == BUCKETS - 1 ? max.get() : Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " p50=" + getPercentile(0.5) + " p95=" + getPercentile(0.95) + " p99="
+				+ getPercentile(0.99) + " max=" + getMax() + " ms";
+	}
+}
@@ -0,0 +1,152 @@
+package de.mopsdom.matrix.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kleiner dateibasierter Key/Value-Speicher im Datenverzeichnis des Plugins.
+ * Änderungen werden gesammelt und spätestens nach SAVE_DELAY in einem
+ * Schreibvorgang atomar (temporäre Datei + move) gespeichert, damit ein
+ * Absturz beim Speichern keinen halben Zustand hinterlässt. {@link #close()}
+ * bzw. {@link #flushAll()} schreiben ausstehende Änderungen sofort.
+ */
+public class PropertiesStore {
+
+	private static final Logger Log = LoggerFactory.getLogger(PropertiesStore.class);
+
+	private static final Duration SAVE_DELAY = Duration.ofSeconds(2);
+
+	// Offene Speicher, damit beim Beenden des Plugins nichts verloren geht
+	private static final Set<PropertiesStore> open = ConcurrentHashMap.newKeySet();
+
+	private final Path file;
+	private final Properties properties = new Properties();
+
+	// Serialisiert die Schreibvorgänge, ohne get/put während des Schreibens zu blockieren
+	private final Object saveLock = new Object();
+
+	private boolean dirty = false;
+	private TimerTask saveTask = null;
+
+	public PropertiesStore(String name) {
+		this.file = Utils.getDataDirectory().toPath().resolve(name + ".properties");
+		load();
+		open.add(this);
+	}
+
+	private synchronized void load() {
+		if (!Files.exists(file))
+			return;
+
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		} catch (IOException e) {
+			Log.error("Could not load " + file + ": " + e.getMessage());
+		}
+	}
+
+	public synchronized String get(String key) {
+		return properties.getProperty(key);
+	}
+
+	public synchronized void put(String key, String value) {
+		if (value.equals(properties.setProperty(key, value)))
+			return;
+		markDirty();
+	}
+
+	// Mehrere Einträge mit einer einzigen Änderung
+	public synchronized void putAll(Map<String, String> values) {
+		if (values.isEmpty())
+			return;
+		properties.putAll(values);
+		markDirty();
+	}
+
+	public synchronized void remove(String key) {
+		if (properties.remove(key) != null)
+			markDirty();
+	}
+
+	private void markDirty() {
+		dirty = true;
+		if (saveTask != null)
+			return;
+
+		saveTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		TaskEngine.getInstance().schedule(saveTask, SAVE_DELAY);
+	}
+
+	/**
+	 * Schreibt ausstehende Änderungen sofort.
+	 */
+	public void flush() {
+		synchronized (saveLock) {
+			Properties snapshot;
+			synchronized (this) {
+				if (saveTask != null) {
+					TaskEngine.getInstance().cancelScheduledTask(saveTask);
+					saveTask = null;
+				}
+				if (!dirty)
+					return;
+				dirty = false;
+				snapshot = new Properties();
+				snapshot.putAll(properties);
+			}
+			save(snapshot);
+		}
+	}
+
+	/**
+	 * Schreibt ausstehende Änderungen und meldet den Speicher ab.
+	 */
+	public void close() {
+		open.remove(this);
+		flush();
+	}
+
+	public static void flushAll() {
+		List<PropertiesStore> stores = new ArrayList<>(open);
+		for (PropertiesStore store : stores)
+			store.flush();
+	}
+
+	private void save(Properties snapshot) {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				snapshot.store(out, null);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.error("Could not save " + file + ": " + e.getMessage());
+		}
+	}
+
+	public File getFile() {
+		return file.toFile();
+	}
+}
@@ -1,23 +1,32 @@
 package de.mopsdom.matrix.utils;
 
-import java.util.List;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.jivesoftware.openfire.XMPPServer;
-import org.jivesoftware.openfire.muc.MUCOccupant;
-import org.jivesoftware.openfire.muc.MUCRoom;
-import org.jivesoftware.openfire.muc.MultiUserChatManager;
-import org.jivesoftware.openfire.muc.MultiUserChatService;
-import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.openfire.http.HttpBindManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 import de.mopsdom.xmpp.MatrixBridgePlugin;
+import de.mopsdom.xmpp.MucIndex;
 
 public class Utils {
 
 	private static final Logger Log = LoggerFactory.getLogger(Utils.class);
 
+	// Schlüssel für die Signatur der Proxy-URLs; wird beim ersten Zugriff erzeugt und verschlüsselt gespeichert
+	private static final String MEDIA_SECRET_PROPERTY = "plugin.matrix_bridge.media.url_secret";
+
 	public static String convertXmppUserJIDToMatrixID(JID jid, String prefix) {
 		// z. B. user_b@openfire.local → #user_b:openfire.local
 		return prefix + jid.getNode() + ":" + jid.getDomain();
@@ -44,27 +53,70 @@ public class Utils {
 		    return new JID(localPart + "@" + domain );
 	}
 
+	// room@service/nick → echte JID des Occupants
 	public static JID getJidFromMucJid(JID jid) {
-		MultiUserChatManager manager = XMPPServer.getInstance().getMultiUserChatManager();
-		MultiUserChatService service = manager.getMultiUserChatService(jid);
-		if (service == null)
-			return null;
+		JID userJid = MucIndex.getInstance().getRealJid(jid);
+		if (userJid == null)
+			Log.error("User not found with nickname from jid: " + jid.toString());
+		return userJid;
+	}
 
-		MUCRoom room = service.getChatRoom(jid.getNode());
-		if (room == null)
+	public static File getDataDirectory() {
+		// Liegt bewusst außerhalb des Plugin-Verzeichnisses, damit Updates den Zustand nicht löschen
+		File dir = new File(JiveGlobals.getHomePath(), "matrix_bridge");
+		if (!dir.exists() && !dir.mkdirs())
+			Log.error("Could not create data directory: " + dir.getAbsolutePath());
+		return dir;
+	}
+
+	// mxc://server/mediaId → signierte URL des Medien-Proxys, die XMPP-Clients abrufen können
+	public static String getMediaProxyUrl(String mxc) {
+		if (mxc == null || !mxc.startsWith("mxc://"))
 			return null;
+		String media = mxc.substring("mxc://".length());
 
+		String base = MatrixBridgePlugin.MEDIA_PUBLIC_URL.getValue();
+		if (base == null || base.isEmpty()) {
+			base = "https://" + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + ":"
+					+ HttpBindManager.HTTP_BIND_SECURE_PORT.getValue() + "/matrix/media";
+		}
+		if (base.endsWith("/"))
+			base = base.substring(0, base.length() - 1);
+
+		return base + "/" + media + "?sig=" + signMedia(media);
+	}
+
+	/**
+	 * Prüft die Signatur einer Proxy-URL; media ist "server/mediaId". Nur vom
+	 * Plugin selbst ausgegebene URLs werden damit ausgeliefert.
+	 */
+	public static boolean verifyMediaSignature(String media, String signature) {
+		if (signature == null)
+			return false;
+		return MessageDigest.isEqual(signMedia(media).getBytes(StandardCharsets.US_ASCII),
+				signature.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String signMedia(String media) {
 		try {
-			List<MUCOccupant> occupants = room.getOccupantsByNickname(jid.getDomain());
-			if (occupants.size() > 0) {
-				return occupants.get(0).getUserAddress();
-			}
-			Log.error("User not found with nickname from jid: " + jid.toString());
-			return null;
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(getMediaSecret(), "HmacSHA256"));
+			byte[] digest = mac.doFinal(media.getBytes(StandardCharsets.UTF_8));
+			// 128 Bit genügen und halten die URL kurz
+			return HexFormat.of().formatHex(digest, 0, 16);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 
-		} catch (UserNotFoundException e) {
-			Log.error("User not found with nickname from jid: " + jid.toString());
-			return null;
+	private static synchronized byte[] getMediaSecret() {
+		String secret = JiveGlobals.getProperty(MEDIA_SECRET_PROPERTY);
+		if (secret == null || secret.isEmpty()) {
+			byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			secret = HexFormat.of().formatHex(random);
+			JiveGlobals.setProperty(MEDIA_SECRET_PROPERTY, secret, true);
 		}
+		return secret.getBytes(StandardCharsets.US_ASCII);
 	}
 }
@@ -0,0 +1,63 @@
+package de.mopsdom.xmpp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Zulassungskontrolle für ausgehende Arbeit. Erreicht die Anzahl wartender
+ * Tasks die obere Marke, wechselt die Bridge in den Degraded Mode: Presences
+ * und Verzeichnis-Veröffentlichungen werden verworfen, Nachrichten über der
+ * oberen Marke mit resource-constraint abgewiesen. Erst unterhalb der unteren
+ * Marke wird wieder normal gearbeitet.
+ */
+public class AdmissionController {
+
+	private static final Logger Log = LoggerFactory.getLogger(AdmissionController.class);
+
+	public enum Decision {
+		ACCEPT, SHED, REJECT
+	}
+
+	private static AdmissionController instance = null;
+
+	private final AtomicBoolean degraded = new AtomicBoolean(false);
+
+	public static AdmissionController getInstance() {
+		if (instance == null)
+			instance = new AdmissionController();
+
+		return instance;
+	}
+
+	public Decision admit(Packet packet) {
+		int pending = OutboundDispatcher.getInstance().getPendingCount();
+		int high = MatrixBridgePlugin.OUTBOUND_HIGH_WATERMARK.getValue();
+		int low = Math.min(MatrixBridgePlugin.OUTBOUND_LOW_WATERMARK.getValue(), high);
+
+		if (pending >= high) {
+			if (degraded.compareAndSet(false, true))
+				Log.warn("Outbound queue reached high watermark (" + pending + "), entering degraded mode");
+		} else if (pending <= low) {
+			if (degraded.compareAndSet(true, false))
+				Log.info("Outbound queue drained to " + pending + ", leaving degraded mode");
+		}
+
+		if (!degraded.get())
+			return Decision.ACCEPT;
+
+		// Im Degraded Mode gehen nur noch Nachrichten mit Inhalt durch, solange die obere Marke nicht erreicht ist.
+		// Chat States und andere body-lose Nachrichten sind verzichtbar.
+		if (!(packet instanceof Message) || ((Message) packet).getBody() == null)
+			return Decision.SHED;
+
+		return pending >= high ? Decision.REJECT : Decision.ACCEPT;
+	}
+
+	public boolean isDegraded() {
+		return degraded.get();
+	}
+}
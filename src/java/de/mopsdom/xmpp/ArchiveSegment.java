@@ -0,0 +1,307 @@
+package de.mopsdom.xmpp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Eine append-only Segmentdatei des Archivs. Nur das aktive Segment einer
+ * Unterhaltung ist schreibbar in den Speicher gemappt; abgeschlossene
+ * ({@link #seal()}) und nur zum Lesen geöffnete Segmente werden über einen
+ * FileChannel mit kleinem Lesefenster gelesen und belegen außerhalb einer
+ * Abfrage weder Mapping noch Dateihandle.
+ *
+ * Aufbau eines Eintrags: [int Länge][long ID][long Zeitstempel][Länge Bytes XML].
+ * Eine Länge von 0 markiert das Ende der geschriebenen Daten. Jeder
+ * {@link #INDEX_INTERVAL}. Eintrag landet im dünnen Index, so dass Abfragen
+ * nicht am Segmentanfang beginnen müssen.
+ */
+class ArchiveSegment {
+
+	static final int HEADER_SIZE = 4 + 8 + 8;
+
+	static final int INDEX_INTERVAL = 32;
+
+	// Lesefenster für nicht gemappte Segmente
+	private static final int READ_WINDOW = 64 * 1024;
+
+	static class Record {
+		final long id;
+		final long timestamp;
+		final String xml;
+
+		Record(long id, long timestamp, String xml) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.xml = xml;
+		}
+	}
+
+	final File file;
+	private final int capacity;
+
+	// null, sobald das Segment abgeschlossen ist; laufende Scans behalten ihre eigene Referenz
+	private volatile MappedByteBuffer buffer;
+
+	private volatile int writePosition = 0;
+	private volatile long firstId = -1;
+	private volatile long lastId = -1;
+	private volatile long firstTimestamp = -1;
+	private volatile long lastTimestamp = -1;
+	private int count = 0;
+
+	// Dünner Index: ID, Zeitstempel und Offset jedes INDEX_INTERVAL. Eintrags
+	private long[] indexIds = new long[16];
+	private long[] indexTimestamps = new long[16];
+	private int[] indexOffsets = new int[16];
+	private volatile int indexSize = 0;
+
+	/**
+	 * Öffnet ein Segment; writable mappt es mit mindestens size Bytes zum
+	 * Anhängen, sonst wird es nur gelesen.
+	 */
+	ArchiveSegment(File file, int size, boolean writable) throws IOException {
+		this.file = file;
+		if (writable) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+				// Bestehende Segmente behalten ihre Größe (z. B. nach einer Kompaktierung)
+				long length = Math.max(channel.size(), size);
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			}
+			capacity = buffer.capacity();
+		} else {
+			buffer = null;
+			capacity = (int) file.length();
+		}
+		recover();
+	}
+
+	// Beim Öffnen bis zur ersten Länge 0 scannen und den Index neu aufbauen
+	private void recover() throws IOException {
+		try (Source source = openSource()) {
+			int position = 0;
+			while (position + HEADER_SIZE <= capacity) {
+				ByteBuffer header = source.read(position, HEADER_SIZE);
+				int length = header.getInt(0);
+				if (length <= 0 || position + HEADER_SIZE + length > capacity)
+					break;
+				track(header.getLong(4), header.getLong(12), position);
+				position += HEADER_SIZE + length;
+			}
+			writePosition = position;
+		}
+	}
+
+	private void track(long id, long timestamp, int offset) {
+		if (count % INDEX_INTERVAL == 0) {
+			if (indexSize == indexIds.length) {
+				indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+				indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+				indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+			}
+			indexIds[indexSize] = id;
+			indexTimestamps[indexSize] = timestamp;
+			indexOffsets[indexSize] = offset;
+			indexSize++;
+		}
+		if (firstId < 0) {
+			firstId = id;
+			firstTimestamp = timestamp;
+		}
+		lastId = id;
+		lastTimestamp = timestamp;
+		count++;
+	}
+
+	/**
+	 * Hängt einen Eintrag an; false, wenn das Segment voll oder abgeschlossen
+	 * ist. Aufrufer serialisieren Schreibzugriffe, Leser laufen ohne Sperre.
+	 */
+	boolean append(long id, long timestamp, String xml) {
+		MappedByteBuffer buffer = this.buffer;
+		if (buffer == null)
+			return false;
+
+		byte[] payload = xml.getBytes(StandardCharsets.UTF_8);
+		int position = writePosition;
+		// Platz für den nächsten Header mit Länge 0 bleibt immer frei
+		if (position + HEADER_SIZE + payload.length + 4 > buffer.capacity())
+			return false;
+
+		ByteBuffer target = buffer.duplicate();
+		target.position(position + 4);
+		target.putLong(id);
+		target.putLong(timestamp);
+		target.put(payload);
+		// Länge zuletzt schreiben: ein Leser sieht den Eintrag erst, wenn er vollständig ist
+		buffer.putInt(position, payload.length);
+
+		synchronized (this) {
+			track(id, timestamp, position);
+		}
+		writePosition = position + HEADER_SIZE + payload.length;
+		return true;
+	}
+
+	/**
+	 * Schreibt das Mapping zurück und gibt es frei; danach wird nur noch
+	 * über den FileChannel gelesen. Das Mapping selbst verschwindet, sobald
+	 * kein laufender Scan es mehr referenziert.
+	 */
+	void seal() {
+		MappedByteBuffer current = buffer;
+		if (current == null)
+			return;
+		current.force();
+		buffer = null;
+	}
+
+	boolean isWritable() {
+		return buffer != null;
+	}
+
+	boolean isEmpty() {
+		return firstId < 0;
+	}
+
+	long getFirstId() {
+		return firstId;
+	}
+
+	long getLastId() {
+		return lastId;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Offset des letzten indizierten Eintrags, der vor ID und Zeitpunkt liegt –
+	 * ab dort wird sequentiell gescannt.
+	 */
+	synchronized int seek(long afterId, long notBefore) {
+		int offset = 0;
+		for (int i = 0; i < indexSize; i++) {
+			if (indexIds[i] > afterId && indexTimestamps[i] >= notBefore)
+				break;
+			offset = indexOffsets[i];
+		}
+		return offset;
+	}
+
+	/**
+	 * Sequentieller Scan ab offset, bis der Visitor false liefert.
+	 */
+	void scan(int offset, RecordVisitor visitor) throws IOException {
+		try (Source source = openSource()) {
+			int end = writePosition;
+			int position = offset;
+			while (position + HEADER_SIZE <= end) {
+				ByteBuffer header = source.read(position, HEADER_SIZE);
+				int length = header.getInt(0);
+				if (length <= 0 || position + HEADER_SIZE + length > end)
+					break;
+
+				long id = header.getLong(4);
+				long timestamp = header.getLong(12);
+				int decision = visitor.accept(id, timestamp);
+				if (decision == RecordVisitor.STOP)
+					return;
+				if (decision == RecordVisitor.TAKE) {
+					byte[] payload = new byte[length];
+					source.read(position + HEADER_SIZE, length).get(0, payload);
+					if (!visitor.visit(new Record(id, timestamp, new String(payload, StandardCharsets.UTF_8))))
+						return;
+				}
+				position += HEADER_SIZE + length;
+			}
+		}
+	}
+
+	void force() {
+		MappedByteBuffer current = buffer;
+		if (current != null)
+			current.force();
+	}
+
+	private Source openSource() throws IOException {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null)
+			return (position, length) -> mapped.slice(position, length);
+		return new WindowSource(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	// Liefert Bytes ab position; Index 0 des Ergebnisses entspricht position
+	private interface Source extends Closeable {
+		ByteBuffer read(int position, int length) throws IOException;
+
+		@Override
+		default void close() throws IOException {
+		}
+	}
+
+	private static class WindowSource implements Source {
+		private final FileChannel channel;
+		private final ByteBuffer window = ByteBuffer.allocate(READ_WINDOW);
+		private long windowStart = -1;
+
+		WindowSource(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public ByteBuffer read(int position, int length) throws IOException {
+			if (windowStart >= 0 && position >= windowStart && position + length <= windowStart + window.limit())
+				return window.slice((int) (position - windowStart), length);
+
+			// Größere Einträge als das Fenster bekommen einen eigenen Puffer
+			ByteBuffer target = length > READ_WINDOW ? ByteBuffer.allocate(length) : window;
+			target.clear();
+			long start = position;
+			while (target.hasRemaining()) {
+				int read = channel.read(target, start + target.position());
+				if (read < 0)
+					break;
+			}
+			target.flip();
+			if (target.limit() < length)
+				throw new EOFException("Truncated archive segment");
+			if (target == window)
+				windowStart = position;
+			return target.slice(0, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	interface RecordVisitor {
+		int SKIP = 0;
+		int TAKE = 1;
+		int STOP = 2;
+
+		// Vorfilter auf dem Header, damit das XML nur für Treffer dekodiert wird
+		int accept(long id, long timestamp);
+
+		boolean visit(Record record);
+	}
+}
@@ -0,0 +1,112 @@
+package de.mopsdom.xmpp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Führt blockierende Homeserver-Aufrufe aus. Im Modus "virtual" läuft jede
+ * Operation auf einem eigenen virtuellen Thread (Java 21+), sonst auf einem
+ * Pool aus Plattform-Threads. Die Anzahl gleichzeitiger Requests pro
+ * Homeserver begrenzt in beiden Fällen
+ * {@link de.mopsdom.matrix.utils.HttpUtils#createConcurrencyLimiter(int)}.
+ */
+public class BridgeExecutor {
+
+	private static final Logger Log = LoggerFactory.getLogger(BridgeExecutor.class);
+
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private static BridgeExecutor instance = null;
+
+	private ExecutorService executor = null;
+	private boolean virtual = false;
+
+	public static BridgeExecutor getInstance() {
+		if (instance == null)
+			instance = new BridgeExecutor();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+
+		if (MODE_VIRTUAL.equalsIgnoreCase(MatrixBridgePlugin.EXECUTION_MODE.getValue())) {
+			executor = createVirtualThreadExecutor();
+			virtual = executor != null;
+		}
+
+		if (executor == null) {
+			// Begrenzte Queue, damit der Heap auch bei hängendem Homeserver nicht unbegrenzt wächst
+			int threads = MatrixBridgePlugin.OUTBOUND_WORKERS.getValue();
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(MatrixBridgePlugin.OUTBOUND_HIGH_WATERMARK.getValue()),
+					new NamedThreadFactory("matrix-bridge-worker-", true, null, null, null));
+			virtual = false;
+		}
+		Log.info("Matrix bridge execution mode: " + (virtual ? MODE_VIRTUAL : MODE_PLATFORM));
+	}
+
+	public synchronized void stop() {
+		if (executor == null)
+			return;
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+				executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	// false, wenn der Task verworfen wurde
+	public boolean execute(Runnable task) {
+		ExecutorService current = executor;
+		if (current == null) {
+			task.run();
+			return true;
+		}
+
+		try {
+			current.execute(() -> {
+				try {
+					task.run();
+				} catch (Exception e) {
+					Log.error("Bridge task failed: " + e.getMessage(), e);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			Log.warn("Bridge executor stopped or saturated, dropping task");
+			return false;
+		}
+	}
+
+	// Das Plugin wird für Java 17 gebaut → virtuelle Threads nur per Reflection, falls die JVM sie kennt
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			Log.warn("Virtual threads are not available on Java " + System.getProperty("java.version")
+					+ ", falling back to platform threads");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package de.mopsdom.xmpp;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Überträgt eine Message/Presence an den Cluster-Knoten, dem der Raum
+ * gehört, und bridged sie dort.
+ */
+public class BridgePacketTask implements ClusterTask<Void> {
+
+	private static final Logger Log = LoggerFactory.getLogger(BridgePacketTask.class);
+
+	private String packetXml;
+
+	public BridgePacketTask() {
+	}
+
+	public BridgePacketTask(Packet packet) {
+		this.packetXml = packet.toXML();
+	}
+
+	@Override
+	public void run() {
+		MatrixBridgePlugin plugin = MatrixBridgePlugin.getInstance();
+		if (plugin == null) {
+			Log.warn("Matrix bridge not running on this node, dropping forwarded stanza");
+			return;
+		}
+
+		try {
+			Element element = DocumentHelper.parseText(packetXml).getRootElement();
+			Packet packet;
+			if ("message".equals(element.getName()))
+				packet = new Message(element, true);
+			else if ("presence".equals(element.getName()))
+				packet = new Presence(element, true);
+			else {
+				Log.warn("Unexpected forwarded stanza: " + element.getName());
+				return;
+			}
+			plugin.dispatchLocally(packet);
+		} catch (DocumentException e) {
+			Log.error("Could not parse forwarded stanza: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Void getResult() {
+		return null;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		ExternalizableUtil.getInstance().writeSafeUTF(out, packetXml);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		packetXml = ExternalizableUtil.getInstance().readSafeUTF(in);
+	}
+}
@@ -0,0 +1,185 @@
+package de.mopsdom.xmpp;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterEventDispatcher;
+import org.jivesoftware.openfire.roster.RosterEventListener;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import de.mopsdom.matrix.HomeserverProbe;
+import de.mopsdom.matrix.MatrixAPI;
+
+/**
+ * Legt die DM-Räume zu Matrix-Kontakten aus den Openfire-Rostern vorab an
+ * (Alias, Raum, Join des XMPP-Puppets), damit die erste Nachricht den
+ * gecachten Weg nimmt. Der Matrix-Kontakt wird erst mit der ersten echten
+ * Nachricht eingeladen; Paare, deren Raum schon in dm_rooms steht, werden
+ * übersprungen. Läuft mit niedriger Priorität: höchstens
+ * DM_PREPROVISION_RATE Unterhaltungen pro Sekunde und gar nicht, solange
+ * der AdmissionController überlastet oder die HomeserverProbe einen
+ * langsamen Homeserver meldet.
+ */
+public class DirectRoomProvisioner implements RosterEventListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(DirectRoomProvisioner.class);
+
+	private static DirectRoomProvisioner instance = null;
+
+	// Noch nicht gelesene Roster (Abgleich beim Start)
+	private final Set<String> pendingRosters = ConcurrentHashMap.newKeySet();
+
+	// from|to → [lokaler Benutzer, Matrix-Kontakt]
+	private final Map<String, JID[]> pendingRooms = new ConcurrentHashMap<>();
+
+	private TimerTask provisionTask = null;
+
+	// Ein Durchlauf zur Zeit; der Timer-Tick während eines langsamen Durchlaufs verfällt
+	private final AtomicBoolean provisioning = new AtomicBoolean(false);
+
+	public static DirectRoomProvisioner getInstance() {
+		if (instance == null)
+			instance = new DirectRoomProvisioner();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (provisionTask != null)
+			return;
+
+		RosterEventDispatcher.addListener(this);
+
+		provisionTask = new TimerTask() {
+			@Override
+			public void run() {
+				provision();
+			}
+		};
+		TaskEngine.getInstance().schedule(provisionTask, Duration.ofSeconds(5), Duration.ofSeconds(1));
+
+		if (MatrixBridgePlugin.DM_PREPROVISION_ENABLED.getValue()
+				&& (!ClusterManager.isClusteringStarted() || ClusterManager.isSeniorClusterMember()))
+			TaskEngine.getInstance()
+					.submit(() -> pendingRosters.addAll(XMPPServer.getInstance().getUserManager().getUsernames()));
+	}
+
+	public synchronized void stop() {
+		RosterEventDispatcher.removeListener(this);
+		if (provisionTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(provisionTask);
+			provisionTask = null;
+		}
+		pendingRosters.clear();
+		pendingRooms.clear();
+	}
+
+	private void provision() {
+		if (!provisioning.compareAndSet(false, true))
+			return;
+		try {
+			provisionPending();
+		} finally {
+			provisioning.set(false);
+		}
+	}
+
+	private void provisionPending() {
+		if (!MatrixBridgePlugin.DM_PREPROVISION_ENABLED.getValue() || AdmissionController.getInstance().isDegraded()
+				|| HomeserverProbe.getInstance().isImpaired())
+			return;
+
+		int budget = MatrixBridgePlugin.DM_PREPROVISION_RATE.getValue();
+
+		// Roster erst lesen, wenn die bekannten Räume abgearbeitet sind
+		Iterator<String> rosters = pendingRosters.iterator();
+		while (pendingRooms.size() < budget && rosters.hasNext()) {
+			String username = rosters.next();
+			rosters.remove();
+			try {
+				enqueue(XMPPServer.getInstance().getRosterManager().getRoster(username));
+			} catch (UserNotFoundException e) {
+				// Benutzer inzwischen gelöscht
+			}
+		}
+
+		Iterator<JID[]> rooms = pendingRooms.values().iterator();
+		while (budget-- > 0 && rooms.hasNext()) {
+			JID[] pair = rooms.next();
+			rooms.remove();
+			MatrixAPI api = MatrixAPI.forJid(pair[0]);
+			if (api.isDirectRoomKnown(pair[0], pair[1]))
+				continue;
+			if (api.prepareDirectRoom(pair[0], pair[1], false) == null)
+				Log.debug("DM-Raum " + pair[0] + " ↔ " + pair[1] + " konnte nicht vorbereitet werden");
+		}
+	}
+
+	private void enqueue(Roster roster) {
+		for (RosterItem item : roster.getRosterItems())
+			enqueue(roster, item);
+	}
+
+	private void enqueue(Roster roster, RosterItem item) {
+		if (!MatrixBridgePlugin.DM_PREPROVISION_ENABLED.getValue() || !isMatrixContact(item))
+			return;
+
+		JID from = new JID(roster.getUsername(), XMPPServer.getInstance().getServerInfo().getXMPPDomain(), null);
+		JID to = item.getJid().asBareJID();
+		if (MatrixAPI.forJid(from).isDirectRoomKnown(from, to))
+			return;
+		pendingRooms.putIfAbsent(from + "|" + to, new JID[] { from, to });
+	}
+
+	private static boolean isMatrixContact(RosterItem item) {
+		if (item.getJid() == null || item.getJid().getNode() == null)
+			return false;
+		if (item.getSubStatus() == RosterItem.SubType.NONE || item.getSubStatus() == RosterItem.SubType.REMOVE)
+			return false;
+
+		String componentDomain = MatrixBridgePlugin.MATRIX_COMPONENT_NAME.getValue() + "."
+				+ XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+		return componentDomain.equals(item.getJid().getDomain());
+	}
+
+	@Override
+	public void rosterLoaded(Roster roster) {
+		// Beim Login: nur Kontakte ohne vermerkten DM-Raum landen in der Warteschlange
+		enqueue(roster);
+	}
+
+	@Override
+	public boolean addingContact(Roster roster, RosterItem item, boolean persistent) {
+		return persistent;
+	}
+
+	@Override
+	public void contactAdded(Roster roster, RosterItem item) {
+		enqueue(roster, item);
+	}
+
+	@Override
+	public void contactUpdated(Roster roster, RosterItem item) {
+		enqueue(roster, item);
+	}
+
+	@Override
+	public void contactDeleted(Roster roster, RosterItem item) {
+		if (item.getJid() != null)
+			pendingRooms.remove(new JID(roster.getUsername(), XMPPServer.getInstance().getServerInfo().getXMPPDomain(),
+					null) + "|" + item.getJid().asBareJID());
+	}
+}
@@ -0,0 +1,132 @@
+package de.mopsdom.xmpp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Presence;
+
+/**
+ * Vorgefertigte disco#info Antwort samt XEP-0115 Verifikations-Hash. Die
+ * Antwort wird einmal gebaut und pro Anfrage nur noch kopiert; Clients, die
+ * den Hash aus der Presence schon kennen, fragen gar nicht erst nach.
+ */
+public class EntityCapabilities {
+
+	public static final String DISCO_INFO_NAMESPACE = "http://jabber.org/protocol/disco#info";
+	public static final String CAPS_NAMESPACE = "http://jabber.org/protocol/caps";
+	public static final String CAPS_NODE = "urn:matrix:bridge";
+
+	private static final QName XML_LANG = QName.get("lang", Namespace.XML_NAMESPACE);
+
+	private final Element query;
+	private final String ver;
+
+	public EntityCapabilities() {
+		query = DocumentHelper.createElement(QName.get("query", DISCO_INFO_NAMESPACE));
+		ver = null;
+	}
+
+	private EntityCapabilities(Element query) {
+		this.query = query;
+		this.ver = computeVer(query);
+	}
+
+	public EntityCapabilities addIdentity(String category, String type, String name) {
+		Element identity = query.addElement("identity");
+		identity.addAttribute("category", category);
+		identity.addAttribute("type", type);
+		if (name != null)
+			identity.addAttribute("name", name);
+		return this;
+	}
+
+	public EntityCapabilities addFeature(String var) {
+		query.addElement("feature").addAttribute("var", var);
+		return this;
+	}
+
+	// Friert die Antwort ein und berechnet den Hash
+	public EntityCapabilities build() {
+		return new EntityCapabilities(query.createCopy());
+	}
+
+	public String getVer() {
+		return ver;
+	}
+
+	public String getNode() {
+		return CAPS_NODE + "#" + ver;
+	}
+
+	/**
+	 * Eine Anfrage ohne node oder mit dem eigenen Caps-Node wird aus der
+	 * Vorlage beantwortet.
+	 */
+	public boolean matches(IQ iq) {
+		String node = iq.getChildElement() != null ? iq.getChildElement().attributeValue("node") : null;
+		return node == null || node.equals(getNode());
+	}
+
+	public IQ createResult(IQ iq) {
+		IQ result = IQ.createResultIQ(iq);
+		Element copy = query.createCopy();
+		String node = iq.getChildElement() != null ? iq.getChildElement().attributeValue("node") : null;
+		if (node != null)
+			copy.addAttribute("node", node);
+		result.setChildElement(copy);
+		return result;
+	}
+
+	public void addTo(Presence presence) {
+		Element c = presence.addChildElement("c", CAPS_NAMESPACE);
+		c.addAttribute("hash", "sha-1");
+		c.addAttribute("node", CAPS_NODE);
+		c.addAttribute("ver", ver);
+	}
+
+	// XEP-0115 §5.1: Identitäten und Features sortiert, jeweils mit '<' abgeschlossen
+	private static String computeVer(Element query) {
+		List<Element> identities = new ArrayList<>(query.elements("identity"));
+		identities.sort(Comparator.comparing((Element e) -> nullToEmpty(e.attributeValue("category")))
+				.thenComparing(e -> nullToEmpty(e.attributeValue("type")))
+				.thenComparing(e -> nullToEmpty(e.attributeValue(XML_LANG)))
+				.thenComparing(e -> nullToEmpty(e.attributeValue("name"))));
+
+		List<String> features = new ArrayList<>();
+		for (Element feature : query.elements("feature"))
+			features.add(feature.attributeValue("var"));
+		Collections.sort(features);
+
+		StringBuilder s = new StringBuilder();
+		for (Element identity : identities) {
+			s.append(nullToEmpty(identity.attributeValue("category"))).append('/')
+					.append(nullToEmpty(identity.attributeValue("type"))).append('/')
+					.append(nullToEmpty(identity.attributeValue(XML_LANG))).append('/')
+					.append(nullToEmpty(identity.attributeValue("name"))).append('<');
+		}
+		for (String feature : features)
+			s.append(feature).append('<');
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.toString().getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+}
@@ -0,0 +1,281 @@
+package de.mopsdom.xmpp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.muc.MUCEventDispatcher;
+import org.jivesoftware.openfire.muc.MUCEventListener;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.BloomFilter;
+
+/**
+ * Bloom-Filter über alle Openfire-Benutzer und MUC-Räume. Die Anfragen des
+ * Homeservers nach unbekannten IDs ("/users/..", "/rooms/..") werden bei einem
+ * sicheren Treffer-Ausschluss ohne Zugriff auf UserProvider bzw. Datenbank
+ * beantwortet. Positive Antworten werden weiterhin exakt geprüft.
+ * Benutzer externer Provider (LDAP) und Räume anderer Clusterknoten lösen
+ * hier keine Events aus; sie kommen mit dem periodischen Neuaufbau bzw. dem
+ * Neuaufbau beim Clusterbeitritt in den Index.
+ */
+public class ExistenceIndex implements UserEventListener, MUCEventListener, ClusterEventListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(ExistenceIndex.class);
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	// Gelöschte Einträge bleiben im Filter → nach so vielen Löschungen neu aufbauen
+	private static final int REBUILD_AFTER_DELETIONS = 1000;
+
+	private static final Duration REBUILD_INTERVAL = Duration.ofHours(1);
+
+	private static ExistenceIndex instance = null;
+
+	private volatile BloomFilter users = null;
+	private volatile BloomFilter rooms = null;
+
+	private final AtomicInteger deletions = new AtomicInteger();
+	private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+	// Einträge, die während eines Neuaufbaus hinzukommen; werden vor und nach dem Austausch nachgetragen
+	private final Set<String> pendingUsers = ConcurrentHashMap.newKeySet();
+	private final Set<String> pendingRooms = ConcurrentHashMap.newKeySet();
+
+	private TimerTask rebuildTask = null;
+
+	public ExistenceIndex() {
+		instance = this;
+	}
+
+	public static ExistenceIndex getInstance() {
+		if (instance == null)
+			instance = new ExistenceIndex();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		UserEventDispatcher.addListener(this);
+		MUCEventDispatcher.addListener(this);
+		ClusterManager.addListener(this);
+		TaskEngine.getInstance().submit(this::rebuild);
+
+		rebuildTask = new TimerTask() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		};
+		TaskEngine.getInstance().schedule(rebuildTask, REBUILD_INTERVAL, REBUILD_INTERVAL);
+	}
+
+	public synchronized void stop() {
+		UserEventDispatcher.removeListener(this);
+		MUCEventDispatcher.removeListener(this);
+		ClusterManager.removeListener(this);
+		if (rebuildTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(rebuildTask);
+			rebuildTask = null;
+		}
+		users = null;
+		rooms = null;
+	}
+
+	public void rebuild() {
+		if (!rebuilding.compareAndSet(false, true))
+			return;
+
+		try {
+			pendingUsers.clear();
+			pendingRooms.clear();
+			long start = System.currentTimeMillis();
+			XMPPServer server = XMPPServer.getInstance();
+
+			Collection<String> usernames = server.getUserManager().getUsernames();
+			BloomFilter newUsers = new BloomFilter(usernames.size() * 2 + 1024, FALSE_POSITIVE_RATE);
+			for (String username : usernames) {
+				newUsers.add(userKey(username));
+			}
+
+			List<String> roomKeys = new ArrayList<>();
+			for (MultiUserChatService service : server.getMultiUserChatManager().getMultiUserChatServices()) {
+				for (String roomName : service.getAllRoomNames()) {
+					roomKeys.add(roomKey(service.getServiceName(), roomName));
+				}
+			}
+			BloomFilter newRooms = new BloomFilter(roomKeys.size() * 2 + 1024, FALSE_POSITIVE_RATE);
+			for (String key : roomKeys) {
+				newRooms.add(key);
+			}
+
+			// Vor dem Austausch nachtragen, was seit dem Snapshot angelegt wurde, und danach erneut
+			// für Einträge, die in der Zwischenzeit noch im alten Filter gelandet sind
+			replay(pendingUsers, newUsers);
+			replay(pendingRooms, newRooms);
+			deletions.set(0);
+			users = newUsers;
+			rooms = newRooms;
+			replay(pendingUsers, newUsers);
+			replay(pendingRooms, newRooms);
+			Log.info("Existence index built: " + usernames.size() + " users, " + roomKeys.size() + " rooms in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (Exception e) {
+			Log.error("Building the existence index failed: " + e.getMessage(), e);
+		} finally {
+			rebuilding.set(false);
+		}
+	}
+
+	private static void replay(Set<String> pending, BloomFilter filter) {
+		for (String key : pending)
+			filter.add(key);
+	}
+
+	/**
+	 * false = Benutzer existiert sicher nicht, true = exakte Prüfung nötig
+	 * (auch solange der Index noch nicht aufgebaut ist).
+	 */
+	public boolean mightBeUser(String username) {
+		BloomFilter filter = users;
+		return filter == null || filter.mightContain(userKey(username));
+	}
+
+	public boolean mightBeRoom(String serviceName, String roomName) {
+		BloomFilter filter = rooms;
+		return filter == null || filter.mightContain(roomKey(serviceName, roomName));
+	}
+
+	// Erst vormerken, dann den aktuellen Filter lesen: so erreicht der Eintrag sicher auch einen gerade entstehenden Filter
+	private void addUser(String username) {
+		String key = userKey(username);
+		if (rebuilding.get())
+			pendingUsers.add(key);
+		BloomFilter filter = users;
+		if (filter != null)
+			filter.add(key);
+	}
+
+	private void addRoom(String key) {
+		if (rebuilding.get())
+			pendingRooms.add(key);
+		BloomFilter filter = rooms;
+		if (filter != null)
+			filter.add(key);
+	}
+
+	private static String userKey(String username) {
+		return username.toLowerCase();
+	}
+
+	private static String roomKey(String serviceName, String roomName) {
+		return serviceName.toLowerCase() + "/" + roomName.toLowerCase();
+	}
+
+	private void deleted() {
+		if (deletions.incrementAndGet() >= REBUILD_AFTER_DELETIONS)
+			TaskEngine.getInstance().submit(this::rebuild);
+	}
+
+	@Override
+	public void userCreated(User user, Map<String, Object> params) {
+		addUser(user.getUsername());
+	}
+
+	@Override
+	public void userDeleting(User user, Map<String, Object> params) {
+		deleted();
+	}
+
+	@Override
+	public void userModified(User user, Map<String, Object> params) {
+	}
+
+	@Override
+	public void roomCreated(JID roomJID) {
+		addRoom(roomKey(getServiceName(roomJID), roomJID.getNode()));
+	}
+
+	@Override
+	public void roomDestroyed(JID roomJID) {
+		deleted();
+	}
+
+	@Override
+	public void occupantJoined(JID roomJID, JID user, String nickname) {
+	}
+
+	@Override
+	public void occupantLeft(JID roomJID, JID user, String nickname) {
+	}
+
+	@Override
+	public void occupantNickKicked(JID roomJID, String nickname) {
+	}
+
+	@Override
+	public void nicknameChanged(JID roomJID, JID user, String oldNickname, String newNickname) {
+	}
+
+	@Override
+	public void messageReceived(JID roomJID, JID user, String nickname, Message message) {
+	}
+
+	@Override
+	public void privateMessageRecieved(JID toJID, JID fromJID, Message message) {
+	}
+
+	@Override
+	public void roomSubjectChanged(JID roomJID, JID user, String newSubject) {
+	}
+
+	@Override
+	public void roomClearChatHistory(JID roomJID) {
+	}
+
+	@Override
+	public void joinedCluster() {
+		// Räume der anderen Knoten sind erst jetzt sichtbar
+		TaskEngine.getInstance().submit(this::rebuild);
+	}
+
+	@Override
+	public void joinedCluster(byte[] nodeID) {
+	}
+
+	@Override
+	public void leftCluster() {
+	}
+
+	@Override
+	public void leftCluster(byte[] nodeID) {
+	}
+
+	@Override
+	public void markedAsSeniorClusterMember() {
+	}
+
+	private static String getServiceName(JID roomJID) {
+		String suffix = "." + XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+		String domain = roomJID.getDomain();
+		return domain.endsWith(suffix) ? domain.substring(0, domain.length() - suffix.length()) : domain;
+	}
+}
@@ -0,0 +1,203 @@
+package de.mopsdom.xmpp;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.MatrixAPI;
+import de.mopsdom.matrix.MediaBridge;
+import de.mopsdom.matrix.RichText;
+import de.mopsdom.matrix.utils.Utils;
+
+/**
+ * Liefert beim MUC-Join die Matrix-Historie als XEP-0203 Delayed Delivery aus.
+ * Die Historie wird seitenweise rückwärts gelesen und sofort in kompakte
+ * Stanzas umgewandelt; gehalten werden höchstens so viele Nachrichten, wie
+ * ausgeliefert werden – unabhängig davon, wie alt der Raum ist.
+ */
+public class HistoryBackfill {
+
+	private static final Logger Log = LoggerFactory.getLogger(HistoryBackfill.class);
+
+	public static final String DELAY_NAMESPACE = "urn:xmpp:delay";
+
+	// Schutz gegen endloses Blättern, wenn fast alle Events herausgefiltert werden
+	private static final int MAX_PAGES = 20;
+
+	private static HistoryBackfill instance = null;
+
+	private Semaphore slots = null;
+
+	/**
+	 * Grenzen aus &lt;history/&gt; (XEP-0045 §7.2.15), auf das Server-Maximum gekappt.
+	 */
+	static class Limits {
+		int maxStanzas;
+		long notBefore = 0;
+	}
+
+	public static HistoryBackfill getInstance() {
+		if (instance == null)
+			instance = new HistoryBackfill();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		slots = new Semaphore(MatrixBridgePlugin.BACKFILL_MAX_CONCURRENT.getValue());
+	}
+
+	public synchronized void stop() {
+		slots = null;
+	}
+
+	/**
+	 * Liefert null, wenn der Client keine Historie möchte.
+	 */
+	static Limits getLimits(Element mucElement) {
+		Limits limits = new Limits();
+		limits.maxStanzas = MatrixBridgePlugin.BACKFILL_MAX_STANZAS.getValue();
+
+		Element history = mucElement != null ? mucElement.element("history") : null;
+		if (history == null)
+			return limits.maxStanzas > 0 ? limits : null;
+
+		try {
+			if (history.attributeValue("maxchars") != null && Integer.parseInt(history.attributeValue("maxchars")) == 0)
+				return null;
+			if (history.attributeValue("maxstanzas") != null)
+				limits.maxStanzas = Math.min(limits.maxStanzas, Integer.parseInt(history.attributeValue("maxstanzas")));
+			if (history.attributeValue("seconds") != null)
+				limits.notBefore = System.currentTimeMillis() - Long.parseLong(history.attributeValue("seconds")) * 1000;
+			if (history.attributeValue("since") != null)
+				limits.notBefore = Math.max(limits.notBefore,
+						Instant.parse(history.attributeValue("since")).toEpochMilli());
+		} catch (NumberFormatException | DateTimeParseException e) {
+			Log.debug("Ungültiges history-Element, verwende Standardwerte: " + history.asXML());
+		}
+
+		return limits.maxStanzas > 0 ? limits : null;
+	}
+
+	public void backfill(String roomId, JID roomJid, JID occupant, String matrixUser, Element mucElement) {
+		Limits limits = getLimits(mucElement);
+		if (limits == null)
+			return;
+
+		Semaphore slots = this.slots;
+		if (slots == null || !slots.tryAcquire()) {
+			Log.debug("Kein Backfill-Slot frei, überspringe Historie für " + occupant);
+			return;
+		}
+
+		boolean accepted = BridgeExecutor.getInstance().execute(() -> {
+			try {
+				deliver(collect(roomId, roomJid, occupant, matrixUser, limits));
+			} catch (IOException e) {
+				Log.warn("Backfill für " + roomJid + " fehlgeschlagen: " + e.getMessage());
+			} finally {
+				slots.release();
+			}
+		});
+		// Abgelehnt → finally läuft nie, der Slot muss hier zurück
+		if (!accepted)
+			slots.release();
+	}
+
+	// Rückwärts blättern; die älteste Nachricht landet vorne in der Queue
+	private Deque<Message> collect(String roomId, JID roomJid, JID occupant, String matrixUser, Limits limits)
+			throws IOException {
+		Deque<Message> history = new ArrayDeque<>(limits.maxStanzas);
+		int pageSize = MatrixBridgePlugin.BACKFILL_PAGE_SIZE.getValue();
+		String from = null;
+
+		for (int page = 0; page < MAX_PAGES && history.size() < limits.maxStanzas; page++) {
+			JSONObject result = MatrixAPI.forMxid(matrixUser).getRoomMessages(roomId, matrixUser, from,
+					Math.min(pageSize, limits.maxStanzas - history.size()));
+			if (result == null)
+				break;
+
+			JSONArray chunk = result.optJSONArray("chunk");
+			if (chunk == null || chunk.length() == 0)
+				break;
+
+			for (int i = 0; i < chunk.length() && history.size() < limits.maxStanzas; i++) {
+				JSONObject event = chunk.getJSONObject(i);
+				if (event.optLong("origin_server_ts") < limits.notBefore)
+					return history;
+
+				Message message = toMessage(event, roomJid, occupant);
+				if (message != null)
+					history.addFirst(message);
+			}
+
+			from = result.optString("end", null);
+			if (from == null)
+				break;
+		}
+		return history;
+	}
+
+	private void deliver(Deque<Message> history) {
+		MatrixBridgePlugin plugin = MatrixBridgePlugin.getInstance();
+		if (plugin == null)
+			return;
+
+		for (Message message : history)
+			plugin.sendPacket(message);
+	}
+
+	static Message toMessage(JSONObject event, JID roomJid, JID occupant) {
+		String sender = event.optString("sender", null);
+		JSONObject content = event.optJSONObject("content");
+		// Nachrichten der eigenen Puppets stehen bereits in der MUC-Historie
+		if (sender == null || sender.startsWith("@xmpp_") || content == null || content.optString("body", null) == null)
+			return null;
+
+		Message message = new Message();
+		message.setType(Message.Type.groupchat);
+		message.setID(event.optString("event_id", null));
+		message.setFrom(new JID(roomJid.getNode(), roomJid.getDomain(), getNickname(sender)));
+		message.setTo(occupant);
+
+		String body = content.optString("body");
+		String url = Utils.getMediaProxyUrl(content.optString("url", null));
+		if ("m.emote".equals(content.optString("msgtype")))
+			body = "/me " + body;
+		if (url != null) {
+			message.setBody(url);
+			message.addChildElement("x", MediaBridge.OOB_NAMESPACE).addElement("url").setText(url);
+		} else {
+			message.setBody(body);
+			if (RichText.MATRIX_HTML_FORMAT.equals(content.optString("format"))
+					&& content.optString("formatted_body", null) != null) {
+				Element xhtml = RichText.addXhtml(message, content.getString("formatted_body"));
+				if (xhtml != null && "m.emote".equals(content.optString("msgtype")))
+					xhtml.content().add(0, DocumentHelper.createText("/me "));
+			}
+		}
+
+		Element delay = message.addChildElement("delay", DELAY_NAMESPACE);
+		delay.addAttribute("from", roomJid.toBareJID());
+		delay.addAttribute("stamp", Instant.ofEpochMilli(event.optLong("origin_server_ts")).toString());
+		return message;
+	}
+
+	// @alice:example.org → alice
+	private static String getNickname(String matrixId) {
+		int colon = matrixId.indexOf(':');
+		return matrixId.substring(1, colon > 0 ? colon : matrixId.length());
+	}
+}
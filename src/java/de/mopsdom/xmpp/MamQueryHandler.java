@@ -0,0 +1,166 @@
+package de.mopsdom.xmpp;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.PacketError;
+
+/**
+ * Beantwortet XEP-0313 (MAM) Abfragen an die Component aus dem lokalen
+ * {@link MessageArchive}, inklusive XEP-0059 (RSM) Paging.
+ */
+public class MamQueryHandler {
+
+	private static final Logger Log = LoggerFactory.getLogger(MamQueryHandler.class);
+
+	public static final String MAM_NAMESPACE = "urn:xmpp:mam:2";
+	public static final String RSM_NAMESPACE = "http://jabber.org/protocol/rsm";
+	public static final String DATA_FORM_NAMESPACE = "jabber:x:data";
+	public static final String FORWARD_NAMESPACE = "urn:xmpp:forward:0";
+
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final int MAX_PAGE_SIZE = 250;
+
+	private final MatrixBridgePlugin plugin;
+
+	public MamQueryHandler(MatrixBridgePlugin plugin) {
+		this.plugin = plugin;
+	}
+
+	// Abfrage der unterstützten Formularfelder
+	public void handleGet(IQ iq) {
+		IQ result = IQ.createResultIQ(iq);
+		Element form = result.setChildElement("query", MAM_NAMESPACE).addElement("x", DATA_FORM_NAMESPACE);
+		form.addAttribute("type", "form");
+		Element formType = form.addElement("field");
+		formType.addAttribute("var", "FORM_TYPE").addAttribute("type", "hidden");
+		formType.addElement("value").setText(MAM_NAMESPACE);
+		form.addElement("field").addAttribute("var", "with").addAttribute("type", "jid-single");
+		form.addElement("field").addAttribute("var", "start").addAttribute("type", "text-single");
+		form.addElement("field").addAttribute("var", "end").addAttribute("type", "text-single");
+		plugin.sendPacket(result);
+	}
+
+	public void handleSet(IQ iq) {
+		Element query = iq.getChildElement();
+		JID owner = iq.getFrom().asBareJID();
+
+		JID with = null;
+		long start = Long.MIN_VALUE;
+		long end = Long.MAX_VALUE;
+		Long after = null;
+		Long before = null;
+		int max = DEFAULT_PAGE_SIZE;
+
+		try {
+			Element form = query.element("x");
+			if (form != null && DATA_FORM_NAMESPACE.equals(form.getNamespaceURI())) {
+				for (Element field : form.elements("field")) {
+					String value = field.elementTextTrim("value");
+					if (value == null || value.isEmpty())
+						continue;
+					switch (field.attributeValue("var", "")) {
+					case "with":
+						with = new JID(value).asBareJID();
+						break;
+					case "start":
+						start = Instant.parse(value).toEpochMilli();
+						break;
+					case "end":
+						end = Instant.parse(value).toEpochMilli();
+						break;
+					default:
+						break;
+					}
+				}
+			}
+
+			Element set = query.element("set");
+			if (set != null && RSM_NAMESPACE.equals(set.getNamespaceURI())) {
+				if (set.elementTextTrim("max") != null)
+					max = Math.max(0, Math.min(MAX_PAGE_SIZE, Integer.parseInt(set.elementTextTrim("max"))));
+				if (set.elementTextTrim("after") != null)
+					after = Long.parseLong(set.elementTextTrim("after"));
+				// Leeres <before/> bedeutet: letzte Seite
+				if (set.element("before") != null) {
+					String value = set.elementTextTrim("before");
+					before = value.isEmpty() ? Long.MAX_VALUE : Long.parseLong(value);
+				}
+			}
+		} catch (NumberFormatException | DateTimeParseException e) {
+			sendError(iq, PacketError.Condition.bad_request);
+			return;
+		} catch (IllegalArgumentException e) {
+			// Ungültige JID im with-Feld
+			sendError(iq, PacketError.Condition.jid_malformed);
+			return;
+		}
+
+		MessageArchive.Page page;
+		try {
+			page = MessageArchive.getInstance().query(owner, with, start, end, after, before, max);
+		} catch (IOException e) {
+			Log.warn("MAM-Abfrage fehlgeschlagen: " + e.getMessage());
+			sendError(iq, PacketError.Condition.internal_server_error);
+			return;
+		}
+
+		String queryId = query.attributeValue("queryid");
+		for (ArchiveSegment.Record record : page.records) {
+			Message result = toResult(iq, queryId, record);
+			if (result != null)
+				plugin.sendPacket(result);
+		}
+
+		IQ result = IQ.createResultIQ(iq);
+		Element fin = result.setChildElement("fin", MAM_NAMESPACE);
+		if (page.complete)
+			fin.addAttribute("complete", "true");
+		Element set = fin.addElement("set", RSM_NAMESPACE);
+		if (!page.records.isEmpty()) {
+			set.addElement("first").setText(String.valueOf(page.records.get(0).id));
+			set.addElement("last").setText(String.valueOf(page.records.get(page.records.size() - 1).id));
+		}
+		plugin.sendPacket(result);
+	}
+
+	private Message toResult(IQ iq, String queryId, ArchiveSegment.Record record) {
+		Element archived;
+		try {
+			archived = DocumentHelper.parseText(record.xml).getRootElement();
+		} catch (DocumentException e) {
+			Log.warn("Beschädigter Archiveintrag " + record.id + ": " + e.getMessage());
+			return null;
+		}
+
+		Message message = new Message();
+		message.setFrom(iq.getTo());
+		message.setTo(iq.getFrom());
+		Element result = message.addChildElement("result", MAM_NAMESPACE);
+		if (queryId != null)
+			result.addAttribute("queryid", queryId);
+		result.addAttribute("id", String.valueOf(record.id));
+
+		Element forwarded = result.addElement("forwarded", FORWARD_NAMESPACE);
+		forwarded.addElement("delay", HistoryBackfill.DELAY_NAMESPACE).addAttribute("stamp",
+				Instant.ofEpochMilli(record.timestamp).toString());
+		forwarded.add(archived.createCopy());
+		return message;
+	}
+
+	private void sendError(IQ iq, PacketError.Condition condition) {
+		IQ error = IQ.createResultIQ(iq);
+		error.setChildElement(iq.getChildElement().createCopy());
+		error.setError(condition);
+		plugin.sendPacket(error);
+	}
+}
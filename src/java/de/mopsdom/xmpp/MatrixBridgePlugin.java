@@ -9,14 +9,16 @@ import org.dom4j.Element;
 import org.eclipse.jetty.ee8.webapp.WebAppContext;
 import org.jivesoftware.admin.AuthCheckFilter;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.container.PluginMetadataHelper;
 import org.jivesoftware.openfire.http.HttpBindManager;
-import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.util.PropertyEventDispatcher;
 import org.jivesoftware.util.PropertyEventListener;
 import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -33,7 +35,18 @@ import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
 
+import de.mopsdom.matrix.CircuitBreakerRegistry;
 import de.mopsdom.matrix.MatrixAPI;
+import de.mopsdom.matrix.MediaBridge;
+import de.mopsdom.matrix.EventIdMap;
+import de.mopsdom.matrix.HomeserverProbe;
+import de.mopsdom.matrix.HomeserverRouter;
+import de.mopsdom.matrix.MessageRelations;
+import de.mopsdom.matrix.OversizeMessages;
+import de.mopsdom.matrix.ReceiptBridge;
+import de.mopsdom.matrix.Tracer;
+import de.mopsdom.matrix.TypingBridge;
+import de.mopsdom.matrix.utils.PropertiesStore;
 import de.mopsdom.matrix.utils.Utils;
 
 public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListener {
@@ -60,11 +73,200 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 			.setKey("plugin.matrix_bridge.component_name").setPlugin("matrix_bridge").setDefaultValue("matrix")
 			.setDynamic(false).build();
 
+	public static final SystemProperty<Integer> MEDIA_MAX_CONCURRENT_UPLOADS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.media.max_concurrent_uploads").setPlugin("matrix_bridge").setDefaultValue(4)
+			.setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<Long> MEDIA_MAX_FILE_SIZE = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.media.max_file_size").setPlugin("matrix_bridge")
+			.setDefaultValue(100L * 1024 * 1024).setDynamic(true).build();
+
+	public static final SystemProperty<Long> MEDIA_CACHE_MAX_SIZE = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.media.cache_max_size").setPlugin("matrix_bridge")
+			.setDefaultValue(1024L * 1024 * 1024).setDynamic(true).build();
+
+	public static final SystemProperty<String> MEDIA_PUBLIC_URL = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.media.public_url").setPlugin("matrix_bridge").setDefaultValue(null)
+			.setDynamic(true).build();
+
+	public static final SystemProperty<String> MEDIA_UPLOAD_URLS = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.media.upload_urls").setPlugin("matrix_bridge").setDefaultValue("")
+			.setDynamic(true).build();
+
+	public static final SystemProperty<Boolean> MEDIA_ALLOW_PRIVATE_ADDRESSES = SystemProperty.Builder.ofType(Boolean.class)
+			.setKey("plugin.matrix_bridge.media.allow_private_addresses").setPlugin("matrix_bridge").setDefaultValue(false)
+			.setDynamic(true).build();
+
+	public static final SystemProperty<Integer> OUTBOUND_WORKERS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.outbound.workers").setPlugin("matrix_bridge").setDefaultValue(8)
+			.setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<String> EXECUTION_MODE = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.execution_mode").setPlugin("matrix_bridge")
+			.setDefaultValue(BridgeExecutor.MODE_PLATFORM).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> HOMESERVER_MAX_CONCURRENT_REQUESTS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.homeserver.max_concurrent_requests").setPlugin("matrix_bridge")
+			.setDefaultValue(64).setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> OUTBOUND_VIRTUAL_CONCURRENCY = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.outbound.virtual_concurrency").setPlugin("matrix_bridge").setDefaultValue(128)
+			.setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> OUTBOUND_DEFAULT_WEIGHT = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.outbound.default_weight").setPlugin("matrix_bridge").setDefaultValue(4)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<String> OUTBOUND_SENDER_WEIGHTS = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.outbound.sender_weights").setPlugin("matrix_bridge").setDefaultValue("")
+			.setDynamic(true).build();
+
+	public static final SystemProperty<Integer> OUTBOUND_HIGH_WATERMARK = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.outbound.high_watermark").setPlugin("matrix_bridge").setDefaultValue(5000)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> OUTBOUND_LOW_WATERMARK = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.outbound.low_watermark").setPlugin("matrix_bridge").setDefaultValue(1000)
+			.setMinValue(0).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> BREAKER_FAILURE_RATE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.breaker.failure_rate").setPlugin("matrix_bridge").setDefaultValue(50)
+			.setMinValue(1).setMaxValue(100).setDynamic(true).build();
+
+	public static final SystemProperty<Long> BREAKER_SLOW_CALL_MS = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.breaker.slow_call_ms").setPlugin("matrix_bridge").setDefaultValue(5000L)
+			.setMinValue(1L).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> BREAKER_WINDOW_SIZE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.breaker.window_size").setPlugin("matrix_bridge").setDefaultValue(20)
+			.setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> BREAKER_MIN_CALLS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.breaker.min_calls").setPlugin("matrix_bridge").setDefaultValue(10)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Long> BREAKER_OPEN_DURATION = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.breaker.open_ms").setPlugin("matrix_bridge").setDefaultValue(30000L)
+			.setMinValue(0L).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> BREAKER_HALF_OPEN_CALLS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.breaker.half_open_calls").setPlugin("matrix_bridge").setDefaultValue(3)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Long> TYPING_INTERVAL_MS = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.typing.interval_ms").setPlugin("matrix_bridge").setDefaultValue(3000L)
+			.setMinValue(100L).setDynamic(false).build();
+
+	public static final SystemProperty<Long> TYPING_TIMEOUT_MS = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.typing.timeout_ms").setPlugin("matrix_bridge").setDefaultValue(30000L)
+			.setMinValue(1000L).setDynamic(true).build();
+
+	public static final SystemProperty<Long> RECEIPTS_FLUSH_MS = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.receipts.flush_ms").setPlugin("matrix_bridge").setDefaultValue(1000L)
+			.setMinValue(100L).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> BACKFILL_MAX_STANZAS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.backfill.max_stanzas").setPlugin("matrix_bridge").setDefaultValue(50)
+			.setMinValue(0).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> BACKFILL_PAGE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.backfill.page_size").setPlugin("matrix_bridge").setDefaultValue(25)
+			.setMinValue(1).setMaxValue(1000).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> BACKFILL_MAX_CONCURRENT = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.backfill.max_concurrent").setPlugin("matrix_bridge").setDefaultValue(4)
+			.setMinValue(1).setDynamic(false).build();
+
+	public static final SystemProperty<Boolean> ARCHIVE_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+			.setKey("plugin.matrix_bridge.archive.enabled").setPlugin("matrix_bridge").setDefaultValue(true)
+			.setDynamic(false).build();
+
+	public static final SystemProperty<Integer> ARCHIVE_SEGMENT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.archive.segment_size").setPlugin("matrix_bridge")
+			.setDefaultValue(4 * 1024 * 1024).setMinValue(64 * 1024).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> ARCHIVE_RETENTION_DAYS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.archive.retention_days").setPlugin("matrix_bridge").setDefaultValue(365)
+			.setMinValue(0).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> ARCHIVE_MAX_OPEN_CONVERSATIONS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.archive.max_open_conversations").setPlugin("matrix_bridge").setDefaultValue(256)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> EVENT_INDEX_CAPACITY = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.event_index.capacity").setPlugin("matrix_bridge").setDefaultValue(16384)
+			.setMinValue(16).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> EVENT_INDEX_SPILL_SLOTS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.event_index.spill_slots").setPlugin("matrix_bridge").setDefaultValue(262144)
+			.setMinValue(0).setMaxValue(8 * 1024 * 1024 - 1).setDynamic(false).build();
+
+	public static final SystemProperty<Integer> PUPPET_BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.puppets.batch_size").setPlugin("matrix_bridge").setDefaultValue(100)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> PUPPET_PARALLELISM = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.puppets.parallelism").setPlugin("matrix_bridge").setDefaultValue(8)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> PROFILE_SYNC_RATE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.profiles.rate_per_second").setPlugin("matrix_bridge").setDefaultValue(10)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Boolean> DM_PREPROVISION_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+			.setKey("plugin.matrix_bridge.dm_preprovision.enabled").setPlugin("matrix_bridge").setDefaultValue(false)
+			.setDynamic(true).build();
+
+	public static final SystemProperty<Integer> DM_PREPROVISION_RATE = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.dm_preprovision.rate_per_second").setPlugin("matrix_bridge").setDefaultValue(2)
+			.setMinValue(1).setDynamic(true).build();
+
+	public static final SystemProperty<Integer> MESSAGES_MAX_EVENT_BYTES = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.messages.max_event_bytes").setPlugin("matrix_bridge").setDefaultValue(65536)
+			.setMinValue(8192).setDynamic(true).build();
+
+	public static final SystemProperty<String> MESSAGES_OVERSIZE_MODE = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.messages.oversize_mode").setPlugin("matrix_bridge")
+			.setDefaultValue(OversizeMessages.MODE_SPLIT).setDynamic(true).build();
+
+	public static final SystemProperty<String> APPSERVICE_ID = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.appservice_id").setPlugin("matrix_bridge").setDefaultValue(null)
+			.setDynamic(true).build();
+
+	public static final SystemProperty<Integer> PROBE_INTERVAL_SECONDS = SystemProperty.Builder.ofType(Integer.class)
+			.setKey("plugin.matrix_bridge.probe.interval_seconds").setPlugin("matrix_bridge").setDefaultValue(30)
+			.setMinValue(5).setDynamic(false).build();
+
+	public static final SystemProperty<Long> PROBE_DEGRADED_MS = SystemProperty.Builder.ofType(Long.class)
+			.setKey("plugin.matrix_bridge.probe.degraded_ms").setPlugin("matrix_bridge").setDefaultValue(1000L)
+			.setMinValue(1L).setDynamic(true).build();
+
+	public static final SystemProperty<Double> TRACE_SAMPLE_RATE = SystemProperty.Builder.ofType(Double.class)
+			.setKey("plugin.matrix_bridge.trace.sample_rate").setPlugin("matrix_bridge").setDefaultValue(0.001)
+			.setMinValue(0.0).setMaxValue(1.0).setDynamic(true).build();
+
+	public static final SystemProperty<String> TRACE_FORCE = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.trace.force").setPlugin("matrix_bridge").setDefaultValue("")
+			.setDynamic(true).build();
+
+	public static final SystemProperty<String> HOMESERVER_PROFILES = SystemProperty.Builder.ofType(String.class)
+			.setKey("plugin.matrix_bridge.homeservers").setPlugin("matrix_bridge").setDefaultValue("")
+			.setDynamic(true).build();
+
+	private static MatrixBridgePlugin instance = null;
+
 	private WebAppContext contextPage = null;
 
 	private ComponentManager componentManager;
 
-	private MatrixAPI matrixApi;
+	private MamQueryHandler mamQueryHandler;
+
+	private EntityCapabilities componentCaps = null;
+
+	private EntityCapabilities puppetCaps = null;
+
+	// Puppets, deren Profil schon einmal gefunden wurde → disco#info ohne Homeserver-Anfrage
+	private Cache<String, Boolean> puppetDiscoCache;
 
 	private final String[] publicResources = new String[] { "/matrix/*" };
 
@@ -72,7 +274,27 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 
 		Log.info("Starte Matrix Bridge Plugin");
 
-		matrixApi = MatrixAPI.getInstance();
+		instance = this;
+		MatrixAPI.getInstance();
+		HomeserverRouter.getInstance().start();
+		PropertyEventDispatcher.addListener(this);
+		puppetDiscoCache = CacheFactory.createCache("MatrixBridgePuppetDisco");
+		CircuitBreakerRegistry.getInstance().registerStatistics();
+		HomeserverProbe.getInstance().start();
+		ExistenceIndex.getInstance().start();
+		PuppetProvisioner.getInstance().start();
+		ProfileSync.getInstance().start();
+		DirectRoomProvisioner.getInstance().start();
+		MucIndex.getInstance().start();
+		BridgeExecutor.getInstance().start();
+		OutboundDispatcher.getInstance().start();
+		TypingBridge.getInstance().start();
+		EventIdMap.getInstance().start();
+		ReceiptBridge.getInstance().start();
+		HistoryBackfill.getInstance().start();
+		MessageArchive.getInstance().start();
+		mamQueryHandler = new MamQueryHandler(this);
+		RoomOwnershipManager.getInstance().start();
 		componentManager = ComponentManagerFactory.getComponentManager();
 		try {
 			String name = MATRIX_COMPONENT_NAME.getValue() != null ? MATRIX_COMPONENT_NAME.getValue()
@@ -110,19 +332,43 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 		for (String publicResource : this.publicResources)
 			AuthCheckFilter.removeExclude(publicResource);
 
+		ExistenceIndex.getInstance().stop();
+		PuppetProvisioner.getInstance().stop();
+		ProfileSync.getInstance().stop();
+		DirectRoomProvisioner.getInstance().stop();
+		MucIndex.getInstance().stop();
+		TypingBridge.getInstance().stop();
+		ReceiptBridge.getInstance().stop();
+		EventIdMap.getInstance().stop();
+		HistoryBackfill.getInstance().stop();
+		MessageArchive.getInstance().stop();
+		RoomOwnershipManager.getInstance().stop();
+		OutboundDispatcher.getInstance().stop();
+		BridgeExecutor.getInstance().stop();
+		HomeserverProbe.getInstance().stop();
+		HomeserverRouter.getInstance().stop();
+		CircuitBreakerRegistry.getInstance().unregisterStatistics();
+		PropertiesStore.flushAll();
+		instance = null;
+
 		SystemProperty.removePropertiesForPlugin("matrix_bridge");
 		PropertyEventDispatcher.removeListener(this);
 	}
 
+	public static MatrixBridgePlugin getInstance() {
+		return instance;
+	}
+
 	@Override
 	public void propertySet(String property, Map<String, Object> params) {
-
+		if (property.startsWith(HOMESERVER_PROFILES.getKey()))
+			HomeserverRouter.getInstance().reload();
 	}
 
 	@Override
 	public void propertyDeleted(String property, Map<String, Object> params) {
-		// TODO Auto-generated method stub
-
+		if (property.startsWith(HOMESERVER_PROFILES.getKey()))
+			HomeserverRouter.getInstance().reload();
 	}
 
 	@Override
@@ -161,15 +407,111 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 			} else if (iq.getType() == IQ.Type.set) {
 				handleIQSet(iq);
 			}
-		} else if (packet instanceof Message) {
+		} else if (packet instanceof Presence && isComponentProbe((Presence) packet)) {
+			// Wie IQs an der Zulassungskontrolle vorbei, sonst fehlt Clients unter Last die Caps-Presence
+			sendComponentPresence((Presence) packet);
+		} else if (packet instanceof Message || packet instanceof Presence) {
+			Tracer.Trace trace = Tracer.begin("xmpp", packet.getID(),
+					packet.getFrom() != null ? packet.getFrom().toBareJID() : null);
+			try {
+				// Im Cluster bridged nur der Besitzer-Knoten des Raums
+				String roomKey = getRoomKey(packet);
+				NodeID owner = RoomOwnershipManager.getInstance().getOwner(roomKey);
+				if (owner != null && !owner.equals(XMPPServer.getInstance().getNodeID())) {
+					try {
+						if (CacheFactory.doClusterTask(new BridgePacketTask(packet), owner.toByteArray())) {
+							Tracer.mark("forwarded");
+							Tracer.end(trace);
+							return;
+						}
+					} catch (Exception e) {
+						Log.warn("Weiterleiten an Cluster-Knoten fehlgeschlagen, verarbeite lokal: " + e.getMessage());
+					}
+				}
+				dispatchLocally(packet);
+			} finally {
+				// Der Trace lebt im Task weiter, dieser Thread ist fertig
+				Tracer.detach();
+			}
+		}
+	}
+
+	public void dispatchLocally(Packet packet) {
+		Tracer.Trace trace = Tracer.current();
+		switch (AdmissionController.getInstance().admit(packet)) {
+		case SHED:
+			Log.debug("Degraded mode, verwerfe: " + packet.toXML());
+			Tracer.mark("shed");
+			Tracer.end(trace);
+			return;
+		case REJECT:
+			sendMessageError((Message) packet, PacketError.Condition.resource_constraint, PacketError.Type.wait);
+			Tracer.mark("rejected");
+			Tracer.end(trace);
+			return;
+		default:
+			break;
+		}
+
+		String sender = packet.getFrom() != null ? packet.getFrom().toBareJID() : "";
+		OutboundDispatcher.getInstance().dispatch(getRoomKey(packet), sender, () -> {
+			try {
+				if (packet instanceof Message)
+					handleMessage((Message) packet);
+				else if (packet instanceof Presence)
+					handlePresence((Presence) packet);
+			} finally {
+				Tracer.end(trace);
+			}
+		}, () -> {
+			// Executor voll oder gestoppt: wie bei REJECT bouncen statt stillschweigend verwerfen
+			if (packet instanceof Message)
+				sendMessageError((Message) packet, PacketError.Condition.resource_constraint, PacketError.Type.wait);
+			Tracer.mark("rejected");
+			Tracer.end(trace);
+		});
+	}
 
-			handleMessage((Message) packet);
-		} else if (packet instanceof Presence) {
+	public void sendPacket(Packet packet) {
+		if (componentManager == null)
+			return;
 
-			handlePresence((Presence) packet);
+		try {
+			componentManager.sendPacket(this, packet);
+		} catch (ComponentException e) {
+			Log.error("Konnte Packet nicht senden: " + e.getMessage());
+		}
+	}
+
+	// Bounce an den Absender, damit Nachrichten nicht stillschweigend verloren gehen
+	private void sendMessageError(Message message, PacketError.Condition condition, PacketError.Type type) {
+		if (message.getType() == Message.Type.error || componentManager == null)
+			return;
+
+		Message error = message.createCopy();
+		error.setTo(message.getFrom());
+		error.setFrom(message.getTo());
+		error.setError(new PacketError(condition, type));
+
+		try {
+			componentManager.sendPacket(this, error);
+		} catch (ComponentException e) {
+			Log.error("Konnte Fehlermeldung nicht senden: " + e.getMessage());
 		}
 	}
 
+	// Schlüssel des Matrix-Raums, zu dem die Stanza gehört (Direktnachricht bzw. MUC-Raum)
+	private String getRoomKey(Packet packet) {
+		if (packet instanceof Message) {
+			// Nachrichten an die Domain der Bridge oder von Servern/Components haben keinen DM-Raum
+			String alias = MatrixAPI.getDirectRoomAlias(packet.getFrom(), packet.getTo());
+			if (alias != null)
+				return alias;
+		}
+
+		return packet.getTo() != null ? packet.getTo().toBareJID() : "";
+	}
+
 	@Override
 	public void initialize(JID jid, ComponentManager componentManager) throws ComponentException {
 		// TODO Auto-generated method stub
@@ -207,11 +549,22 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 			}
 			else
 			if ("http://jabber.org/protocol/disco#info".equals(namespace)) {
-				sendDiscoInfoResultFromMatrixUser(iq);
+				// Bekannte Puppets und Caps-Anfragen direkt aus der Vorlage beantworten
+				if (getPuppetCapabilities().getNode().equals(query.attributeValue("node"))
+						|| (query.attributeValue("node") == null && puppetDiscoCache.containsKey(iq.getTo().toBareJID())))
+					sendIQResult(getPuppetCapabilities().createResult(iq));
+				else
+					// Profilabfrage beim Homeserver → nicht im Component-Thread blockieren
+					executeOrReject(iq, () -> sendDiscoInfoResultFromMatrixUser(iq));
 			}
 			else
 			if ("http://jabber.org/protocol/disco#items".equals(namespace)&&iq.getTo().toString().equals(getComponentDomain())) {
-				sendDiscoItemsResult(iq);
+				executeOrReject(iq, () -> sendDiscoItemsResult(iq));
+			}
+			else
+			if (MamQueryHandler.MAM_NAMESPACE.equals(namespace) && iq.getTo().toString().equals(getComponentDomain())
+					&& MessageArchive.getInstance().isEnabled()) {
+				mamQueryHandler.handleGet(iq);
 			}
 			else
 			if ("jabber:iq:version".equals(namespace)) {
@@ -236,7 +589,7 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 		Element query = result.setChildElement("query", "http://jabber.org/protocol/disco#items");
 
 		try {
-			JSONArray publicRooms = matrixApi.getPublicRooms();
+			JSONArray publicRooms = MatrixAPI.forJid(iq.getFrom()).getPublicRooms();
 
 			if (publicRooms!=null)
 			{
@@ -281,10 +634,21 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 		}
 	}
 	
+	// Ein abgelehnter Task würde die IQ unbeantwortet lassen
+	private void executeOrReject(IQ iq, Runnable task) {
+		if (!BridgeExecutor.getInstance().execute(task))
+			sendIQError(iq, -1, PacketError.Condition.resource_constraint.toString(), "wait");
+	}
+
 	private void sendIQError(IQ src, int code, String errortagname) {
+		sendIQError(src, code, errortagname, "cancel");
+	}
+
+	private void sendIQError(IQ src, int code, String errortagname, String type) {
 		IQ result = IQ.createResultIQ(src);
+		result.setType(IQ.Type.error);
 		Element error = result.setChildElement("error",null);
-		error.addAttribute("type","cancel");
+		error.addAttribute("type",type);
 		
 		if (code>=0)
 			error.addAttribute("code",String.valueOf(code));
@@ -313,95 +677,91 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 
 	private void sendDiscoInfoResultFromMatrixUser(IQ iq)
 	{
-		Element query = iq.getChildElement();
-	    if (query != null && "http://jabber.org/protocol/disco#info".equals(query.getNamespaceURI())) {
-	        JID to = iq.getTo();
-	        IQ result = IQ.createResultIQ(iq);
-	        
-	        if (to != null) {
-	            String matrixId = Utils.convertXmppUserJIDToMatrixID(to, "@xmpp_"); // z. B. test@matrix.mopstation → @xmpp_test:matrix.org
-	            JSONObject profile=null;
-				try {
-					profile = matrixApi.getUserProfile(matrixId);
-					
-				    Element queryRes = result.setChildElement("query", "http://jabber.org/protocol/disco#info");
-
-				    queryRes.addElement("identity")
-				        .addAttribute("category", "client")
-				        .addAttribute("type", "user")
-				        .addAttribute("name", to.getNode());
-
-				    queryRes.addElement("feature").addAttribute("var", "http://jabber.org/protocol/disco#info");
-				    queryRes.addElement("feature").addAttribute("var", "jabber:iq:version");
-
-				    try {
-				        componentManager.sendPacket(this, result);
-				    } catch (ComponentException e) {
-				        Log.error("Fehler beim Senden von disco#info Antwort: " + e.getMessage());
-				    }
-				    
-				}
-				catch (FileNotFoundException ex)
-				{
-					sendIQError(iq, 404, PacketError.Condition.item_not_found.toString());
-				}
-				catch (IOException e) {
-					sendIQError(iq, 501, PacketError.Condition.internal_server_error.toString());
-				}
-				
-	            if (profile!=null) {
-	            	sendIQResult(result);
-	            } else {
-	            	sendIQError(iq,404, PacketError.Condition.item_not_found.toString());
-	            	return;
-	            }
-	        }
-	    }
-	    
-	    sendIQError(iq, 400, PacketError.Condition.bad_request.toString());
+		JID to = iq.getTo();
+		if (to == null || to.getNode() == null || !getPuppetCapabilities().matches(iq)) {
+			sendIQError(iq, 404, PacketError.Condition.item_not_found.toString());
+			return;
+		}
+
+		String matrixId = Utils.convertXmppUserJIDToMatrixID(to, "@xmpp_"); // z. B. test@matrix.mopstation → @xmpp_test:matrix.org
+		try {
+			if (MatrixAPI.forMxid(matrixId).getUserProfile(matrixId) == null) {
+				sendIQError(iq, 404, PacketError.Condition.item_not_found.toString());
+				return;
+			}
+		} catch (FileNotFoundException ex) {
+			sendIQError(iq, 404, PacketError.Condition.item_not_found.toString());
+			return;
+		} catch (IOException e) {
+			sendIQError(iq, 501, PacketError.Condition.internal_server_error.toString());
+			return;
+		}
+
+		puppetDiscoCache.put(to.toBareJID(), Boolean.TRUE);
+		sendIQResult(getPuppetCapabilities().createResult(iq));
 	}
-	
-	private void sendDiscoInfoResult(IQ iq) {
-		IQ result = IQ.createResultIQ(iq);
-		Element query = result.setChildElement("query", "http://jabber.org/protocol/disco#info");
 
-		Element identity1 = query.addElement("identity");
-		identity1.addAttribute("category", "conference");
-		identity1.addAttribute("type", "text");
-		identity1.addAttribute("name", PluginMetadataHelper.getName(this));
-		
-		Element identity2 = query.addElement("identity");
-		identity2.addAttribute("category", "directory");
-		identity2.addAttribute("type", "chatroom");
-		identity2.addAttribute("name", PluginMetadataHelper.getName(this));
-		
-		Element identity3 = query.addElement("identity");
-		identity3.addAttribute("category", "gateway");
-		identity3.addAttribute("type", "matrix");
-		identity3.addAttribute("name", PluginMetadataHelper.getName(this));
-
-		// Standard-Features für eine Matrix-Bridge
-		addFeature(query, "jabber:iq:gateway");
-		addFeature(query, "http://jabber.org/protocol/disco#info");
-		addFeature(query, "http://jabber.org/protocol/disco#items");
-		addFeature(query, "urn:xmpp:ping");
-		addFeature(query, "urn:xmpp:receipts");
-		addFeature(query, "http://jabber.org/protocol/muc");
-
-		// Optional: Eigener Namespace zur Identifikation
-		addFeature(query, "urn:matrix:bridge:1");
+	private void sendDiscoInfoResult(IQ iq) {
+		if (!getComponentCapabilities().matches(iq)) {
+			sendIQError(iq, 404, PacketError.Condition.item_not_found.toString());
+			return;
+		}
+		sendIQResult(getComponentCapabilities().createResult(iq));
+	}
 
-		sendIQResult(result);
+	// Die Antwort ändert sich nur mit dem Plugin → einmal bauen, Hash für die Presence mitberechnen
+	private synchronized EntityCapabilities getComponentCapabilities() {
+		if (componentCaps == null) {
+			String name = PluginMetadataHelper.getName(this);
+			componentCaps = new EntityCapabilities()
+					.addIdentity("conference", "text", name)
+					.addIdentity("directory", "chatroom", name)
+					.addIdentity("gateway", "matrix", name)
+					// Standard-Features für eine Matrix-Bridge
+					.addFeature("jabber:iq:gateway")
+					.addFeature("http://jabber.org/protocol/disco#info")
+					.addFeature("http://jabber.org/protocol/disco#items")
+					.addFeature("urn:xmpp:ping")
+					.addFeature("urn:xmpp:receipts")
+					.addFeature("http://jabber.org/protocol/muc")
+					.addFeature(EntityCapabilities.CAPS_NAMESPACE)
+					.addFeature(MamQueryHandler.MAM_NAMESPACE)
+					// Optional: Eigener Namespace zur Identifikation
+					.addFeature("urn:matrix:bridge:1")
+					.build();
+		}
+		return componentCaps;
 	}
 
-	private void addFeature(Element query, String var) {
-		Element feature = query.addElement("feature");
-		feature.addAttribute("var", var);
+	// Für alle Puppets identisch, damit Clients einen einzigen Caps-Eintrag cachen
+	private synchronized EntityCapabilities getPuppetCapabilities() {
+		if (puppetCaps == null) {
+			puppetCaps = new EntityCapabilities()
+					.addIdentity("client", "user", null)
+					.addFeature("http://jabber.org/protocol/disco#info")
+					.addFeature("jabber:iq:version")
+					.addFeature(EntityCapabilities.CAPS_NAMESPACE)
+					.addFeature(ReceiptBridge.RECEIPTS_NAMESPACE)
+					.addFeature(ReceiptBridge.CHAT_MARKERS_NAMESPACE)
+					.addFeature(TypingBridge.CHATSTATES_NAMESPACE)
+					.build();
+		}
+		return puppetCaps;
 	}
 
 	protected void handleIQSet(IQ iq) {
 		Log.debug("handleIQSet(): " + iq.toString());
 
+		// MAM-Abfragen scannen das Archiv → nicht im Component-Thread
+		if (iq.getChildElement() != null && MamQueryHandler.MAM_NAMESPACE.equals(iq.getChildElement().getNamespaceURI())
+				&& iq.getTo().toString().equals(getComponentDomain())) {
+			if (MessageArchive.getInstance().isEnabled())
+				executeOrReject(iq, () -> mamQueryHandler.handleSet(iq));
+			else
+				sendIQError(iq, -1, PacketError.Condition.feature_not_implemented.toString());
+			return;
+		}
+
 		// Prüfe ob IQ MUC-Konfiguration enthält
 		if (iq.getChildElement() != null
 				&& "http://jabber.org/protocol/muc#owner".equals(iq.getChildElement().getNamespaceURI())) {
@@ -415,6 +775,7 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 				String roomAlias = "#" + to.getNode() + ":" + to.getDomain(); // z. B. #afuwu:conference.mopstation
 
 				try {
+					MatrixAPI matrixApi = MatrixAPI.forJid(iq.getFrom());
 					String roomId = matrixApi.resolveRoomAlias(roomAlias);
 					if (roomId != null) {
 						matrixApi.removeRoom(roomId);
@@ -429,7 +790,73 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 
 	protected void handleMessage(Message message) {
 		Log.debug("handleMessage(): " + message.toString());
-		matrixApi.sendMessageToUser(message);
+
+		// Widerruf (XEP-0424) → Redaction; der Fallback-Body wird nicht gebridged
+		String retractedId = MessageRelations.getRetractedId(message);
+		if (retractedId != null) {
+			retract(message, retractedId);
+			return;
+		}
+
+		// Reine Chat States (XEP-0085) → m.typing, Chat Markers (XEP-0333) → m.read,
+		// jeweils ohne Raum-Auflösung/Join/Invite
+		if (message.getBody() == null && MediaBridge.getAttachmentUrl(message) == null) {
+			String displayedId = ReceiptBridge.getDisplayedMarkerId(message);
+			if (displayedId != null)
+				ReceiptBridge.getInstance().onDisplayed(message, displayedId);
+
+			Boolean typing = TypingBridge.getTypingState(message);
+			if (typing != null)
+				TypingBridge.getInstance().onChatState(message, typing);
+			return;
+		}
+
+		if (!MatrixAPI.forJid(message.getFrom()).sendMessageToUser(message)) {
+			sendMessageError(message, PacketError.Condition.service_unavailable, PacketError.Type.wait);
+			return;
+		}
+
+		MessageArchive.getInstance().append(message.getFrom(), message.getTo(), message);
+
+		if (message.getID() != null && ReceiptBridge.isReceiptRequested(message)) {
+			// XEP-0184: Zustellung ist bestätigt, sobald der Homeserver das Event angenommen hat
+			Message receipt = new Message();
+			receipt.setType(message.getType());
+			receipt.setFrom(message.getTo());
+			receipt.setTo(message.getFrom());
+			receipt.addChildElement("received", ReceiptBridge.RECEIPTS_NAMESPACE).addAttribute("id", message.getID());
+			sendPacket(receipt);
+		}
+	}
+
+	private void retract(Message message, String retractedId) {
+		MatrixAPI matrixApi = MatrixAPI.forJid(message.getFrom());
+		try {
+			String roomAlias = MatrixAPI.getDirectRoomAlias(message.getFrom(), message.getTo());
+			String roomId = roomAlias != null ? matrixApi.resolveRoomAlias(roomAlias) : null;
+			String eventId = roomId != null ? EventIdMap.getInstance().getEventId(roomId, retractedId) : null;
+			if (eventId == null) {
+				Log.debug("Widerruf für unbekannte Nachricht " + retractedId);
+				return;
+			}
+			matrixApi.redactEvent(roomId, Utils.convertXmppUserJIDToMatrixID(message.getFrom(), "@xmpp_"), eventId);
+		} catch (IOException e) {
+			Log.warn("Widerruf konnte nicht gebridged werden: " + e.getMessage());
+		}
+	}
+
+	private static boolean isComponentProbe(Presence presence) {
+		return presence.getType() == Presence.Type.probe && presence.getTo() != null
+				&& presence.getTo().getNode() == null;
+	}
+
+	// Presence der Component mit Caps-Hash → Clients fragen disco#info nur einmal pro Version ab
+	private void sendComponentPresence(Presence probe) {
+		Presence available = new Presence();
+		available.setFrom(probe.getTo());
+		available.setTo(probe.getFrom());
+		getComponentCapabilities().addTo(available);
+		sendPacket(available);
 	}
 
 	protected void handlePresence(Presence presence) {
@@ -441,6 +868,7 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 
 		// Prüfen ob Presence in einen MUC-Raum mit Nick (also join)
 		if (isMucRoomJID(toJid)) {
+			MatrixAPI matrixApi = MatrixAPI.forJid(presence.getFrom());
 			// Prüfen, ob <x xmlns='http://jabber.org/protocol/muc'> vorhanden
 			Element xElement = presence.getElement().element("x");
 			if (xElement != null && "http://jabber.org/protocol/muc".equals(xElement.getNamespaceURI())) {
@@ -448,11 +876,18 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 				String roomAlias = "#" + toJid.getNode() + ":" + toJid.getDomain().split("/")[0];
 				JID userjid = Utils.getJidFromMucJid(toJid);
 
-				matrixApi.publishRoom(roomAlias, roomAlias, null, null, null);
+				// Verzeichnis-Veröffentlichung ist verzichtbar und entfällt unter Last
+				if (!AdmissionController.getInstance().isDegraded())
+					matrixApi.publishRoom(roomAlias, roomAlias, null, null, null);
 				if (userjid != null) {
 					String matrixUser = Utils.convertXmppUserJIDToMatrixID(userjid, "@xmpp_");
 					try {
 						matrixApi.joinRoomIfNecessary(roomAlias, matrixUser);
+
+						String roomId = matrixApi.resolveRoomAlias(roomAlias);
+						if (roomId != null && presence.getType() == null)
+							HistoryBackfill.getInstance().backfill(roomId, toJid.asBareJID(), presence.getFrom(),
+									matrixUser, xElement);
 					} catch (Exception e) {
 						Log.error("Fehler bei der Abarbeitung einer Presence: " + e.getMessage());
 					}
@@ -496,16 +931,6 @@ public class MatrixBridgePlugin implements Plugin, Component, PropertyEventListe
 	}
 
 	private boolean isMucRoomJID(JID jid) {
-		MultiUserChatManager manager = XMPPServer.getInstance().getMultiUserChatManager();
-
-		String bare = jid.getDomain().split("/")[0];
-		String subdomain = bare.replace("." + XMPPServer.getInstance().getServerInfo().getXMPPDomain(), "");
-		if (manager.getMultiUserChatService(subdomain) != null) {
-			if (manager.getMultiUserChatService(subdomain).getChatRoom(jid.getNode()) != null) {
-				return true;
-			}
-		}
-
-		return false;
+		return MucIndex.getInstance().isRoom(jid);
 	}
 }
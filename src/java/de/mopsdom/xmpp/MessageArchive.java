@@ -0,0 +1,522 @@
+package de.mopsdom.xmpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.utils.Utils;
+
+/**
+ * Lokales Archiv der gebridgten Nachrichten, eine Folge von append-only
+ * Segmenten pro Unterhaltung (XMPP-Benutzer ↔ Gegenüber). Abfragen laufen
+ * sequentiell über die Segmente; Segmente außerhalb des abgefragten ID- und
+ * Zeitbereichs werden anhand ihrer Grenzen übersprungen.
+ *
+ * Geöffnet (mit gemapptem aktivem Segment) sind höchstens
+ * ARCHIVE_MAX_OPEN_CONVERSATIONS Unterhaltungen; die am längsten nicht
+ * genutzten und seit IDLE_TIMEOUT unbenutzte werden geschlossen. Abfragen auf
+ * nicht geöffnete Unterhaltungen lesen die Dateien direkt, ohne sie zu öffnen.
+ *
+ * IDs sind Mikrosekunden seit Epoch (bei Kollision hochgezählt) und damit
+ * über alle Unterhaltungen hinweg eindeutig und zeitlich sortiert.
+ */
+public class MessageArchive {
+
+	private static final Logger Log = LoggerFactory.getLogger(MessageArchive.class);
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String JID_FILE = "jid";
+
+	private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+	private static MessageArchive instance = null;
+
+	// Zugriffsreihenfolge → der älteste Eintrag ist die am längsten nicht genutzte Unterhaltung; Zugriff unter eigener Sperre
+	private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLong lastId = new AtomicLong();
+
+	private File baseDir = null;
+	private TimerTask retentionTask = null;
+	private TimerTask idleTask = null;
+
+	static class Conversation {
+		final File dir;
+		final JID with;
+		final List<ArchiveSegment> segments = new CopyOnWriteArrayList<>();
+		volatile long lastUsed = System.currentTimeMillis();
+		// Unter der Sperre der Unterhaltung; eine geschlossene Unterhaltung nimmt nichts mehr an
+		boolean closed = false;
+
+		Conversation(File dir, JID with) {
+			this.dir = dir;
+			this.with = with;
+		}
+
+		// Das aktive Segment zurückschreiben und alle Mappings freigeben
+		synchronized void close() {
+			closed = true;
+			for (ArchiveSegment segment : segments)
+				segment.seal();
+		}
+	}
+
+	public static class Page {
+		public final List<ArchiveSegment.Record> records;
+		public final boolean complete;
+
+		Page(List<ArchiveSegment.Record> records, boolean complete) {
+			this.records = records;
+			this.complete = complete;
+		}
+	}
+
+	public static MessageArchive getInstance() {
+		if (instance == null)
+			instance = new MessageArchive();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (!MatrixBridgePlugin.ARCHIVE_ENABLED.getValue())
+			return;
+
+		baseDir = new File(Utils.getDataDirectory(), "archive");
+		if (!baseDir.exists() && !baseDir.mkdirs())
+			Log.error("Archiv-Verzeichnis konnte nicht angelegt werden: " + baseDir.getAbsolutePath());
+
+		retentionTask = new TimerTask() {
+			@Override
+			public void run() {
+				applyRetention();
+			}
+		};
+		TaskEngine.getInstance().schedule(retentionTask, Duration.ofMinutes(5), Duration.ofHours(1));
+
+		idleTask = new TimerTask() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		};
+		TaskEngine.getInstance().schedule(idleTask, Duration.ofMinutes(1), Duration.ofMinutes(1));
+	}
+
+	public synchronized void stop() {
+		if (retentionTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(retentionTask);
+			retentionTask = null;
+		}
+		if (idleTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(idleTask);
+			idleTask = null;
+		}
+		List<Conversation> open;
+		synchronized (conversations) {
+			open = new ArrayList<>(conversations.values());
+			conversations.clear();
+		}
+		for (Conversation conversation : open)
+			conversation.close();
+		baseDir = null;
+	}
+
+	public boolean isEnabled() {
+		return baseDir != null;
+	}
+
+	public void append(JID owner, JID with, Message message) {
+		if (baseDir == null)
+			return;
+
+		try {
+			long now = System.currentTimeMillis();
+			long id = nextId(now);
+			String xml = message.toXML();
+
+			while (true) {
+				Conversation conversation = getConversation(owner, with);
+				synchronized (conversation) {
+					// Zwischen Nachschlagen und Sperre verdrängt → neu öffnen
+					if (conversation.closed)
+						continue;
+
+					List<ArchiveSegment> segments = conversation.segments;
+					ArchiveSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+					if (active == null || !active.append(id, now, xml)) {
+						if (active != null)
+							active.seal();
+						int size = Math.max(MatrixBridgePlugin.ARCHIVE_SEGMENT_SIZE.getValue(),
+								ArchiveSegment.HEADER_SIZE + xml.length() * 4 + 4);
+						active = new ArchiveSegment(new File(conversation.dir, segmentName(id)), size, true);
+						segments.add(active);
+						active.append(id, now, xml);
+					}
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.warn("Nachricht konnte nicht archiviert werden: " + e.getMessage());
+		}
+	}
+
+	private long nextId(long now) {
+		return lastId.updateAndGet(previous -> Math.max(previous + 1, now * 1000));
+	}
+
+	/**
+	 * Vorwärts (before == null) ab after oder rückwärts vor before
+	 * (Long.MAX_VALUE = letzte Seite), jeweils höchstens max Einträge.
+	 * with == null fragt alle Unterhaltungen des Benutzers nacheinander ab.
+	 */
+	public Page query(JID owner, JID with, long start, long end, Long after, Long before, int max) throws IOException {
+		List<File> targets = new ArrayList<>();
+		if (baseDir != null) {
+			if (with != null) {
+				File dir = new File(getOwnerDir(owner), hash(with.toBareJID()));
+				if (dir.isDirectory())
+					targets.add(dir);
+			} else {
+				File[] dirs = getOwnerDir(owner).listFiles(File::isDirectory);
+				if (dirs != null)
+					targets.addAll(Arrays.asList(dirs));
+			}
+		}
+
+		// Pro Unterhaltung scannen und nur die max + 1 passendsten Einträge behalten
+		List<ArchiveSegment.Record> merged = new ArrayList<>();
+		for (File dir : targets) {
+			Conversation conversation = forQuery(owner, dir);
+			if (conversation == null)
+				continue;
+			if (before == null)
+				merged.addAll(scanForward(conversation, start, end, after != null ? after : Long.MIN_VALUE, max + 1));
+			else
+				merged.addAll(scanBackward(conversation, start, end, before, max + 1));
+
+			merged.sort(Comparator.comparingLong(r -> r.id));
+			if (merged.size() > max + 1) {
+				merged = before == null ? new ArrayList<>(merged.subList(0, max + 1))
+						: new ArrayList<>(merged.subList(merged.size() - max - 1, merged.size()));
+			}
+		}
+
+		boolean complete = merged.size() <= max;
+		if (!complete) {
+			merged = before == null ? new ArrayList<>(merged.subList(0, max))
+					: new ArrayList<>(merged.subList(merged.size() - max, merged.size()));
+		}
+		return new Page(merged, complete);
+	}
+
+	private List<ArchiveSegment.Record> scanForward(Conversation conversation, long start, long end, long after,
+			int limit) throws IOException {
+		List<ArchiveSegment.Record> result = new ArrayList<>();
+		for (ArchiveSegment segment : conversation.segments) {
+			if (result.size() >= limit || segment.getFirstTimestamp() > end)
+				break;
+			if (segment.isEmpty() || segment.getLastId() <= after || segment.getLastTimestamp() < start)
+				continue;
+
+			segment.scan(segment.seek(after, start), new ArchiveSegment.RecordVisitor() {
+				@Override
+				public int accept(long id, long timestamp) {
+					if (timestamp > end)
+						return STOP;
+					return id > after && timestamp >= start ? TAKE : SKIP;
+				}
+
+				@Override
+				public boolean visit(ArchiveSegment.Record record) {
+					result.add(record);
+					return result.size() < limit;
+				}
+			});
+		}
+		return result;
+	}
+
+	private List<ArchiveSegment.Record> scanBackward(Conversation conversation, long start, long end, long before,
+			int limit) throws IOException {
+		Deque<ArchiveSegment.Record> result = new ArrayDeque<>();
+		// Schnappschuss, da die Kompaktierung die Liste parallel verändern kann
+		List<ArchiveSegment> segments = new ArrayList<>(conversation.segments);
+		for (int i = segments.size() - 1; i >= 0 && result.size() < limit; i--) {
+			ArchiveSegment segment = segments.get(i);
+			if (segment.isEmpty() || segment.getFirstId() >= before || segment.getFirstTimestamp() > end)
+				continue;
+			if (segment.getLastTimestamp() < start)
+				break;
+
+			// Innerhalb des Segments vorwärts lesen und nur die jüngsten Treffer behalten
+			Deque<ArchiveSegment.Record> window = new ArrayDeque<>();
+			int remaining = limit - result.size();
+			segment.scan(segment.seek(Long.MIN_VALUE, start), new ArchiveSegment.RecordVisitor() {
+				@Override
+				public int accept(long id, long timestamp) {
+					if (id >= before || timestamp > end)
+						return STOP;
+					return timestamp >= start ? TAKE : SKIP;
+				}
+
+				@Override
+				public boolean visit(ArchiveSegment.Record record) {
+					window.addLast(record);
+					if (window.size() > remaining)
+						window.removeFirst();
+					return true;
+				}
+			});
+
+			while (!window.isEmpty())
+				result.addFirst(window.removeLast());
+		}
+		return new ArrayList<>(result);
+	}
+
+	private Conversation getConversation(JID owner, JID with) throws IOException {
+		String key = owner.toBareJID() + "|" + with.toBareJID();
+		List<Conversation> evicted = new ArrayList<>();
+		Conversation conversation;
+		synchronized (conversations) {
+			conversation = conversations.get(key);
+			if (conversation == null) {
+				conversation = open(new File(getOwnerDir(owner), hash(with.toBareJID())), with.asBareJID(), true);
+				conversations.put(key, conversation);
+
+				int maxOpen = MatrixBridgePlugin.ARCHIVE_MAX_OPEN_CONVERSATIONS.getValue();
+				Iterator<Conversation> it = conversations.values().iterator();
+				while (conversations.size() > maxOpen && it.hasNext()) {
+					Conversation eldest = it.next();
+					if (eldest == conversation)
+						break;
+					it.remove();
+					evicted.add(eldest);
+				}
+			}
+		}
+		conversation.lastUsed = System.currentTimeMillis();
+
+		for (Conversation eldest : evicted)
+			eldest.close();
+		return conversation;
+	}
+
+	/**
+	 * Geöffnete Unterhaltung zu dir oder, wenn sie nicht geöffnet ist, eine
+	 * nur lesende Sicht auf ihre Dateien, die nicht zwischengespeichert wird.
+	 */
+	private Conversation forQuery(JID owner, File dir) throws IOException {
+		Conversation loaded = findLoaded(dir);
+		if (loaded != null)
+			return loaded;
+
+		JID peer = readJid(dir);
+		return peer != null ? open(dir, peer, false) : null;
+	}
+
+	// writable: das letzte Segment zum Anhängen mappen, alle älteren nur lesend öffnen
+	private Conversation open(File dir, JID with, boolean writable) throws IOException {
+		if (!dir.exists()) {
+			Files.createDirectories(dir.toPath());
+			Files.writeString(new File(dir, JID_FILE).toPath(), with.toBareJID(), StandardCharsets.UTF_8);
+		}
+
+		Conversation conversation = new Conversation(dir, with);
+		File[] files = listSegments(dir);
+		for (int i = 0; i < files.length; i++) {
+			boolean active = writable && i == files.length - 1;
+			ArchiveSegment segment = new ArchiveSegment(files[i], MatrixBridgePlugin.ARCHIVE_SEGMENT_SIZE.getValue(),
+					active);
+			if (!segment.isEmpty())
+				lastId.accumulateAndGet(segment.getLastId(), Math::max);
+			conversation.segments.add(segment);
+		}
+		return conversation;
+	}
+
+	private void closeIdle() {
+		long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT.toMillis();
+		List<Conversation> idle = new ArrayList<>();
+		synchronized (conversations) {
+			Iterator<Conversation> it = conversations.values().iterator();
+			while (it.hasNext()) {
+				Conversation conversation = it.next();
+				if (conversation.lastUsed < cutoff) {
+					it.remove();
+					idle.add(conversation);
+				}
+			}
+		}
+		for (Conversation conversation : idle)
+			conversation.close();
+	}
+
+	/**
+	 * Löscht Segmente, die vollständig vor der Aufbewahrungsgrenze liegen, und
+	 * schreibt abgeschlossene Segmente neu, deren überwiegender Teil abgelaufen ist.
+	 */
+	private void applyRetention() {
+		int days = MatrixBridgePlugin.ARCHIVE_RETENTION_DAYS.getValue();
+		File base = baseDir;
+		if (days <= 0 || base == null)
+			return;
+
+		long cutoff = System.currentTimeMillis() - Duration.ofDays(days).toMillis();
+		File[] owners = base.listFiles(File::isDirectory);
+		for (File ownerDir : owners != null ? owners : new File[0]) {
+			File[] dirs = ownerDir.listFiles(File::isDirectory);
+			for (File dir : dirs != null ? dirs : new File[0]) {
+				try {
+					Conversation conversation = findLoaded(dir);
+					if (conversation != null)
+						compact(conversation, cutoff);
+					else
+						dropExpiredFiles(dir, cutoff);
+				} catch (IOException e) {
+					Log.warn("Kompaktierung von " + dir + " fehlgeschlagen: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private Conversation findLoaded(File dir) {
+		synchronized (conversations) {
+			for (Conversation conversation : conversations.values()) {
+				if (conversation.dir.equals(dir))
+					return conversation;
+			}
+		}
+		return null;
+	}
+
+	// Nicht geladene Unterhaltung: der Name des Folgesegments ist eine obere Schranke für das Segmentende
+	private void dropExpiredFiles(File dir, long cutoff) {
+		File[] segments = listSegments(dir);
+		for (int i = 0; i + 1 < segments.length; i++) {
+			if (getFirstId(segments[i + 1]) / 1000 >= cutoff)
+				break;
+			if (!segments[i].delete())
+				Log.warn("Abgelaufenes Segment konnte nicht gelöscht werden: " + segments[i]);
+		}
+	}
+
+	private void compact(Conversation conversation, long cutoff) throws IOException {
+		synchronized (conversation) {
+			List<ArchiveSegment> segments = conversation.segments;
+			for (int i = 0; i < segments.size(); i++) {
+				ArchiveSegment segment = segments.get(i);
+				boolean active = i == segments.size() - 1;
+				if (segment.getFirstTimestamp() >= cutoff)
+					break;
+
+				if (segment.getLastTimestamp() < cutoff && !active) {
+					segments.remove(i--);
+					segment.seal();
+					if (!segment.file.delete())
+						Log.warn("Abgelaufenes Segment konnte nicht gelöscht werden: " + segment.file);
+					continue;
+				}
+
+				long span = Math.max(1, segment.getLastTimestamp() - segment.getFirstTimestamp());
+				if (active || (cutoff - segment.getFirstTimestamp()) * 2 < span)
+					break;
+
+				// Überwiegend abgelaufen → noch gültige Einträge in ein neues Segment umschreiben
+				List<ArchiveSegment.Record> live = new ArrayList<>();
+				segment.scan(segment.seek(Long.MIN_VALUE, cutoff), new ArchiveSegment.RecordVisitor() {
+					@Override
+					public int accept(long id, long timestamp) {
+						return timestamp >= cutoff ? TAKE : SKIP;
+					}
+
+					@Override
+					public boolean visit(ArchiveSegment.Record record) {
+						live.add(record);
+						return true;
+					}
+				});
+				if (live.isEmpty())
+					break;
+
+				File target = new File(conversation.dir, segmentName(live.get(0).id));
+				ArchiveSegment compacted = new ArchiveSegment(target, segment.getCapacity(), true);
+				for (ArchiveSegment.Record record : live)
+					compacted.append(record.id, record.timestamp, record.xml);
+				// Kein aktives Segment → nach dem Schreiben nur noch lesend
+				compacted.seal();
+
+				segments.set(i, compacted);
+				segment.seal();
+				if (!segment.file.equals(target) && !segment.file.delete())
+					Log.warn("Kompaktiertes Segment konnte nicht gelöscht werden: " + segment.file);
+				break;
+			}
+		}
+	}
+
+	private File getOwnerDir(JID owner) {
+		return new File(baseDir, hash(owner.toBareJID()));
+	}
+
+	private static File[] listSegments(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files, Comparator.comparingLong(MessageArchive::getFirstId));
+		return files;
+	}
+
+	private static String segmentName(long firstId) {
+		return String.format("%020d", firstId) + SEGMENT_SUFFIX;
+	}
+
+	private static long getFirstId(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static JID readJid(File dir) {
+		try {
+			return new JID(Files.readString(new File(dir, JID_FILE).toPath(), StandardCharsets.UTF_8).trim());
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest, 0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package de.mopsdom.xmpp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.muc.MUCEventDispatcher;
+import org.jivesoftware.openfire.muc.MUCEventListener;
+import org.jivesoftware.openfire.muc.MUCOccupant;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Index Dienst-Domain → Raumname → Nickname → echte JID aller MUC-Räume.
+ * Wird beim Start aus den MUC-Diensten aufgebaut und über MUC-Events aktuell
+ * gehalten, so dass Presence-Verarbeitung Räume und Occupants ohne
+ * Dienst-Lookup und ohne neue Objekte auflöst.
+ */
+public class MucIndex implements MUCEventListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(MucIndex.class);
+
+	private static MucIndex instance = null;
+
+	private final Map<String, Map<String, Map<String, JID>>> services = new ConcurrentHashMap<>();
+
+	// Bis der Index aufgebaut ist, wird direkt bei den MUC-Diensten nachgesehen
+	private volatile boolean ready = false;
+
+	public static MucIndex getInstance() {
+		if (instance == null)
+			instance = new MucIndex();
+
+		return instance;
+	}
+
+	public void start() {
+		MUCEventDispatcher.addListener(this);
+		TaskEngine.getInstance().submit(this::build);
+	}
+
+	public void stop() {
+		MUCEventDispatcher.removeListener(this);
+		ready = false;
+		services.clear();
+	}
+
+	private void build() {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		for (MultiUserChatService service : XMPPServer.getInstance().getMultiUserChatManager()
+				.getMultiUserChatServices()) {
+			Map<String, Map<String, JID>> rooms = getRooms(service.getServiceDomain());
+			for (String roomName : service.getAllRoomNames())
+				rooms.computeIfAbsent(roomName, k -> new ConcurrentHashMap<>());
+
+			// Nur aktive Räume haben Occupants
+			for (MUCRoom room : service.getActiveChatRooms()) {
+				Map<String, JID> occupants = rooms.computeIfAbsent(room.getJID().getNode(),
+						k -> new ConcurrentHashMap<>());
+				for (MUCOccupant occupant : room.getOccupants())
+					occupants.put(occupant.getNickname(), occupant.getUserAddress());
+			}
+			count += rooms.size();
+		}
+		ready = true;
+		Log.info("MUC-Index mit " + count + " Räumen aufgebaut in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public boolean isRoom(JID jid) {
+		if (jid.getNode() == null)
+			return false;
+		if (!ready)
+			return lookupRoom(jid) != null;
+		Map<String, Map<String, JID>> rooms = services.get(jid.getDomain());
+		return rooms != null && rooms.containsKey(jid.getNode());
+	}
+
+	/**
+	 * Echte JID zu room@service/nick oder null.
+	 */
+	public JID getRealJid(JID occupantJid) {
+		if (occupantJid.getNode() == null || occupantJid.getResource() == null)
+			return null;
+		Map<String, Map<String, JID>> rooms = services.get(occupantJid.getDomain());
+		Map<String, JID> occupants = rooms != null ? rooms.get(occupantJid.getNode()) : null;
+		if (occupants == null)
+			return ready ? null : lookupOccupant(occupantJid);
+
+		JID real = occupants.get(occupantJid.getResource());
+		if (real != null)
+			return real;
+
+		// Events eines anderen Clusterknotens kommen hier evtl. nicht an → einmal exakt nachsehen
+		real = lookupOccupant(occupantJid);
+		if (real != null)
+			occupants.put(occupantJid.getResource(), real);
+		return real;
+	}
+
+	private static MUCRoom lookupRoom(JID jid) {
+		MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(jid);
+		return service != null ? service.getChatRoom(jid.getNode()) : null;
+	}
+
+	private static JID lookupOccupant(JID occupantJid) {
+		MUCRoom room = lookupRoom(occupantJid);
+		if (room == null)
+			return null;
+
+		try {
+			for (MUCOccupant occupant : room.getOccupantsByNickname(occupantJid.getResource()))
+				return occupant.getUserAddress();
+		} catch (UserNotFoundException e) {
+			// Nickname nicht im Raum
+		}
+		return null;
+	}
+
+	private Map<String, Map<String, JID>> getRooms(String serviceDomain) {
+		return services.computeIfAbsent(serviceDomain, k -> new ConcurrentHashMap<>());
+	}
+
+	private Map<String, JID> getOccupants(JID roomJID) {
+		return getRooms(roomJID.getDomain()).computeIfAbsent(roomJID.getNode(), k -> new ConcurrentHashMap<>());
+	}
+
+	@Override
+	public void roomCreated(JID roomJID) {
+		getOccupants(roomJID);
+	}
+
+	@Override
+	public void roomDestroyed(JID roomJID) {
+		Map<String, Map<String, JID>> rooms = services.get(roomJID.getDomain());
+		if (rooms != null)
+			rooms.remove(roomJID.getNode());
+	}
+
+	@Override
+	public void occupantJoined(JID roomJID, JID user, String nickname) {
+		getOccupants(roomJID).put(nickname, user);
+	}
+
+	@Override
+	public void occupantLeft(JID roomJID, JID user, String nickname) {
+		getOccupants(roomJID).remove(nickname, user);
+	}
+
+	@Override
+	public void occupantNickKicked(JID roomJID, String nickname) {
+		getOccupants(roomJID).remove(nickname);
+	}
+
+	@Override
+	public void nicknameChanged(JID roomJID, JID user, String oldNickname, String newNickname) {
+		Map<String, JID> occupants = getOccupants(roomJID);
+		occupants.remove(oldNickname, user);
+		occupants.put(newNickname, user);
+	}
+
+	@Override
+	public void messageReceived(JID roomJID, JID user, String nickname, Message message) {
+	}
+
+	@Override
+	public void privateMessageRecieved(JID toJID, JID fromJID, Message message) {
+	}
+
+	@Override
+	public void roomSubjectChanged(JID roomJID, JID user, String newSubject) {
+	}
+
+	@Override
+	public void roomClearChatHistory(JID roomJID) {
+	}
+}
@@ -0,0 +1,318 @@
+package de.mopsdom.xmpp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.Tracer;
+
+/**
+ * Führt die ausgehende Arbeit (XMPP → Matrix) pro Raum seriell aus, so
+ * bleibt die Reihenfolge erhalten und join/invite/createRoom laufen nie
+ * parallel. Wartende Arbeit liegt in einer Warteschlange pro Absender; die
+ * freien Slots werden per Deficit Round Robin verteilt: jeder Absender darf
+ * pro Runde so viele Tasks starten, wie sein Gewicht angibt. Ein Bot mit
+ * tausenden Nachrichten verzögert damit einen normalen Benutzer um höchstens
+ * eine Runde. Mit Plattform-Threads gibt es OUTBOUND_WORKERS Slots, mit
+ * virtuellen Threads OUTBOUND_VIRTUAL_CONCURRENCY auf dem
+ * {@link BridgeExecutor}.
+ */
+public class OutboundDispatcher {
+
+	private static final Logger Log = LoggerFactory.getLogger(OutboundDispatcher.class);
+
+	private static OutboundDispatcher instance = null;
+
+	private ExecutorService workers = null;
+
+	// Anzahl angenommener, aber noch nicht abgearbeiteter Tasks (Grundlage der Admission Control)
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// Ab hier alles unter der Sperre von this
+	private final Map<String, SenderQueue> senders = new HashMap<>();
+
+	// Absender mit wartender Arbeit in Round-Robin-Reihenfolge
+	private final ArrayDeque<SenderQueue> active = new ArrayDeque<>();
+
+	// Räume, in denen gerade ein Task läuft
+	private final Set<String> busyRooms = new HashSet<>();
+
+	private int slots = 0;
+	private int running = 0;
+
+	// Wird bei stop() erhöht, damit nachlaufende Tasks keine Slots eines Neustarts freigeben
+	private int generation = 0;
+
+	// Zuletzt gelesene OUTBOUND_SENDER_WEIGHTS, nur bei Änderung neu geparst
+	private String weightsSource = null;
+	private Map<String, Integer> weights = Map.of();
+
+	private static class Task {
+		private final String roomKey;
+		private final Runnable work;
+		private final Runnable rejected;
+		private int generation;
+
+		Task(String roomKey, Runnable work, Runnable rejected) {
+			this.roomKey = roomKey;
+			this.work = work;
+			this.rejected = rejected;
+		}
+	}
+
+	private static class SenderQueue {
+		private final String sender;
+		private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		// Restguthaben der laufenden Runde
+		private int deficit = 0;
+
+		SenderQueue(String sender) {
+			this.sender = sender;
+		}
+	}
+
+	public static OutboundDispatcher getInstance() {
+		if (instance == null)
+			instance = new OutboundDispatcher();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (slots > 0)
+			return;
+
+		if (BridgeExecutor.getInstance().isVirtual()) {
+			slots = MatrixBridgePlugin.OUTBOUND_VIRTUAL_CONCURRENCY.getValue();
+		} else {
+			slots = MatrixBridgePlugin.OUTBOUND_WORKERS.getValue();
+			workers = Executors.newFixedThreadPool(slots,
+					new NamedThreadFactory("matrix-bridge-outbound-", true, null, null, null));
+		}
+	}
+
+	public void stop() {
+		ExecutorService current;
+		synchronized (this) {
+			senders.clear();
+			active.clear();
+			busyRooms.clear();
+			slots = 0;
+			running = 0;
+			generation++;
+			pending.set(0);
+			current = workers;
+			workers = null;
+		}
+		if (current == null)
+			return;
+
+		current.shutdown();
+		try {
+			if (!current.awaitTermination(5, TimeUnit.SECONDS))
+				current.shutdownNow();
+		} catch (InterruptedException e) {
+			current.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * Reiht work für den Raum roomKey in die Warteschlange von sender (Bare
+	 * JID) ein.
+	 */
+	public void dispatch(String roomKey, String sender, Runnable work) {
+		dispatch(roomKey, sender, work, null);
+	}
+
+	/**
+	 * Wie dispatch(roomKey, sender, work); lehnt der Executor den Task ab
+	 * (gestoppt oder ausgelastet), läuft statt work rejected, damit der
+	 * Aufrufer die Stanza bouncen und ihren Trace beenden kann.
+	 */
+	public void dispatch(String roomKey, String sender, Runnable work, Runnable rejected) {
+		Task task = new Task(roomKey, Tracer.wrap(work), rejected != null ? Tracer.wrap(rejected) : null);
+
+		synchronized (this) {
+			// Zählen und Generation merken unter derselben Sperre wie stop()
+			pending.incrementAndGet();
+			task.generation = generation;
+			if (slots > 0) {
+				SenderQueue queue = senders.get(sender);
+				if (queue == null) {
+					queue = new SenderQueue(sender);
+					senders.put(sender, queue);
+					active.addLast(queue);
+				}
+				queue.tasks.addLast(task);
+				task = null;
+			}
+		}
+
+		// Nicht gestartet: direkt ausführen
+		if (task != null)
+			runSafely(task);
+		else
+			schedule();
+	}
+
+	// Startet wartende Tasks, solange Slots frei sind; ausgeführt wird außerhalb der Sperre
+	private void schedule() {
+		List<Task> ready = new ArrayList<>();
+		synchronized (this) {
+			while (running < slots) {
+				Task task = next();
+				if (task == null)
+					break;
+				running++;
+				busyRooms.add(task.roomKey);
+				ready.add(task);
+			}
+		}
+
+		for (Task task : ready)
+			execute(task);
+	}
+
+	// Deficit Round Robin mit Kosten 1 pro Task; Absender, deren nächster Raum belegt ist, werden übersprungen
+	private Task next() {
+		int skipped = 0;
+		while (!active.isEmpty() && skipped < active.size()) {
+			SenderQueue queue = active.peekFirst();
+			Task head = queue.tasks.peekFirst();
+			if (busyRooms.contains(head.roomKey)) {
+				// Guthaben bleibt erhalten, der Absender ist wieder dran, sobald der Raum frei ist
+				active.addLast(active.pollFirst());
+				skipped++;
+				continue;
+			}
+
+			if (queue.deficit <= 0)
+				queue.deficit += getWeight(queue.sender);
+			queue.tasks.pollFirst();
+			queue.deficit--;
+
+			if (queue.tasks.isEmpty()) {
+				active.pollFirst();
+				senders.remove(queue.sender);
+			} else if (queue.deficit <= 0) {
+				active.addLast(active.pollFirst());
+			}
+			return head;
+		}
+		return null;
+	}
+
+	private void execute(Task task) {
+		Runnable run = () -> {
+			try {
+				runSafely(task);
+			} finally {
+				complete(task);
+			}
+		};
+
+		ExecutorService current;
+		synchronized (this) {
+			current = workers;
+		}
+		boolean accepted;
+		if (current != null) {
+			try {
+				current.execute(run);
+				accepted = true;
+			} catch (RejectedExecutionException e) {
+				accepted = false;
+			}
+		} else {
+			accepted = BridgeExecutor.getInstance().execute(run);
+		}
+
+		if (!accepted) {
+			Log.warn("Outbound executor rejected task for " + task.roomKey);
+			release(task);
+			complete(task);
+			if (task.rejected != null) {
+				try {
+					task.rejected.run();
+				} catch (Exception e) {
+					Log.error("Rejection handler for " + task.roomKey + " failed: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	private void complete(Task task) {
+		synchronized (this) {
+			// Nach stop() gehört der Task zu keinem Slot mehr
+			if (task.generation != generation)
+				return;
+			running--;
+			busyRooms.remove(task.roomKey);
+		}
+		schedule();
+	}
+
+	private void runSafely(Task task) {
+		try {
+			task.work.run();
+		} catch (Exception e) {
+			Log.error("Outbound task for " + task.roomKey + " failed: " + e.getMessage(), e);
+		} finally {
+			release(task);
+		}
+	}
+
+	// stop() setzt pending zurück; Tasks einer älteren Generation dürfen den Zähler danach nicht mehr verringern
+	private void release(Task task) {
+		synchronized (this) {
+			if (task.generation == generation)
+				pending.decrementAndGet();
+		}
+	}
+
+	private int getWeight(String sender) {
+		String source = MatrixBridgePlugin.OUTBOUND_SENDER_WEIGHTS.getValue();
+		if (source == null)
+			source = "";
+
+		if (!source.equals(weightsSource)) {
+			Map<String, Integer> parsed = new HashMap<>();
+			for (String entry : source.split(",")) {
+				int separator = entry.lastIndexOf('=');
+				if (separator <= 0)
+					continue;
+				try {
+					parsed.put(entry.substring(0, separator).trim(),
+							Math.max(1, Integer.parseInt(entry.substring(separator + 1).trim())));
+				} catch (NumberFormatException e) {
+					Log.warn("Invalid sender weight: " + entry.trim());
+				}
+			}
+			weights = parsed;
+			weightsSource = source;
+			if (!parsed.isEmpty())
+				Log.info("Outbound sender weights: " + parsed);
+		}
+
+		Integer weight = weights.get(sender);
+		return weight != null ? weight : MatrixBridgePlugin.OUTBOUND_DEFAULT_WEIGHT.getValue();
+	}
+}
@@ -0,0 +1,215 @@
+package de.mopsdom.xmpp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.openfire.vcard.VCardEventDispatcher;
+import org.jivesoftware.openfire.vcard.VCardListener;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import de.mopsdom.matrix.AvatarManager;
+import de.mopsdom.matrix.HomeserverProbe;
+import de.mopsdom.matrix.MatrixAPI;
+import de.mopsdom.matrix.utils.PropertiesStore;
+import de.mopsdom.matrix.utils.Utils;
+
+/**
+ * Überträgt Anzeigename und Avatar aus der vCard auf das Profil des Puppets.
+ * Pro Benutzer wird ein Hash über die relevanten Felder gespeichert; nur wenn
+ * er sich ändert, wird der Homeserver angefragt. Änderungen werden gesammelt
+ * und höchstens PROFILE_SYNC_RATE mal pro Sekunde übertragen, der Abgleich
+ * beim Start überspringt so alle unveränderten Benutzer.
+ */
+public class ProfileSync implements VCardListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(ProfileSync.class);
+
+	private static ProfileSync instance = null;
+
+	// Benutzername → Hash des zuletzt übertragenen Profils
+	private volatile PropertiesStore hashes = null;
+
+	// Verhindert überlappende Durchläufe, ohne TaskEngine-Threads an einem Monitor warten zu lassen
+	private final AtomicBoolean syncing = new AtomicBoolean(false);
+
+	// Wartende Benutzer, mehrere Änderungen vor dem nächsten Durchlauf fallen zusammen
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	private TimerTask syncTask = null;
+
+	public static ProfileSync getInstance() {
+		if (instance == null)
+			instance = new ProfileSync();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		if (syncTask != null)
+			return;
+
+		hashes = new PropertiesStore("profiles");
+		VCardEventDispatcher.addListener(this);
+
+		syncTask = new TimerTask() {
+			@Override
+			public void run() {
+				sync();
+			}
+		};
+		TaskEngine.getInstance().schedule(syncTask, Duration.ofSeconds(1), Duration.ofSeconds(1));
+
+		// Wie beim Registrieren der Puppets genügt im Cluster ein Knoten für den Abgleich
+		if (!ClusterManager.isClusteringStarted() || ClusterManager.isSeniorClusterMember())
+			TaskEngine.getInstance().submit(() -> pending.addAll(XMPPServer.getInstance().getUserManager().getUsernames()));
+	}
+
+	public synchronized void stop() {
+		VCardEventDispatcher.removeListener(this);
+		if (syncTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(syncTask);
+			syncTask = null;
+		}
+		pending.clear();
+		if (hashes != null)
+			hashes.close();
+	}
+
+	public void enqueue(String username) {
+		pending.add(username);
+	}
+
+	// Läuft einmal pro Sekunde; ein noch laufender Durchlauf lässt den nächsten Tick sofort zurückkehren
+	private void sync() {
+		if (!syncing.compareAndSet(false, true))
+			return;
+		try {
+			syncPending();
+		} finally {
+			syncing.set(false);
+		}
+	}
+
+	private void syncPending() {
+		PropertiesStore store = hashes;
+		// Profile können warten, bis der Homeserver wieder zügig antwortet
+		if (store == null || pending.isEmpty() || HomeserverProbe.getInstance().isImpaired())
+			return;
+
+		int budget = MatrixBridgePlugin.PROFILE_SYNC_RATE.getValue();
+		Map<String, String> done = new HashMap<>();
+
+		Iterator<String> it = pending.iterator();
+		while (it.hasNext() && budget > 0) {
+			String username = it.next();
+			it.remove();
+
+			User user;
+			try {
+				user = XMPPServer.getInstance().getUserManager().getUser(username);
+			} catch (UserNotFoundException e) {
+				continue;
+			}
+
+			Element vcard = XMPPServer.getInstance().getVCardManager().getVCard(username);
+			String displayName = getDisplayName(user, vcard);
+			String hash = hash(displayName, vcard);
+			// Unveränderte Profile kosten keine Anfrage und kein Budget
+			if (hash.equals(store.get(username)))
+				continue;
+
+			budget--;
+			if (push(username, displayName, vcard))
+				done.put(username, hash);
+		}
+
+		// Ein Schreibvorgang pro Durchlauf
+		store.putAll(done);
+	}
+
+	private boolean push(String username, String displayName, Element vcard) {
+		String puppetId = Utils.convertXmppUserJIDToMatrixID(
+				new JID(username, XMPPServer.getInstance().getServerInfo().getXMPPDomain(), null),
+				"@" + PuppetProvisioner.PUPPET_PREFIX);
+		MatrixAPI api = MatrixAPI.forMxid(puppetId);
+		try {
+			PuppetProvisioner.getInstance().ensureRegistered(puppetId);
+			api.setUserDisplayName(puppetId, displayName);
+		} catch (IOException e) {
+			Log.warn("Profil von " + puppetId + " konnte nicht gesetzt werden: " + e.getMessage());
+			return false;
+		}
+
+		String avatarUrl = AvatarManager.getInstance().getAvatarUrl(vcard, api);
+		if (avatarUrl == null && vcard != null && vcard.element("PHOTO") != null) {
+			// Upload fehlgeschlagen, ohne gespeicherten Hash wird es beim nächsten Abgleich erneut versucht
+			return false;
+		}
+		// Leere URI entfernt den Avatar; schlägt das fehl, bleibt der Hash ungespeichert und es wird erneut versucht
+		return AvatarManager.getInstance().updatePuppetAvatar(puppetId, avatarUrl != null ? avatarUrl : "");
+	}
+
+	private static String getDisplayName(User user, Element vcard) {
+		if (vcard != null) {
+			String fn = vcard.elementTextTrim("FN");
+			if (fn != null && !fn.isEmpty())
+				return fn;
+			String nickname = vcard.elementTextTrim("NICKNAME");
+			if (nickname != null && !nickname.isEmpty())
+				return nickname;
+		}
+		return user.getName() != null && !user.getName().isEmpty() ? user.getName() : user.getUsername();
+	}
+
+	// Hash über Anzeigename und Foto; das Foto wird nicht dekodiert, AvatarManager dedupliziert den Upload
+	private static String hash(String displayName, Element vcard) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(displayName.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			Element photo = vcard != null ? vcard.element("PHOTO") : null;
+			if (photo != null) {
+				String binval = photo.elementText("BINVAL");
+				if (binval != null)
+					digest.update(binval.replaceAll("\\s", "").getBytes(StandardCharsets.US_ASCII));
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void vCardCreated(String username, Element vCard) {
+		enqueue(username);
+	}
+
+	@Override
+	public void vCardUpdated(String username, Element vCard) {
+		enqueue(username);
+	}
+
+	@Override
+	public void vCardDeleted(String username, Element vCard) {
+		enqueue(username);
+	}
+}
@@ -0,0 +1,176 @@
+package de.mopsdom.xmpp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mopsdom.matrix.MatrixAPI;
+import de.mopsdom.matrix.utils.PropertiesStore;
+
+/**
+ * Registriert die @xmpp_ Puppets aller Openfire-Benutzer vorab per
+ * m.login.application_service. Beim Start werden fehlende Puppets in
+ * parallelen Batches angelegt, neue Benutzer sofort beim Anlegen; der Stand
+ * wird dauerhaft gespeichert, so dass die erste Nachricht eines Benutzers
+ * ohne zusätzliche Anfrage beim Homeserver auskommt.
+ */
+public class PuppetProvisioner implements UserEventListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(PuppetProvisioner.class);
+
+	public static final String PUPPET_PREFIX = "xmpp_";
+
+	private static PuppetProvisioner instance = null;
+
+	// Localpart → Zeitpunkt der Registrierung
+	private volatile PropertiesStore registered = null;
+
+	private volatile boolean running = false;
+
+	public static PuppetProvisioner getInstance() {
+		if (instance == null)
+			instance = new PuppetProvisioner();
+
+		return instance;
+	}
+
+	public synchronized void start() {
+		registered = new PropertiesStore("puppets");
+		running = true;
+		UserEventDispatcher.addListener(this);
+
+		// Im Cluster genügt ein Knoten für den Abgleich; die übrigen holen Einzelne bei Bedarf nach
+		if (!ClusterManager.isClusteringStarted() || ClusterManager.isSeniorClusterMember())
+			TaskEngine.getInstance().submit(this::provisionAll);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		UserEventDispatcher.removeListener(this);
+		if (registered != null)
+			registered.close();
+	}
+
+	public boolean isRegistered(String matrixId) {
+		PropertiesStore store = registered;
+		return store != null && store.get(getLocalpart(matrixId)) != null;
+	}
+
+	/**
+	 * Registriert den Puppet, falls er noch nicht als registriert bekannt ist.
+	 */
+	public void ensureRegistered(String matrixId) throws IOException {
+		PropertiesStore store = registered;
+		String localpart = getLocalpart(matrixId);
+		if (store == null || store.get(localpart) != null)
+			return;
+
+		getApi().registerPuppet(localpart);
+		store.put(localpart, String.valueOf(System.currentTimeMillis()));
+	}
+
+	private void provisionAll() {
+		PropertiesStore store = registered;
+		if (store == null)
+			return;
+
+		List<String> pending = new ArrayList<>();
+		for (String username : XMPPServer.getInstance().getUserManager().getUsernames()) {
+			if (store.get(PUPPET_PREFIX + username) == null)
+				pending.add(PUPPET_PREFIX + username);
+		}
+		if (pending.isEmpty())
+			return;
+
+		long start = System.currentTimeMillis();
+		MatrixAPI api = getApi();
+		int batchSize = MatrixBridgePlugin.PUPPET_BATCH_SIZE.getValue();
+		// Eigener Pool: die Registrierung darf den Nachrichtenfluss im BridgeExecutor nicht verdrängen
+		ExecutorService pool = Executors.newFixedThreadPool(MatrixBridgePlugin.PUPPET_PARALLELISM.getValue(),
+				new NamedThreadFactory("matrix-bridge-provisioning-", true, null, null, null));
+		int count = 0;
+
+		try {
+			for (int offset = 0; offset < pending.size() && running; offset += batchSize) {
+				List<Callable<String>> batch = new ArrayList<>();
+				for (String localpart : pending.subList(offset, Math.min(offset + batchSize, pending.size()))) {
+					batch.add(() -> {
+						api.registerPuppet(localpart);
+						return localpart;
+					});
+				}
+
+				Map<String, String> done = new HashMap<>();
+				for (Future<String> result : pool.invokeAll(batch)) {
+					try {
+						done.put(result.get(), String.valueOf(System.currentTimeMillis()));
+					} catch (ExecutionException e) {
+						Log.warn("Puppet konnte nicht registriert werden: " + e.getCause().getMessage());
+					}
+				}
+				// Ein Schreibvorgang pro Batch statt pro Benutzer
+				store.putAll(done);
+				count += done.size();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Log.info(count + " von " + pending.size() + " Puppets registriert in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+	// Puppets gehören zu lokalen Benutzern und liegen auf dem Homeserver der XMPP-Domain
+	private static MatrixAPI getApi() {
+		return MatrixAPI.forDomain(XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+	}
+
+	// @xmpp_alice:example.org → xmpp_alice
+	private static String getLocalpart(String matrixId) {
+		String localpart = matrixId.startsWith("@") ? matrixId.substring(1) : matrixId;
+		return localpart.contains(":") ? localpart.substring(0, localpart.indexOf(':')) : localpart;
+	}
+
+	@Override
+	public void userCreated(User user, Map<String, Object> params) {
+		String localpart = PUPPET_PREFIX + user.getUsername();
+		BridgeExecutor.getInstance().execute(() -> {
+			try {
+				ensureRegistered(localpart);
+			} catch (IOException e) {
+				Log.warn("Puppet " + localpart + " konnte nicht registriert werden: " + e.getMessage());
+			}
+		});
+	}
+
+	@Override
+	public void userDeleting(User user, Map<String, Object> params) {
+		// Der Puppet bleibt auf dem Homeserver; eine erneute Registrierung meldet M_USER_IN_USE
+		PropertiesStore store = registered;
+		if (store != null)
+			store.remove(PUPPET_PREFIX + user.getUsername());
+	}
+
+	@Override
+	public void userModified(User user, Map<String, Object> params) {
+	}
+}
@@ -0,0 +1,123 @@
+package de.mopsdom.xmpp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.ClusterNodeInfo;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verteilt die Räume per Consistent Hashing auf die Cluster-Knoten. Nur der
+ * Besitzer eines Raums bridged dessen ausgehenden Verkehr; andere Knoten
+ * leiten die Stanzas per {@link BridgePacketTask} an ihn weiter.
+ */
+public class RoomOwnershipManager implements ClusterEventListener {
+
+	private static final Logger Log = LoggerFactory.getLogger(RoomOwnershipManager.class);
+
+	// Virtuelle Knoten pro Cluster-Knoten für eine gleichmäßige Verteilung
+	private static final int VIRTUAL_NODES = 128;
+
+	private static RoomOwnershipManager instance = null;
+
+	private volatile TreeMap<Long, NodeID> ring = new TreeMap<>();
+
+	public static RoomOwnershipManager getInstance() {
+		if (instance == null)
+			instance = new RoomOwnershipManager();
+
+		return instance;
+	}
+
+	public void start() {
+		ClusterManager.addListener(this);
+		rebuildRing();
+	}
+
+	public void stop() {
+		ClusterManager.removeListener(this);
+		ring = new TreeMap<>();
+	}
+
+	private void rebuildRing() {
+		TreeMap<Long, NodeID> newRing = new TreeMap<>();
+		if (ClusterManager.isClusteringStarted()) {
+			for (ClusterNodeInfo node : ClusterManager.getNodesInfo()) {
+				byte[] nodeId = node.getNodeID().toByteArray();
+				for (int i = 0; i < VIRTUAL_NODES; i++) {
+					byte[] key = Arrays.copyOf(nodeId, nodeId.length + 4);
+					key[nodeId.length] = (byte) (i >>> 24);
+					key[nodeId.length + 1] = (byte) (i >>> 16);
+					key[nodeId.length + 2] = (byte) (i >>> 8);
+					key[nodeId.length + 3] = (byte) i;
+					newRing.put(hash(key), node.getNodeID());
+				}
+			}
+		}
+		ring = newRing;
+		Log.info("Room ownership ring rebuilt with " + (newRing.size() / VIRTUAL_NODES) + " cluster node(s)");
+	}
+
+	/**
+	 * Liefert den Knoten, der den Raum bridged, oder null ohne Cluster.
+	 */
+	public NodeID getOwner(String roomKey) {
+		TreeMap<Long, NodeID> current = ring;
+		if (current.isEmpty())
+			return null;
+
+		Map.Entry<Long, NodeID> entry = current.ceilingEntry(hash(roomKey.getBytes(StandardCharsets.UTF_8)));
+		return entry != null ? entry.getValue() : current.firstEntry().getValue();
+	}
+
+	public boolean isLocalOwner(String roomKey) {
+		NodeID owner = getOwner(roomKey);
+		return owner == null || owner.equals(XMPPServer.getInstance().getNodeID());
+	}
+
+	// FNV-1a (64 Bit) mit Murmur3-Finalizer, stabil über alle Knoten hinweg
+	private static long hash(byte[] data) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : data) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public void joinedCluster() {
+		rebuildRing();
+	}
+
+	@Override
+	public void joinedCluster(byte[] nodeID) {
+		rebuildRing();
+	}
+
+	@Override
+	public void leftCluster() {
+		rebuildRing();
+	}
+
+	@Override
+	public void leftCluster(byte[] nodeID) {
+		rebuildRing();
+	}
+
+	@Override
+	public void markedAsSeniorClusterMember() {
+	}
+}
@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -22,13 +23,23 @@ import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.openfire.vcard.VCardManager;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import de.mopsdom.matrix.AvatarManager;
+import de.mopsdom.matrix.EventIdMap;
+import de.mopsdom.matrix.HomeserverProbe;
+import de.mopsdom.matrix.MatrixAPI;
+import de.mopsdom.matrix.ReceiptBridge;
+import de.mopsdom.matrix.Tracer;
+import de.mopsdom.matrix.TypingBridge;
 import de.mopsdom.matrix.utils.HttpUtils;
 
 public class XmppAPI {
@@ -54,6 +65,9 @@ public class XmppAPI {
         }
     }
 
+	// Raum-ID → Matrix-Benutzer, der gerade tippt
+	private final Map<String, String> typingRooms = new ConcurrentHashMap<>();
+
 	public XmppAPI() {
 		instance = this; 
 		openfireServerInstance = XMPPServer.getInstance();
@@ -66,9 +80,10 @@ public class XmppAPI {
 		return instance;
 	}
 	
-	public void handleTransactions(HttpServletRequest req, HttpServletResponse resp, String txnId) {
+	public void handleTransactions(HttpServletRequest req, HttpServletResponse resp, String txnId, MatrixAPI api) {
 
-		if (isAlreadyProcessed(txnId))
+		// Transaktions-IDs sind nur pro Homeserver eindeutig
+		if (isAlreadyProcessed(api.getProfile().getName() + "|" + txnId))
 		{
 			HttpUtils.sendResult(resp,200,new JSONObject());
 			return;
@@ -106,6 +121,8 @@ public class XmppAPI {
 	        return;
 	    }
 
+	    Tracer.mark("parsed");
+
 	    JSONArray events = transaction.optJSONArray("events");
 	    if (events == null) {
 	        JSONObject err = new JSONObject()
@@ -120,6 +137,16 @@ public class XmppAPI {
 	        processMatrixEvent(event);  // eigene Logik zur Verarbeitung
 	    }
 
+	    // Ephemeral Events (MSC2409), benötigt receive_ephemeral: true in der Registrierung
+	    JSONArray ephemeral = transaction.optJSONArray("ephemeral");
+	    if (ephemeral == null)
+	    	ephemeral = transaction.optJSONArray("de.sorunome.msc2409.ephemeral");
+	    if (ephemeral != null) {
+	    	for (int i = 0; i < ephemeral.length(); i++) {
+	    		processEphemeralEvent(ephemeral.getJSONObject(i), api);
+	    	}
+	    }
+
 	    
 	    HttpUtils.sendResult(resp,HttpServletResponse.SC_OK,new JSONObject());
 	}
@@ -128,8 +155,113 @@ public class XmppAPI {
 	{
 		Log.debug("processMatrixEvent()");
 		Log.debug(event.toString());
+		Tracer.onEvent(event.optString("event_id", null));
 	}
 	
+	private void processEphemeralEvent(JSONObject event, MatrixAPI api)
+	{
+		if ("m.typing".equals(event.optString("type")))
+			handleTypingEvent(event, api);
+		else if ("m.receipt".equals(event.optString("type")))
+			handleReceiptEvent(event, api);
+	}
+
+	// Chat Markers gelten kumulativ → pro Raum genügt der neueste m.read auf eine gebridgte Nachricht
+	private void handleReceiptEvent(JSONObject event, MatrixAPI api)
+	{
+		String roomId = event.optString("room_id", null);
+		JSONObject content = event.optJSONObject("content");
+		if (roomId == null || content == null)
+			return;
+
+		String newestStanzaId = null;
+		String newestReader = null;
+		long newestTs = -1;
+		for (String eventId : content.keySet()) {
+			JSONObject receipts = content.optJSONObject(eventId);
+			JSONObject read = receipts != null ? receipts.optJSONObject("m.read") : null;
+			if (read == null)
+				continue;
+
+			String stanzaId = EventIdMap.getInstance().getStanzaId(eventId);
+			if (stanzaId == null)
+				continue;
+
+			for (String userId : read.keySet()) {
+				// Eigene Puppets nicht zurückspiegeln
+				if (userId.startsWith("@xmpp_"))
+					continue;
+				JSONObject receipt = read.optJSONObject(userId);
+				long ts = receipt != null ? receipt.optLong("ts", 0) : 0;
+				if (ts >= newestTs) {
+					newestTs = ts;
+					newestStanzaId = stanzaId;
+					newestReader = userId;
+				}
+			}
+		}
+
+		if (newestStanzaId == null)
+			return;
+
+		JID[] participants = MatrixAPI.getDirectRoomParticipants(api.getCachedRoomAlias(roomId),
+				newestReader);
+		if (participants == null)
+			return;
+
+		Message message = new Message();
+		message.setType(Message.Type.chat);
+		message.setFrom(participants[0]);
+		message.setTo(participants[1]);
+		message.addChildElement("displayed", ReceiptBridge.CHAT_MARKERS_NAMESPACE).addAttribute("id", newestStanzaId);
+
+		MatrixBridgePlugin plugin = MatrixBridgePlugin.getInstance();
+		if (plugin != null)
+			plugin.sendPacket(message);
+	}
+
+	// m.typing enthält immer die vollständige Liste der tippenden Benutzer → nur Änderungen weitergeben
+	private void handleTypingEvent(JSONObject event, MatrixAPI api)
+	{
+		String roomId = event.optString("room_id", null);
+		JSONObject content = event.optJSONObject("content");
+		if (roomId == null || content == null)
+			return;
+
+		String typist = null;
+		JSONArray userIds = content.optJSONArray("user_ids");
+		if (userIds != null) {
+			for (int i = 0; i < userIds.length(); i++) {
+				// Eigene Puppets nicht zurückspiegeln
+				if (!userIds.optString(i).startsWith("@xmpp_")) {
+					typist = userIds.optString(i);
+					break;
+				}
+			}
+		}
+
+		// Beim Ende des Tippens bestimmt der zuletzt Tippende die Richtung
+		boolean typing = typist != null;
+		String before = typing ? typingRooms.put(roomId, typist) : typingRooms.remove(roomId);
+		if (typing ? typist.equals(before) : before == null)
+			return;
+
+		JID[] participants = MatrixAPI.getDirectRoomParticipants(api.getCachedRoomAlias(roomId),
+				typing ? typist : before);
+		if (participants == null)
+			return;
+
+		Message message = new Message();
+		message.setType(Message.Type.chat);
+		message.setFrom(participants[0]);
+		message.setTo(participants[1]);
+		message.addChildElement(typing ? "composing" : "paused", TypingBridge.CHATSTATES_NAMESPACE);
+
+		MatrixBridgePlugin plugin = MatrixBridgePlugin.getInstance();
+		if (plugin != null)
+			plugin.sendPacket(message);
+	}
+
 	public void handlePing(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		// Body lesen
 		String body = new BufferedReader(new InputStreamReader(req.getInputStream()))
@@ -156,7 +288,11 @@ public class XmppAPI {
 			return;
 		}
 
-		Log.info("Received ping with transaction_id: " + txnId);
+		// Eigene Proben kommen im Intervall, nur fremde Pings protokollieren
+		if (HomeserverProbe.getInstance().onPingReceived(txnId))
+			Log.debug("Received probe ping with transaction_id: " + txnId);
+		else
+			Log.info("Received ping with transaction_id: " + txnId);
 		// Erfolgreich: leeres JSON-Objekt zurückgeben
 		HttpUtils.sendResult(resp,HttpServletResponse.SC_OK,new JSONObject());
 	}
@@ -200,6 +336,17 @@ public class XmppAPI {
 	    }
 
 
+	    String roomName = aliasLocalpart.startsWith("#") ? aliasLocalpart.substring(1) : aliasLocalpart;
+
+	    // Sicherer Fehlschlag laut Bloom-Filter → ohne MUC-/Datenbankzugriff antworten
+	    if (!ExistenceIndex.getInstance().mightBeRoom(mucServiceDomain, roomName)) {
+	        JSONObject err = new JSONObject()
+	            .put("errcode", "M_NOT_FOUND")
+	            .put("error", "Room alias not found");
+	        HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
+	        return;
+	    }
+
 	    try {
 	        // Room Aliases sind in Openfire z.B. als MultiUserChat Services (MUC)
 	        // Du musst prüfen, ob ein Raum mit diesem Alias existiert
@@ -214,8 +361,6 @@ public class XmppAPI {
 	            return;
 	        }
 	        
-	        String roomName = aliasLocalpart.startsWith("#") ? aliasLocalpart.substring(1) : aliasLocalpart;
-	        
 	        MUCRoom room = mucService.getChatRoom(roomName);
 
 	        if (room != null) {
@@ -252,6 +397,16 @@ public class XmppAPI {
 	    String localpart = matcher.group(1); // "user"
 	    String domain = matcher.group(2);    // "yourdomain"
 	    
+	    if (openfireServerInstance.getServerInfo().getXMPPDomain().equalsIgnoreCase(domain)
+	    		&& !ExistenceIndex.getInstance().mightBeUser(localpart))
+	    {
+	    	// Sicherer Fehlschlag laut Bloom-Filter → UserProvider nicht belasten
+	    	JSONObject err = new JSONObject()
+					.put("errcode", "M_NOT_FOUND")
+					.put("error", "User not found");
+			HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
+	    }
+	    else
 	    if (openfireServerInstance.getServerInfo().getXMPPDomain().equalsIgnoreCase(domain))	    	
 	    {
 	    	try 
@@ -268,6 +423,14 @@ public class XmppAPI {
 	    			HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
 	    		}
 	    	}
+	    	catch (UserNotFoundException e)
+	    	{
+	    		// False Positive des Bloom-Filters
+	    		JSONObject err = new JSONObject()
+						.put("errcode", "M_NOT_FOUND")
+						.put("error", "User not found");
+				HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
+	    	}
 	    	catch (Exception e)
 	    	{
 	    		JSONObject err = new JSONObject()
@@ -366,11 +529,23 @@ public class XmppAPI {
             return;
         }
 
+        if (!ExistenceIndex.getInstance().mightBeUser(localpart)) {
+        	JSONObject err = new JSONObject()
+					.put("errcode", "M_NOT_FOUND")
+					.put("error", "User not found");
+        	HttpUtils.sendResult(resp, HttpServletResponse.SC_NOT_FOUND, err);
+            return;
+        }
+
         UserManager userManager = openfireServerInstance.getUserManager();
         User user = null;
         try {
         	user=userManager.getUser(localpart);
         }
+        catch (UserNotFoundException e)
+        {
+        	user = null;
+        }
         catch (Exception e)
         {
         	JSONObject err = new JSONObject();
@@ -421,20 +596,14 @@ public class XmppAPI {
                     }
                 }
 
-                // Avatar (PHOTO als base64)
-                Element photoEl = vcard.element("PHOTO");
-                if (photoEl != null) {
-                    Element binvalEl = photoEl.element("BINVAL");
-                    Element typeEl = photoEl.element("TYPE");
-
-                    if (binvalEl != null && typeEl != null) {
-                        String mimeType = typeEl.getTextTrim();
-                        String base64 = binvalEl.getTextTrim();
+                // Avatar (PHOTO wird einmalig ins Media Repository geladen → mxc://)
+                String avatarUrl = AvatarManager.getInstance().getAvatarUrl(vcard,
+                		MatrixAPI.forDomain(openfireServerInstance.getServerInfo().getXMPPDomain()));
+                if (avatarUrl != null) {
+                    fields.put("avatar_url", avatarUrl);
 
-                        // Optional: Als Data-URL
-                        String avatarUrl = "data:" + mimeType + ";base64," + base64;
-                        fields.put("avatar_url", avatarUrl);
-                    }
+                    // Abgleich des Puppet-Profils übernimmt ProfileSync, nur bei geändertem Hash
+                    ProfileSync.getInstance().enqueue(user.getUsername());
                 }
                 else
                 {
@@ -0,0 +1,145 @@
+package de.mopsdom.matrix;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.junit.jupiter.api.Test;
+
+public class RichTextTest {
+
+	private static Element convert(String html) {
+		Element body = DocumentHelper.createElement(QName.get("body", RichText.XHTML_NAMESPACE));
+		RichText.htmlToXhtml(html, body);
+		return body;
+	}
+
+	@Test
+	public void namedAndNumericEntitiesAreDecoded() {
+		Element body = convert("a &amp; b &lt;c&gt; &quot;d&quot; &#65;&#x42; &#x1F600;");
+
+		assertEquals("a & b <c> \"d\" AB 😀", body.getText());
+	}
+
+	@Test
+	public void unknownAndMalformedEntitiesStayLiteral() {
+		Element body = convert("&foo; &#xZZ; & alone &#;");
+
+		assertEquals("&foo; &#xZZ; & alone &#;", body.getText());
+	}
+
+	@Test
+	public void numericReferencesOutsideXmlCharBecomeReplacementCharacter() {
+		Element body = convert("[&#0;][&#x1;][&#xB;][&#xD800;][&#xDFFF;][&#xFFFE;][&#xFFFF;][&#x110000;]");
+
+		assertEquals("[�][�][�][�][�][�][�][�]", body.getText());
+	}
+
+	@Test
+	public void numericReferencesForAllowedControlCharactersAreKept() {
+		Element body = convert("a&#9;b&#xA;c&#13;d&#xE000;&#xFFFD;&#x10FFFF;");
+
+		assertEquals("a\tb\nc\rd�􏿿", body.getText());
+	}
+
+	@Test
+	public void entityEncodedSchemeDoesNotBypassLinkCheck() {
+		Element body = convert("<a href=\"javascript&#58;alert(1)\">x</a>");
+
+		assertNull(body.element("a"));
+		assertEquals("x", body.getText());
+	}
+
+	@Test
+	public void unsafeHrefSchemesAreDropped() {
+		for (String href : new String[] { "javascript:alert(1)", " JavaScript:alert(1)", "data:text/html,<b>",
+				"vbscript:msgbox", "file:///etc/passwd" }) {
+			Element body = convert("<a href=\"" + href.replace("<", "&lt;") + "\">link</a>");
+
+			assertNull(body.element("a"), href);
+			assertEquals("link", body.getText(), href);
+		}
+	}
+
+	@Test
+	public void safeHrefSchemesAreKept() {
+		for (String href : new String[] { "https://example.org/", "mailto:a@example.org", "xmpp:a@example.org",
+				"matrix:u/a:example.org" }) {
+			Element link = convert("<a href='" + href + "'>link</a>").element("a");
+
+			assertNotNull(link, href);
+			assertEquals(href, link.attributeValue("href"));
+		}
+	}
+
+	@Test
+	public void unsafeLinksAreDroppedWhenConvertingToHtml() {
+		Element body = DocumentHelper.createElement(QName.get("body", RichText.XHTML_NAMESPACE));
+		body.addElement("strong").addElement("a").addAttribute("href", "javascript:alert(1)").addText("y");
+
+		assertEquals("<strong>y</strong>", RichText.xhtmlToHtml(body));
+	}
+
+	@Test
+	public void unclosedTagsAreClosedAtTheEnd() {
+		Element body = convert("<b>bold <i>both");
+
+		Element strong = body.element("strong");
+		assertNotNull(strong);
+		assertEquals("bold ", strong.getText());
+		assertEquals("both", strong.element("em").getText());
+	}
+
+	@Test
+	public void misnestedTagsAreClosedWithTheirParent() {
+		Element body = convert("<b>1<i>2</b>3</i>4");
+
+		Element strong = body.element("strong");
+		assertEquals("1", strong.getText());
+		assertEquals("2", strong.element("em").getText());
+		// </b> schließt auch <i>; das verwaiste </i> wird ignoriert
+		assertEquals("34", body.getText());
+		assertEquals(1, body.elements().size());
+	}
+
+	@Test
+	public void strayClosingTagsAndLoneBracketsAreIgnored() {
+		Element body = convert("</p>a < b</em>");
+
+		assertEquals("a < b", body.getText());
+		assertTrue(body.elements().isEmpty());
+	}
+
+	@Test
+	public void replyFallbackIsStripped() {
+		Element body = convert("<mx-reply><blockquote><a href=\"https://matrix.to/#/!r/$e\">In reply to</a>"
+				+ " <b>quoted</b></blockquote></mx-reply>answer");
+
+		assertEquals("answer", body.getText());
+		assertTrue(body.elements().isEmpty());
+	}
+
+	@Test
+	public void nestedReplyFallbackIsStrippedCompletely() {
+		Element body = convert("<mx-reply>outer<mx-reply>inner</mx-reply>still outer</b></mx-reply><b>after</b>");
+
+		List<Element> elements = body.elements();
+		assertEquals(1, elements.size());
+		assertEquals("after", elements.get(0).getText());
+		assertEquals("", body.getText());
+	}
+
+	@Test
+	public void scriptAndStyleContentIsDropped() {
+		Element body = convert("a<script>alert('<b>')</script>b<style>p{}</style>c");
+
+		assertEquals("abc", body.getText());
+		assertTrue(body.elements().isEmpty());
+	}
+}
@@ -0,0 +1,75 @@
+package de.mopsdom.matrix.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+public class IdIndexTest {
+
+	@Test
+	public void rightIdTakenOverByAnotherLeftSurvivesEvictionOfOldEntry() throws IOException {
+		IdIndex index = new IdIndex(2, null, 0);
+		index.put("a", "x");
+		index.put("b", "x");
+		// Verdrängt "a"; dessen Verdrängung darf die Zuordnung x → b nicht löschen
+		index.put("c", "y");
+
+		assertEquals("b", index.getLeft("x"));
+		assertEquals("x", index.getRight("b"));
+		assertEquals("c", index.getLeft("y"));
+		assertNull(index.getRight("a"));
+	}
+
+	@Test
+	public void rightIdTakenOverByExistingLeftSurvivesEviction() throws IOException {
+		IdIndex index = new IdIndex(2, null, 0);
+		index.put("a", "x");
+		index.put("b", "y");
+		index.put("b", "x");
+		index.put("c", "z");
+
+		assertEquals("b", index.getLeft("x"));
+		assertNull(index.getLeft("y"));
+	}
+
+	@Test
+	public void backwardShiftDeletionKeepsProbeChainsIntact() throws IOException {
+		int capacity = 64;
+		for (int count : new int[] { 100, 517, 2000 }) {
+			IdIndex index = new IdIndex(capacity, null, 0);
+			for (int i = 0; i < count; i++)
+				index.put("left" + i, "right" + i);
+
+			// Ohne Zugriffe verdrängt CLOCK in Einfügereihenfolge → genau die letzten capacity Einträge leben
+			for (int i = count - capacity; i < count; i++) {
+				assertEquals("right" + i, index.getRight("left" + i));
+				assertEquals("left" + i, index.getLeft("right" + i));
+			}
+			for (int i = 0; i < count - capacity; i++) {
+				assertNull(index.getRight("left" + i));
+				assertNull(index.getLeft("right" + i));
+			}
+			assertEquals(capacity, index.size());
+		}
+	}
+
+	@Test
+	public void evictedEntriesAreRestoredFromSpillFile() throws IOException {
+		File spill = Files.createTempFile("idindex", ".spill").toFile();
+		try {
+			IdIndex index = new IdIndex(4, spill, 1024);
+			for (int i = 0; i < 32; i++)
+				index.put("$event" + i, "stanza" + i);
+
+			assertEquals("stanza0", index.getRight("$event0"));
+			assertEquals("$event1", index.getLeft("stanza1"));
+		} finally {
+			spill.delete();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ page import="de.mopsdom.matrix.CircuitBreaker" %>
+<%@ page import="de.mopsdom.matrix.CircuitBreakerRegistry" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<html>
+<head>
+    <title><fmt:message key="matrix_bridge.status.title"/></title>
+    <meta name="pageID" content="matrix-bridge-status"/>
+</head>
+<body>
+
+<div class="jive-contentBoxHeader">
+    <fmt:message key="matrix_bridge.status.breakers"/>
+</div>
+<div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+        <thead>
+        <tr>
+            <th><fmt:message key="matrix_bridge.status.group"/></th>
+            <th><fmt:message key="matrix_bridge.status.state"/></th>
+            <th><fmt:message key="matrix_bridge.status.failure_rate"/></th>
+            <th><fmt:message key="matrix_bridge.status.calls"/></th>
+            <th><fmt:message key="matrix_bridge.status.failed"/></th>
+            <th><fmt:message key="matrix_bridge.status.slow"/></th>
+            <th><fmt:message key="matrix_bridge.status.rejected"/></th>
+        </tr>
+        </thead>
+        <tbody>
+        <% for (CircuitBreaker breaker : CircuitBreakerRegistry.getInstance().getBreakers()) { %>
+        <tr>
+            <td><%= breaker.getGroup() %></td>
+            <td><%= breaker.getState() %></td>
+            <td><%= breaker.getFailureRate() %> %</td>
+            <td><%= breaker.getTotalCalls() %></td>
+            <td><%= breaker.getFailedCalls() %></td>
+            <td><%= breaker.getSlowCalls() %></td>
+            <td><%= breaker.getRejectedCalls() %></td>
+        </tr>
+        <% } %>
+        </tbody>
+    </table>
+</div>
+
+</body>
+</html>